@@ -15,12 +15,138 @@ public class Configs {
      */
     public static String proxyHttpTestURL = "https://sekiro.virjar.com/dly/getPublicIp";
 
+    /**
+     * 每个上游的初始缓存连接数量，之后根据借用速率和未命中率在min和max之间自适应
+     */
     public static int cacheConnPerUpstream = 3;
+    public static int cacheConnMinPerUpstream = 1;
+    public static int cacheConnMaxPerUpstream = 16;
+    /**
+     * 缓存连接的初始存活时间，之后根据上游关闭空闲连接的时间自适应，最长不超过cacheConnMaxAliveSeconds
+     */
     public static int cacheConnAliveSeconds = 30;
+    public static int cacheConnMaxAliveSeconds = 300;
+
+    /**
+     * 网络传输实现，nio或者epoll。epoll只在linux下可用，不可用时自动降级为nio
+     */
+    public static String transport = "nio";
+    /**
+     * epoll模式下，CONNECT/SOCKS5隧道是否使用splice在内核态直接转发数据。开启时同时开启upstreamEventLoopAffinity
+     */
+    public static boolean epollSplice = true;
+
+    /**
+     * 上游连接是否和用户连接在同一个eventLoop上创建，开启后转发数据不需要跨线程
+     */
+    public static boolean upstreamEventLoopAffinity = false;
+
+    /**
+     * 隧道转发时，一个读循环内最多累积多少次写入才强制flush，其余的在读循环结束时统一flush
+     */
+    public static int relayFlushAfterReads = 16;
+
+    /**
+     * http代理模式下，上游的响应不解码，直接以原始字节转发给用户。
+     * 只作用于响应方向，请求方向仍然解码，每个请求都需要填充上游鉴权
+     */
+    public static boolean httpRawResponseRelay = false;
+
+    /**
+     * http代理模式下，请求完成之后上游连接归还到连接池，给后续请求复用。和httpRawResponseRelay互斥
+     */
+    public static boolean httpUpstreamKeepAlive = false;
+
+    /**
+     * h2c入口上一个连接最多同时打开的CONNECT流，0表示不支持h2c，要求客户端回退到http/1.1
+     */
+    public static int http2MaxConcurrentStreams = 256;
+
+    /**
+     * h2c入口每个流的接收窗口，上游写不完的数据最多在内存中堆积这么多
+     */
+    public static int http2StreamWindowSize = 65535;
+
+    /**
+     * https代理的CONNECT握手直接写预先编码的报文并解析响应行，不在上游pipeline中增删http编解码
+     */
+    public static boolean httpConnectFastPath = true;
+
+    /**
+     * 对冲延时，当前资源在这个时间内没有拿到连接，同时在一个备用资源上获取连接。0表示关闭，建议配置为连接耗时的p95
+     */
+    public static long hedgeDelayMillis = 0;
+
+    /**
+     * failover时同时尝试的备用资源数量
+     */
+    public static int failoverParallelism = 1;
+
+    /**
+     * socks5上游使用乐观握手，greeting、鉴权、CONNECT一次发送，节省两个RTT。上游不支持时自动回退到逐步握手
+     */
+    public static boolean socks5PipelineHandshake = true;
+
+    /**
+     * 用户连接空闲回收时间，读写都没有数据超过这个时间之后关闭隧道两端的连接
+     */
+    public static int idleTimeoutSeconds = 70;
+    /**
+     * 各协议单独的空闲时间，小于等于0表示使用idleTimeoutSeconds
+     */
+    public static int httpIdleTimeoutSeconds = 0;
+    public static int httpsIdleTimeoutSeconds = 0;
+    public static int socks5IdleTimeoutSeconds = 0;
 
-    public static void doRefreshResource() {
-        for (Source source : sourceList) {
-            source.refresh();
-        }
-    }
+    /**
+     * looper中单个任务执行或者排队超过这个时间时打印告警
+     */
+    public static long looperSlowTaskMillis = 100;
+
+    /**
+     * 同一个端口连续收到多少次质量差的反馈之后自动切换上游资源，小于等于0表示只记录不切换
+     */
+    public static int feedbackSwitchThreshold = 3;
+
+    /**
+     * 每个数据源同时进行的代理资源探测数量，超过的排队等待
+     */
+    public static int probeConcurrency = 64;
+    /**
+     * 探测结果的缓存时间，缓存期内同一个ip:port不再发起探测。成功的结果带有出口ip，0表示不缓存
+     */
+    public static int probeSuccessCacheSeconds = 600;
+    public static int probeFailureCacheSeconds = 120;
+
+    /**
+     * 每个数据源单独调度刷新：备用池低于低水位（或者有端口没有映射）时按最小间隔提前刷新，
+     * 达到高水位时在refreshUpstreamInterval的基础上逐次翻倍退避，最长不超过最大间隔。高水位小于等于0表示不退避
+     */
+    public static int refreshMinIntervalSeconds = 10;
+    public static int refreshMaxIntervalSeconds = 300;
+    public static int standbyLowWatermark = 5;
+    public static int standbyHighWatermark = 50;
+
+    /**
+     * 端口映射和备用池的持久化目录，重启之后按照上一次的映射关系直接绑定端口。默认为空，表示不持久化
+     */
+    public static String snapshotDir = "";
+
+    /**
+     * 映射端口的accept队列长度，小于等于0表示使用系统默认值（somaxconn）
+     */
+    public static int acceptBacklog = 1024;
+    /**
+     * epoll模式下每个映射端口使用SO_REUSEPORT绑定的次数，内核把新连接分散到多个boss线程上accept。nio模式下无效
+     */
+    public static int reusePortBinds = 1;
+
+    /**
+     * 会话模式下，会话超过这个时间没有访问之后淘汰
+     */
+    public static int sessionTtlSeconds = 600;
+    /**
+     * 会话模式下，一个上游资源最多被多少个会话共享，超过之后从备用池取新的资源。备用池没有资源时超额共享
+     */
+    public static int sessionsPerUpstream = 32;
 }
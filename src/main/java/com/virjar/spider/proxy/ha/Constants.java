@@ -17,6 +17,11 @@ public interface Constants {
         String SOURCE_URL = "source_url";
         String UPSTREAM_AUTH_USER = "upstream_auth_user";
         String UPSTREAM_AUTH_PASSWORD = "upstream_auth_password";
+        String WRITE_BUFFER_HIGH_WATER_MARK = "write_buffer_high_water_mark";
+        String WRITE_BUFFER_LOW_WATER_MARK = "write_buffer_low_water_mark";
+        String SOCKS5_PRE_NEGOTIATE = "socks5_pre_negotiate";
+        String SOCKS5_PRE_NEGOTIATE_TTL_SECONDS = "socks5_pre_negotiate_ttl_seconds";
+        String SESSION_PORTS = "session_ports";
 
     }
 
@@ -25,6 +30,43 @@ public interface Constants {
         String CONFIG_SECTION_TYPE_GLOBAL = "global";
         String CACHE_CONNECTION_SIZE = "cache_connection_size";
         String CACHE_CONNECTION_ALIVE_SECONDS = "cache_connection_seconds";
+        String CACHE_CONNECTION_MIN_SIZE = "cache_connection_min_size";
+        String CACHE_CONNECTION_MAX_SIZE = "cache_connection_max_size";
+        String CACHE_CONNECTION_MAX_SECONDS = "cache_connection_max_seconds";
+        String TRANSPORT = "transport";
+        String EPOLL_SPLICE = "epoll_splice";
+        String UPSTREAM_EVENT_LOOP_AFFINITY = "upstream_event_loop_affinity";
+        String RELAY_FLUSH_AFTER_READS = "relay_flush_after_reads";
+        String HTTP_RAW_RESPONSE_RELAY = "http_raw_response_relay";
+        /**
+         * http_raw_response_relay的旧名称，只对响应生效，保留兼容
+         */
+        String HTTP_RAW_RELAY = "http_raw_relay";
+        String HTTP_CONNECT_FAST_PATH = "http_connect_fast_path";
+        String HTTP_UPSTREAM_KEEP_ALIVE = "http_upstream_keep_alive";
+        String HTTP2_MAX_CONCURRENT_STREAMS = "http2_max_concurrent_streams";
+        String HTTP2_STREAM_WINDOW_SIZE = "http2_stream_window_size";
+        String HEDGE_DELAY_MILLIS = "hedge_delay_millis";
+        String FAILOVER_PARALLELISM = "failover_parallelism";
+        String SOCKS5_PIPELINE_HANDSHAKE = "socks5_pipeline_handshake";
+        String IDLE_TIMEOUT_SECONDS = "idle_timeout_seconds";
+        String HTTP_IDLE_TIMEOUT_SECONDS = "http_idle_timeout_seconds";
+        String HTTPS_IDLE_TIMEOUT_SECONDS = "https_idle_timeout_seconds";
+        String SOCKS5_IDLE_TIMEOUT_SECONDS = "socks5_idle_timeout_seconds";
+        String LOOPER_SLOW_TASK_MILLIS = "looper_slow_task_millis";
+        String FEEDBACK_SWITCH_THRESHOLD = "feedback_switch_threshold";
+        String PROBE_CONCURRENCY = "probe_concurrency";
+        String PROBE_SUCCESS_CACHE_SECONDS = "probe_success_cache_seconds";
+        String PROBE_FAILURE_CACHE_SECONDS = "probe_failure_cache_seconds";
+        String REFRESH_MIN_INTERVAL_SECONDS = "refresh_min_interval_seconds";
+        String REFRESH_MAX_INTERVAL_SECONDS = "refresh_max_interval_seconds";
+        String STANDBY_LOW_WATERMARK = "standby_low_watermark";
+        String STANDBY_HIGH_WATERMARK = "standby_high_watermark";
+        String SNAPSHOT_DIR = "snapshot_dir";
+        String ACCEPT_BACKLOG = "accept_backlog";
+        String REUSE_PORT_BINDS = "reuse_port_binds";
+        String SESSION_TTL_SECONDS = "session_ttl_seconds";
+        String SESSIONS_PER_UPSTREAM = "sessions_per_upstream";
     }
 
 
@@ -4,15 +4,11 @@ import com.google.common.collect.Lists;
 import com.virjar.spider.proxy.ha.core.HaProxyMapping;
 import com.virjar.spider.proxy.ha.core.Source;
 import com.virjar.spider.proxy.ha.utils.ClasspathResourceUtil;
-import io.netty.util.concurrent.DefaultThreadFactory;
 import org.ini4j.ConfigParser;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.List;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.TimeUnit;
 
 public class HaProxyBootstrap {
 
@@ -23,11 +19,13 @@ public class HaProxyBootstrap {
         // 静态初始化
         HaProxyMapping.staticInit();
 
-        // 定时任务拉取数据源，启动HA服务
-        ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1, new DefaultThreadFactory("main-scheduler"));
-        scheduler.scheduleAtFixedRate(Configs::doRefreshResource, 0,
-                Configs.refreshUpstreamInterval
-                , TimeUnit.SECONDS);
+        // 每个数据源在自己的looper中调度拉取，启动HA服务
+        for (Source source : Configs.sourceList) {
+            source.startRefreshSchedule();
+        }
+
+        // looper都是守护线程，第一次刷新完成之前还没有端口绑定，主线程常驻保证进程不退出
+        Thread.currentThread().join();
     }
 
     private static void loadSourceConfig() throws Exception {
@@ -68,6 +66,175 @@ public class HaProxyBootstrap {
                     config.get(sourceItem, Constants.CONFIG_GLOBAL.CACHE_CONNECTION_ALIVE_SECONDS)
             );
         }
+        if (config.hasOption(sourceItem, Constants.CONFIG_GLOBAL.CACHE_CONNECTION_MIN_SIZE)) {
+            Configs.cacheConnMinPerUpstream = Integer.parseInt(
+                    config.get(sourceItem, Constants.CONFIG_GLOBAL.CACHE_CONNECTION_MIN_SIZE)
+            );
+        }
+        if (config.hasOption(sourceItem, Constants.CONFIG_GLOBAL.CACHE_CONNECTION_MAX_SIZE)) {
+            Configs.cacheConnMaxPerUpstream = Integer.parseInt(
+                    config.get(sourceItem, Constants.CONFIG_GLOBAL.CACHE_CONNECTION_MAX_SIZE)
+            );
+        }
+        if (config.hasOption(sourceItem, Constants.CONFIG_GLOBAL.CACHE_CONNECTION_MAX_SECONDS)) {
+            Configs.cacheConnMaxAliveSeconds = Integer.parseInt(
+                    config.get(sourceItem, Constants.CONFIG_GLOBAL.CACHE_CONNECTION_MAX_SECONDS)
+            );
+        }
+        if (Configs.cacheConnMinPerUpstream > Configs.cacheConnMaxPerUpstream) {
+            throw new IllegalArgumentException("cache_connection_min_size greater than cache_connection_max_size");
+        }
+        if (config.hasOption(sourceItem, Constants.CONFIG_GLOBAL.TRANSPORT)) {
+            Configs.transport = config.get(sourceItem, Constants.CONFIG_GLOBAL.TRANSPORT).trim();
+        }
+        if (config.hasOption(sourceItem, Constants.CONFIG_GLOBAL.EPOLL_SPLICE)) {
+            Configs.epollSplice = Boolean.parseBoolean(
+                    config.get(sourceItem, Constants.CONFIG_GLOBAL.EPOLL_SPLICE).trim()
+            );
+        }
+        if (config.hasOption(sourceItem, Constants.CONFIG_GLOBAL.UPSTREAM_EVENT_LOOP_AFFINITY)) {
+            Configs.upstreamEventLoopAffinity = Boolean.parseBoolean(
+                    config.get(sourceItem, Constants.CONFIG_GLOBAL.UPSTREAM_EVENT_LOOP_AFFINITY).trim()
+            );
+        }
+        if (config.hasOption(sourceItem, Constants.CONFIG_GLOBAL.RELAY_FLUSH_AFTER_READS)) {
+            Configs.relayFlushAfterReads = Integer.parseInt(
+                    config.get(sourceItem, Constants.CONFIG_GLOBAL.RELAY_FLUSH_AFTER_READS)
+            );
+        }
+        if (config.hasOption(sourceItem, Constants.CONFIG_GLOBAL.HTTP_RAW_RELAY)) {
+            Configs.httpRawResponseRelay = Boolean.parseBoolean(
+                    config.get(sourceItem, Constants.CONFIG_GLOBAL.HTTP_RAW_RELAY).trim()
+            );
+        }
+        if (config.hasOption(sourceItem, Constants.CONFIG_GLOBAL.HTTP_RAW_RESPONSE_RELAY)) {
+            Configs.httpRawResponseRelay = Boolean.parseBoolean(
+                    config.get(sourceItem, Constants.CONFIG_GLOBAL.HTTP_RAW_RESPONSE_RELAY).trim()
+            );
+        }
+        if (config.hasOption(sourceItem, Constants.CONFIG_GLOBAL.HTTP_CONNECT_FAST_PATH)) {
+            Configs.httpConnectFastPath = Boolean.parseBoolean(
+                    config.get(sourceItem, Constants.CONFIG_GLOBAL.HTTP_CONNECT_FAST_PATH).trim()
+            );
+        }
+        if (config.hasOption(sourceItem, Constants.CONFIG_GLOBAL.HTTP_UPSTREAM_KEEP_ALIVE)) {
+            Configs.httpUpstreamKeepAlive = Boolean.parseBoolean(
+                    config.get(sourceItem, Constants.CONFIG_GLOBAL.HTTP_UPSTREAM_KEEP_ALIVE).trim()
+            );
+        }
+        if (config.hasOption(sourceItem, Constants.CONFIG_GLOBAL.HTTP2_MAX_CONCURRENT_STREAMS)) {
+            Configs.http2MaxConcurrentStreams = Integer.parseInt(
+                    config.get(sourceItem, Constants.CONFIG_GLOBAL.HTTP2_MAX_CONCURRENT_STREAMS)
+            );
+        }
+        if (config.hasOption(sourceItem, Constants.CONFIG_GLOBAL.HTTP2_STREAM_WINDOW_SIZE)) {
+            Configs.http2StreamWindowSize = Integer.parseInt(
+                    config.get(sourceItem, Constants.CONFIG_GLOBAL.HTTP2_STREAM_WINDOW_SIZE)
+            );
+        }
+        if (config.hasOption(sourceItem, Constants.CONFIG_GLOBAL.HEDGE_DELAY_MILLIS)) {
+            Configs.hedgeDelayMillis = Long.parseLong(
+                    config.get(sourceItem, Constants.CONFIG_GLOBAL.HEDGE_DELAY_MILLIS)
+            );
+        }
+        if (config.hasOption(sourceItem, Constants.CONFIG_GLOBAL.FAILOVER_PARALLELISM)) {
+            Configs.failoverParallelism = Integer.parseInt(
+                    config.get(sourceItem, Constants.CONFIG_GLOBAL.FAILOVER_PARALLELISM)
+            );
+        }
+        if (config.hasOption(sourceItem, Constants.CONFIG_GLOBAL.SOCKS5_PIPELINE_HANDSHAKE)) {
+            Configs.socks5PipelineHandshake = Boolean.parseBoolean(
+                    config.get(sourceItem, Constants.CONFIG_GLOBAL.SOCKS5_PIPELINE_HANDSHAKE).trim()
+            );
+        }
+        if (config.hasOption(sourceItem, Constants.CONFIG_GLOBAL.IDLE_TIMEOUT_SECONDS)) {
+            Configs.idleTimeoutSeconds = Integer.parseInt(
+                    config.get(sourceItem, Constants.CONFIG_GLOBAL.IDLE_TIMEOUT_SECONDS)
+            );
+        }
+        if (config.hasOption(sourceItem, Constants.CONFIG_GLOBAL.HTTP_IDLE_TIMEOUT_SECONDS)) {
+            Configs.httpIdleTimeoutSeconds = Integer.parseInt(
+                    config.get(sourceItem, Constants.CONFIG_GLOBAL.HTTP_IDLE_TIMEOUT_SECONDS)
+            );
+        }
+        if (config.hasOption(sourceItem, Constants.CONFIG_GLOBAL.HTTPS_IDLE_TIMEOUT_SECONDS)) {
+            Configs.httpsIdleTimeoutSeconds = Integer.parseInt(
+                    config.get(sourceItem, Constants.CONFIG_GLOBAL.HTTPS_IDLE_TIMEOUT_SECONDS)
+            );
+        }
+        if (config.hasOption(sourceItem, Constants.CONFIG_GLOBAL.SOCKS5_IDLE_TIMEOUT_SECONDS)) {
+            Configs.socks5IdleTimeoutSeconds = Integer.parseInt(
+                    config.get(sourceItem, Constants.CONFIG_GLOBAL.SOCKS5_IDLE_TIMEOUT_SECONDS)
+            );
+        }
+        if (config.hasOption(sourceItem, Constants.CONFIG_GLOBAL.LOOPER_SLOW_TASK_MILLIS)) {
+            Configs.looperSlowTaskMillis = Long.parseLong(
+                    config.get(sourceItem, Constants.CONFIG_GLOBAL.LOOPER_SLOW_TASK_MILLIS)
+            );
+        }
+        if (config.hasOption(sourceItem, Constants.CONFIG_GLOBAL.FEEDBACK_SWITCH_THRESHOLD)) {
+            Configs.feedbackSwitchThreshold = Integer.parseInt(
+                    config.get(sourceItem, Constants.CONFIG_GLOBAL.FEEDBACK_SWITCH_THRESHOLD)
+            );
+        }
+        if (config.hasOption(sourceItem, Constants.CONFIG_GLOBAL.PROBE_CONCURRENCY)) {
+            Configs.probeConcurrency = Integer.parseInt(
+                    config.get(sourceItem, Constants.CONFIG_GLOBAL.PROBE_CONCURRENCY)
+            );
+        }
+        if (config.hasOption(sourceItem, Constants.CONFIG_GLOBAL.PROBE_SUCCESS_CACHE_SECONDS)) {
+            Configs.probeSuccessCacheSeconds = Integer.parseInt(
+                    config.get(sourceItem, Constants.CONFIG_GLOBAL.PROBE_SUCCESS_CACHE_SECONDS)
+            );
+        }
+        if (config.hasOption(sourceItem, Constants.CONFIG_GLOBAL.PROBE_FAILURE_CACHE_SECONDS)) {
+            Configs.probeFailureCacheSeconds = Integer.parseInt(
+                    config.get(sourceItem, Constants.CONFIG_GLOBAL.PROBE_FAILURE_CACHE_SECONDS)
+            );
+        }
+        if (config.hasOption(sourceItem, Constants.CONFIG_GLOBAL.REFRESH_MIN_INTERVAL_SECONDS)) {
+            Configs.refreshMinIntervalSeconds = Integer.parseInt(
+                    config.get(sourceItem, Constants.CONFIG_GLOBAL.REFRESH_MIN_INTERVAL_SECONDS)
+            );
+        }
+        if (config.hasOption(sourceItem, Constants.CONFIG_GLOBAL.REFRESH_MAX_INTERVAL_SECONDS)) {
+            Configs.refreshMaxIntervalSeconds = Integer.parseInt(
+                    config.get(sourceItem, Constants.CONFIG_GLOBAL.REFRESH_MAX_INTERVAL_SECONDS)
+            );
+        }
+        if (config.hasOption(sourceItem, Constants.CONFIG_GLOBAL.STANDBY_LOW_WATERMARK)) {
+            Configs.standbyLowWatermark = Integer.parseInt(
+                    config.get(sourceItem, Constants.CONFIG_GLOBAL.STANDBY_LOW_WATERMARK)
+            );
+        }
+        if (config.hasOption(sourceItem, Constants.CONFIG_GLOBAL.STANDBY_HIGH_WATERMARK)) {
+            Configs.standbyHighWatermark = Integer.parseInt(
+                    config.get(sourceItem, Constants.CONFIG_GLOBAL.STANDBY_HIGH_WATERMARK)
+            );
+        }
+        if (config.hasOption(sourceItem, Constants.CONFIG_GLOBAL.SNAPSHOT_DIR)) {
+            Configs.snapshotDir = config.get(sourceItem, Constants.CONFIG_GLOBAL.SNAPSHOT_DIR).trim();
+        }
+        if (config.hasOption(sourceItem, Constants.CONFIG_GLOBAL.ACCEPT_BACKLOG)) {
+            Configs.acceptBacklog = Integer.parseInt(
+                    config.get(sourceItem, Constants.CONFIG_GLOBAL.ACCEPT_BACKLOG)
+            );
+        }
+        if (config.hasOption(sourceItem, Constants.CONFIG_GLOBAL.REUSE_PORT_BINDS)) {
+            Configs.reusePortBinds = Integer.parseInt(
+                    config.get(sourceItem, Constants.CONFIG_GLOBAL.REUSE_PORT_BINDS)
+            );
+        }
+        if (config.hasOption(sourceItem, Constants.CONFIG_GLOBAL.SESSION_TTL_SECONDS)) {
+            Configs.sessionTtlSeconds = Integer.parseInt(
+                    config.get(sourceItem, Constants.CONFIG_GLOBAL.SESSION_TTL_SECONDS)
+            );
+        }
+        if (config.hasOption(sourceItem, Constants.CONFIG_GLOBAL.SESSIONS_PER_UPSTREAM)) {
+            Configs.sessionsPerUpstream = Integer.parseInt(
+                    config.get(sourceItem, Constants.CONFIG_GLOBAL.SESSIONS_PER_UPSTREAM)
+            );
+        }
     }
 
     private static Source parseSource(ConfigParser config, String sourceItem) throws ConfigParser.NoSectionException, ConfigParser.NoOptionException, ConfigParser.InterpolationException {
@@ -80,6 +247,36 @@ public class HaProxyBootstrap {
             source.setUpstreamAuthUser(config.get(sourceItem, Constants.CONFIG_SECTION.UPSTREAM_AUTH_USER));
             source.setUpstreamAuthPassword(config.get(sourceItem, Constants.CONFIG_SECTION.UPSTREAM_AUTH_PASSWORD));
         }
+        if (config.hasOption(sourceItem, Constants.CONFIG_SECTION.WRITE_BUFFER_HIGH_WATER_MARK)) {
+            source.setWriteBufferHighWaterMark(Integer.parseInt(
+                    config.get(sourceItem, Constants.CONFIG_SECTION.WRITE_BUFFER_HIGH_WATER_MARK)
+            ));
+        }
+        if (config.hasOption(sourceItem, Constants.CONFIG_SECTION.WRITE_BUFFER_LOW_WATER_MARK)) {
+            source.setWriteBufferLowWaterMark(Integer.parseInt(
+                    config.get(sourceItem, Constants.CONFIG_SECTION.WRITE_BUFFER_LOW_WATER_MARK)
+            ));
+        }
+        if (source.getWriteBufferLowWaterMark() > source.getWriteBufferHighWaterMark()) {
+            throw new IllegalArgumentException("write buffer low water mark greater than high water mark for source:" + sourceItem);
+        }
+        if (config.hasOption(sourceItem, Constants.CONFIG_SECTION.SOCKS5_PRE_NEGOTIATE)) {
+            source.setSocks5PreNegotiate(Boolean.parseBoolean(
+                    config.get(sourceItem, Constants.CONFIG_SECTION.SOCKS5_PRE_NEGOTIATE).trim()
+            ));
+        }
+        if (config.hasOption(sourceItem, Constants.CONFIG_SECTION.SOCKS5_PRE_NEGOTIATE_TTL_SECONDS)) {
+            source.setSocks5PreNegotiateTtlSeconds(Integer.parseInt(
+                    config.get(sourceItem, Constants.CONFIG_SECTION.SOCKS5_PRE_NEGOTIATE_TTL_SECONDS)
+            ));
+        }
+        if (config.hasOption(sourceItem, Constants.CONFIG_SECTION.SESSION_PORTS)) {
+            source.setSessionPorts(config.get(sourceItem, Constants.CONFIG_SECTION.SESSION_PORTS).trim());
+        }
+        if (source.isSocks5PreNegotiate() && !"socks5".equals(source.getProtocol().trim())) {
+            // 预协商的连接只能承载socks5的CONNECT，混合协议的数据源下http请求会借到这些连接
+            throw new IllegalArgumentException("socks5_pre_negotiate only support protocol socks5 for source:" + sourceItem);
+        }
         return source;
     }
 
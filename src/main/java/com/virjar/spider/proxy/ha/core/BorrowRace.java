@@ -0,0 +1,98 @@
+package com.virjar.spider.proxy.ha.core;
+
+import com.virjar.spider.proxy.ha.safethread.ValueCallback;
+import io.netty.channel.Channel;
+import io.netty.channel.EventLoop;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 同时从多个上游资源获取连接，使用最先成功的连接，落后的连接归还到各自的连接池
+ * <br>
+ * 备用资源（standby）获胜之后，端口映射切换到这个备用资源上；落后的备用资源归还到Source的备用池；获取失败的备用资源直接销毁
+ */
+class BorrowRace {
+    private final HaProxyMapping haProxyMapping;
+    private final EventLoop eventLoop;
+    private final boolean reuseKeepAlive;
+    /**
+     * 备用资源获胜之后，被替换下来的资源是否归还到备用池。对冲模式下原资源只是慢，并没有失败
+     */
+    private final boolean recycleReplacedUpstream;
+    private final ValueCallback<Channel> valueCallback;
+    /**
+     * 所有参与的资源都获取失败
+     */
+    private final Runnable onAllFailed;
+
+    private final AtomicBoolean finished = new AtomicBoolean(false);
+    private final AtomicInteger pending = new AtomicInteger(0);
+
+    BorrowRace(HaProxyMapping haProxyMapping, EventLoop eventLoop, boolean reuseKeepAlive,
+               boolean recycleReplacedUpstream, ValueCallback<Channel> valueCallback, Runnable onAllFailed) {
+        this.haProxyMapping = haProxyMapping;
+        this.eventLoop = eventLoop;
+        this.reuseKeepAlive = reuseKeepAlive;
+        this.recycleReplacedUpstream = recycleReplacedUpstream;
+        this.valueCallback = valueCallback;
+        this.onAllFailed = onAllFailed;
+    }
+
+    boolean isFinished() {
+        return finished.get();
+    }
+
+    /**
+     * @return 竞争已经结束时返回false，此时调用方需要自己处理传入的资源
+     */
+    boolean start(Upstream upstream, boolean standby) {
+        if (finished.get()) {
+            return false;
+        }
+        pending.incrementAndGet();
+        borrow(upstream, standby);
+        return true;
+    }
+
+    void startAll(List<Upstream> standbyList) {
+        // 先计数再发起，避免第一个结果回来的时候pending提前归零
+        pending.addAndGet(standbyList.size());
+        for (Upstream standby : standbyList) {
+            borrow(standby, true);
+        }
+    }
+
+    private void borrow(Upstream upstream, boolean standby) {
+        upstream.borrowConnect(eventLoop, reuseKeepAlive && !standby, haProxyMapping.getMetrics(),
+                value -> onResult(upstream, standby, value));
+    }
+
+    private void onResult(Upstream upstream, boolean standby, Channel value) {
+        Source source = haProxyMapping.getSource();
+        if (value != null) {
+            if (finished.compareAndSet(false, true)) {
+                if (standby) {
+                    Upstream replaced = haProxyMapping.switchUpstream(upstream);
+                    if (recycleReplacedUpstream && replaced != null) {
+                        source.returnStandby(replaced);
+                    }
+                }
+                valueCallback.onReceiveValue(value);
+            } else {
+                upstream.returnConnect(value);
+                if (standby) {
+                    source.returnStandby(upstream);
+                }
+            }
+        } else if (standby) {
+            // 连接都获取不要，要他何用
+            upstream.doDestroy();
+        }
+
+        if (pending.decrementAndGet() == 0 && finished.compareAndSet(false, true)) {
+            onAllFailed.run();
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package com.virjar.spider.proxy.ha.core;
+
+import io.netty.channel.Channel;
+import io.netty.channel.EventLoop;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 上游连接缓存，按照连接所在的eventLoop分区。借用时优先返回和用户连接同一个eventLoop的连接，
+ * 这样转发数据时不需要跨线程
+ * <br>
+ * 线程安全且无锁，借用和归还直接在调用方线程完成，不需要经过Source的looper。
+ * 每个分区是一个无锁的栈（后进先出，优先使用最近产生的连接），数量单独计数，避免遍历链表
+ */
+class ChannelCache {
+    private final ConcurrentHashMap<EventLoop, Partition> partitions = new ConcurrentHashMap<>();
+    private final AtomicInteger size = new AtomicInteger(0);
+
+    private static class Partition {
+        private final ConcurrentLinkedDeque<Channel> channels = new ConcurrentLinkedDeque<>();
+        private final AtomicInteger size = new AtomicInteger(0);
+    }
+
+    void add(Channel channel) {
+        Partition partition = partitions.computeIfAbsent(channel.eventLoop(), eventLoop -> new Partition());
+        // 这里，优先使用最近产生的连接
+        partition.channels.addFirst(channel);
+        partition.size.incrementAndGet();
+        size.incrementAndGet();
+    }
+
+    /**
+     * @param preferEventLoop 优先选择的eventLoop，为null或者该eventLoop下没有连接时，返回任意分区的连接
+     */
+    Channel poll(EventLoop preferEventLoop) {
+        if (preferEventLoop != null) {
+            Partition partition = partitions.get(preferEventLoop);
+            if (partition != null) {
+                Channel channel = poll(partition);
+                if (channel != null) {
+                    return channel;
+                }
+            }
+        }
+        for (Partition partition : partitions.values()) {
+            Channel channel = poll(partition);
+            if (channel != null) {
+                return channel;
+            }
+        }
+        return null;
+    }
+
+    private Channel poll(Partition partition) {
+        Channel channel = partition.channels.pollFirst();
+        if (channel != null) {
+            partition.size.decrementAndGet();
+            size.decrementAndGet();
+        }
+        return channel;
+    }
+
+    void remove(Channel channel) {
+        Partition partition = partitions.get(channel.eventLoop());
+        if (partition != null && partition.channels.remove(channel)) {
+            partition.size.decrementAndGet();
+            size.decrementAndGet();
+        }
+    }
+
+    int size() {
+        return size.get();
+    }
+
+    int size(EventLoop eventLoop) {
+        Partition partition = partitions.get(eventLoop);
+        return partition == null ? 0 : partition.size.get();
+    }
+
+    /**
+     * 清理掉已经关闭的连接，返回是否还存在可用的连接
+     */
+    boolean purgeInactive() {
+        boolean hasActive = false;
+        for (Partition partition : partitions.values()) {
+            for (Channel channel : partition.channels) {
+                if (channel.isActive()) {
+                    hasActive = true;
+                } else if (partition.channels.remove(channel)) {
+                    partition.size.decrementAndGet();
+                    size.decrementAndGet();
+                }
+            }
+        }
+        return hasActive;
+    }
+}
@@ -1,55 +1,130 @@
 package com.virjar.spider.proxy.ha.core;
 
+import com.virjar.spider.proxy.ha.Configs;
+import com.virjar.spider.proxy.ha.handlers.IdleReaper;
 import com.virjar.spider.proxy.ha.handlers.ProxyProtocolRouter;
 import com.virjar.spider.proxy.ha.safethread.ValueCallback;
+import com.virjar.spider.proxy.ha.utils.NettyTransport;
 import io.netty.bootstrap.ServerBootstrap;
 import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelPipeline;
-import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.EventLoop;
+import io.netty.channel.EventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
-import io.netty.handler.timeout.IdleStateHandler;
 import io.netty.util.AttributeKey;
-import io.netty.util.concurrent.DefaultThreadFactory;
 import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
 
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
 @Slf4j
 public class HaProxyMapping {
     private static ServerBootstrap httpProxyBootstrap;
+    private static EventLoopGroup serverWorkerGroup;
     @Getter
     private final Integer localMappingPort;
     @Getter
-    private Upstream upstream;
+    private volatile Upstream upstream;
     @Getter
     private final Source source;
-    private Channel serverChannel;
+    /**
+     * 端口上的监听channel，开启SO_REUSEPORT时同一个端口有多个
+     */
+    private final List<Channel> serverChannels = new CopyOnWriteArrayList<>();
+    private volatile boolean closed = false;
+    /**
+     * 端口维度的计数，上游资源切换之后继续累计
+     */
+    @Getter
+    private final TrafficMetrics metrics;
+    /**
+     * 连续收到的质量差反馈数量
+     */
+    private final AtomicInteger badFeedbackCount = new AtomicInteger(0);
+
+    /**
+     * 所有已经开启代理服务的端口，管理接口通过端口直接查询，不需要遍历数据源
+     */
+    private static final ConcurrentHashMap<Integer, HaProxyMapping> establishedMappings = new ConcurrentHashMap<>();
+
+    /**
+     * 当前映射的上游资源被销毁时，切换到备用资源。每次切换都会注册到新的资源上，同一个实例重复注册只会保留一个
+     */
+    private final Upstream.UpstreamDestroyEvent upstreamDestroyListener = this::onUpstreamDestroyed;
 
     private static final AttributeKey<HaProxyMapping> proxyMappingKey = AttributeKey.newInstance("haProxyMapping");
 
     public HaProxyMapping(Integer localMappingPort, Upstream upstream, Source source) {
+        this(localMappingPort, upstream, source, new TrafficMetrics());
+    }
+
+    HaProxyMapping(Integer localMappingPort, Upstream upstream, Source source, TrafficMetrics metrics) {
         this.localMappingPort = localMappingPort;
         this.upstream = upstream;
         this.source = source;
+        this.metrics = metrics;
     }
 
     private void onProxyServerEstablish(Channel channel) {
         // 服务端的channel
         channel.attr(proxyMappingKey).set(this);
-        serverChannel = channel;
+        serverChannels.add(channel);
+        establishedMappings.put(localMappingPort, this);
+
+        upstream.addDestroyListener(upstreamDestroyListener);
+
+    }
+
+    /**
+     * 通过端口查询映射关系，端口没有开启代理服务时返回null
+     */
+    public static HaProxyMapping getByPort(int port) {
+        return establishedMappings.get(port);
+    }
+
+    /**
+     * 所有已经开启代理服务的端口映射
+     */
+    public static Collection<HaProxyMapping> establishedMappings() {
+        return Collections.unmodifiableCollection(establishedMappings.values());
+    }
 
-        upstream.addDestroyListener(upstream -> source.requestRoute(value -> {
+    private void onUpstreamDestroyed(Upstream destroyedUpstream) {
+        if (destroyedUpstream != this.upstream) {
+            // 已经切换到其他资源了
+            return;
+        }
+        source.requestRoute(value -> {
             if (value == null) {
                 // 没有成功获得ip，关闭当前
-                HaProxyMapping.this.doClose();
+                doClose();
                 return;
             }
-            source.doUpstreamRoute(HaProxyMapping.this, HaProxyMapping.this.upstream, value);
-            HaProxyMapping.this.upstream = value;
-        }));
+            switchUpstream(value);
+        });
+    }
+
+    /**
+     * 用户连接单独绑定一个映射关系（会话模式），之后HaProxyMapping.get(channel)返回这个映射，而不是端口上的映射
+     */
+    static void attach(Channel channel, HaProxyMapping haProxyMapping) {
+        channel.attr(proxyMappingKey).set(haProxyMapping);
+    }
 
+    /**
+     * 开启一个代理服务端口，不对应具体的上游资源（会话模式的端口）
+     */
+    static ChannelFuture bindServer(int port) {
+        return httpProxyBootstrap.bind(port);
     }
 
     public static HaProxyMapping get(Channel channel) {
@@ -65,6 +140,15 @@ public class HaProxyMapping {
 
 
     public void startMapping() {
+        if (NettyTransport.serverBindCount() > 1) {
+            try {
+                NettyTransport.probeExclusiveBind(localMappingPort);
+            } catch (IOException e) {
+                log.error("can not open proxy server on port:{}", localMappingPort, e);
+                source.onMappingLose(HaProxyMapping.this);
+                return;
+            }
+        }
         httpProxyBootstrap.bind(localMappingPort)
                 .addListener((ChannelFutureListener) channelFuture -> {
                     if (!channelFuture.isSuccess()) {
@@ -75,29 +159,43 @@ public class HaProxyMapping {
 
                     Channel channel = channelFuture.channel();
                     onProxyServerEstablish(channel);
+                    for (int i = 1; i < NettyTransport.serverBindCount(); i++) {
+                        bindReusePort();
+                    }
+                });
+    }
+
+    /**
+     * SO_REUSEPORT额外绑定的监听channel，由内核分配到不同的boss线程上。失败不影响端口服务
+     */
+    private void bindReusePort() {
+        httpProxyBootstrap.bind(localMappingPort)
+                .addListener((ChannelFutureListener) channelFuture -> {
+                    if (!channelFuture.isSuccess()) {
+                        log.warn("reuse port bind failed on port:{}", localMappingPort, channelFuture.cause());
+                        return;
+                    }
+                    Channel channel = channelFuture.channel();
+                    channel.attr(proxyMappingKey).set(this);
+                    serverChannels.add(channel);
+                    if (closed) {
+                        // 绑定过程中端口已经关闭
+                        channel.close();
+                    }
                 });
     }
 
     public static void staticInit() {
         httpProxyBootstrap = new ServerBootstrap();
-        NioEventLoopGroup serverBossGroup = new NioEventLoopGroup(
-                0,
-                new DefaultThreadFactory("HttpProxy-boss-group" + DefaultThreadFactory.toPoolName(NioEventLoopGroup.class))
-        );
-        NioEventLoopGroup serverWorkerGroup = new NioEventLoopGroup(
-                0,
-                new DefaultThreadFactory("HttpProxy-worker-group" + DefaultThreadFactory.toPoolName(NioEventLoopGroup.class))
-        );
-        httpProxyBootstrap.group(serverBossGroup, serverWorkerGroup)
-                .channel(NioServerSocketChannel.class)
-                .childHandler(new ChannelInitializer<SocketChannel>() {
+        EventLoopGroup serverBossGroup = NettyTransport.newEventLoopGroup("HttpProxy-boss-group");
+        serverWorkerGroup = NettyTransport.newEventLoopGroup("HttpProxy-worker-group");
+        httpProxyBootstrap.group(serverBossGroup, serverWorkerGroup);
+        NettyTransport.configServerBootstrap(httpProxyBootstrap);
+        httpProxyBootstrap.childHandler(new ChannelInitializer<SocketChannel>() {
                     @Override
                     public void initChannel(SocketChannel ch) {
                         ChannelPipeline pipeline = ch.pipeline();
-                        pipeline.addLast(
-                                "idle",
-                                new IdleStateHandler(0, 0, 70)
-                        );
+                        pipeline.addLast(IdleReaper.NAME, new IdleReaper());
                         // 需要支持socks4/socks5/http/https
                         // 所以这里需要判定协议类型
                         pipeline.addLast(new ProxyProtocolRouter());
@@ -108,54 +206,178 @@ public class HaProxyMapping {
     }
 
 
+    /**
+     * 用户连接所在的eventLoop组
+     */
+    public static EventLoopGroup workerGroup() {
+        return serverWorkerGroup;
+    }
+
+
     public String resourceKey() {
         return upstream.resourceKey();
     }
 
 
     public void doClose() {
-        serverChannel.close();
+        closed = true;
+        establishedMappings.remove(localMappingPort, this);
+        for (Channel serverChannel : serverChannels) {
+            serverChannel.close();
+        }
         source.onMappingLose(this);
     }
 
 
-    public void borrowConnect(ValueCallback<Channel> valueCallback) {
-        upstream.borrowConnect(value -> {
-            if (value != null) {
-                valueCallback.onReceiveValue(value);
-                return;
-            }
-            // 只要有空闲代理资源，那么代理connect永远不会失败
-            // 之后就是如何处理优化延时问题了
-            failover(valueCallback, 0);
-        });
+    /**
+     * @param eventLoop 用户连接所在的eventLoop
+     */
+    public void borrowConnect(EventLoop eventLoop, ValueCallback<Channel> valueCallback) {
+        borrowConnect(eventLoop, false, valueCallback);
     }
 
-    private void failover(ValueCallback<Channel> valueCallback, int retry) {
-        source.requestRoute(tmpUpstream -> {
-            if (tmpUpstream == null) {
+    /**
+     * @param reuseKeepAlive 是否可以复用http请求归还的keep-alive连接
+     */
+    public void borrowConnect(EventLoop eventLoop, boolean reuseKeepAlive, ValueCallback<Channel> valueCallback) {
+        // 只要有空闲代理资源，那么代理connect永远不会失败
+        // 之后就是如何处理优化延时问题了
+        BorrowRace borrowRace = new BorrowRace(this, eventLoop, reuseKeepAlive, true, valueCallback,
+                () -> failover(eventLoop, valueCallback, 0));
+        borrowRace.start(upstream, false);
+
+        if (Configs.hedgeDelayMillis > 0) {
+            // 对冲：当前资源在指定时间内没有拿到连接，那么同时在一个备用资源上获取连接，谁先成功用谁
+            source.getLooper().postDelay(() -> {
+                if (borrowRace.isFinished()) {
+                    return;
+                }
+                source.requestRoute(standby -> {
+                    if (standby != null && !borrowRace.start(standby, true)) {
+                        source.returnStandby(standby);
+                    }
+                });
+            }, Configs.hedgeDelayMillis);
+        }
+    }
+
+    private static final int MAX_FAILOVER_ROUND = 5;
+
+    private void failover(EventLoop eventLoop, ValueCallback<Channel> valueCallback, int round) {
+        metrics.onFailover();
+        source.requestRoute(Math.max(1, Configs.failoverParallelism), standbyList -> {
+            if (standbyList.isEmpty()) {
                 log.warn("borrow failed and no available upstream resource");
                 valueCallback.onReceiveValue(null);
                 return;
             }
-            tmpUpstream.borrowConnect(value -> {
-                if (value != null) {
-                    source.doUpstreamRoute(HaProxyMapping.this, HaProxyMapping.this.upstream, tmpUpstream);
-                    HaProxyMapping.this.upstream = tmpUpstream;
-                    valueCallback.onReceiveValue(value);
+            // 多个备用资源同时获取连接，而不是一个一个的尝试
+            new BorrowRace(this, eventLoop, false, false, valueCallback, () -> {
+                if (round + 1 >= MAX_FAILOVER_ROUND) {
+                    log.warn("borrow failed with max failed retry :" + round);
+                    valueCallback.onReceiveValue(null);
                     return;
                 }
+                failover(eventLoop, valueCallback, round + 1);
+            }).startAll(standbyList);
+        });
+    }
 
-                // 连接都获取不要，要他何用
-                tmpUpstream.doDestroy();
+    /**
+     * 上游握手失败，同时记录在端口和连接所属的上游资源上
+     */
+    public void onHandshakeFailed(Channel upstreamChannel) {
+        metrics.onHandshakeFailed();
+        Upstream owner = Upstream.owner(upstreamChannel);
+        if (owner != null) {
+            owner.getMetrics().onHandshakeFailed();
+            owner.getScore().onFailure();
+        }
+    }
 
-                if (retry > 3) {
-                    log.warn("borrow failed with max failed retry :" + retry);
-                    valueCallback.onReceiveValue(null);
-                    return;
-                }
-                failover(valueCallback, retry + 1);
-            });
+    /**
+     * 上游握手成功，握手耗时计入资源评分
+     */
+    public void onHandshakeSuccess(Channel upstreamChannel, long costMillis) {
+        Upstream owner = Upstream.owner(upstreamChannel);
+        if (owner != null) {
+            owner.getScore().onHandshake(costMillis);
+        }
+    }
+
+    /**
+     * 主动把端口切换到一个备用资源上，被替换下来的资源放到备用池的末尾，而不是销毁。
+     * 已经建立的隧道不受影响，之后的新连接使用新的资源
+     *
+     * @param valueCallback 切换之后的资源，没有可用的备用资源时回调null。在looper中执行
+     */
+    public void forceSwitch(ValueCallback<Upstream> valueCallback) {
+        source.requestRoute(standby -> {
+            if (standby == null) {
+                log.warn("force switch port:{} failed, no available upstream resource", localMappingPort);
+                valueCallback.onReceiveValue(null);
+                return;
+            }
+            Upstream replaced = switchUpstream(standby);
+            if (replaced != null) {
+                // 业务方认为这个资源有问题，降低评分，避免马上又被选中
+                replaced.getScore().onFailure();
+                source.returnStandby(replaced);
+            }
+            metrics.onForcedSwitch();
+            badFeedbackCount.set(0);
+            valueCallback.onReceiveValue(standby);
         });
     }
+
+    /**
+     * 业务方反馈当前出口的质量
+     *
+     * @param outIp 反馈针对的出口ip，为空表示当前出口。和当前出口不一致说明端口已经切换过，忽略这次反馈
+     * @return 是否因为这次反馈触发了切换
+     */
+    public boolean onFeedback(boolean success, String outIp) {
+        if (outIp != null && !outIp.equals(upstream.getOutIp())) {
+            return false;
+        }
+        if (success) {
+            badFeedbackCount.set(0);
+            return false;
+        }
+        upstream.getScore().onFailure();
+        if (Configs.feedbackSwitchThreshold <= 0
+                || badFeedbackCount.incrementAndGet() != Configs.feedbackSwitchThreshold) {
+            // 只有刚好达到阈值的那一次反馈触发切换，避免并发的反馈触发多次切换
+            return false;
+        }
+        forceSwitch(value -> {
+            if (value == null) {
+                badFeedbackCount.set(0);
+            }
+        });
+        return true;
+    }
+
+    /**
+     * 端口映射切换到新的上游资源
+     *
+     * @return 被替换下来的资源
+     */
+    Upstream switchUpstream(Upstream newUpstream) {
+        Upstream old = this.upstream;
+        if (old == newUpstream) {
+            return null;
+        }
+        this.upstream = newUpstream;
+        onUpstreamSwitched(old, newUpstream);
+        return old;
+    }
+
+    /**
+     * 切换之后更新Source中的路由，并且监听新资源的销毁
+     */
+    void onUpstreamSwitched(Upstream old, Upstream newUpstream) {
+        source.doUpstreamRoute(this, old, newUpstream);
+        newUpstream.addDestroyListener(upstreamDestroyListener);
+    }
 }
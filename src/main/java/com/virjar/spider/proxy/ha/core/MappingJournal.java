@@ -0,0 +1,235 @@
+package com.virjar.spider.proxy.ha.core;
+
+import com.virjar.spider.proxy.ha.safethread.Looper;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * 端口映射和备用池的持久化，重启之后直接按照上一次的映射关系绑定端口，不需要等待资源下载和探测
+ * <br>
+ * 文件是追加写的日志，每行一条记录：
+ * <pre>
+ * M 端口 ip:port 出口ip    端口映射到资源
+ * U 端口                    端口失去映射
+ * S ip:port 出口ip          资源进入备用池
+ * R ip:port                 资源离开备用池（被取走或者被销毁）
+ * </pre>
+ * 启动时重放日志得到最后的状态，之后重写一份只包含当前状态的文件；追加的记录远多于当前状态时同样重写
+ * <br>
+ * 只能在Source的looper中访问，写入在looper中合并之后延时flush，进程崩溃最多丢失最近一秒的变更
+ */
+@Slf4j
+class MappingJournal {
+    private static final long FLUSH_DELAY_MILLIS = 1000;
+    private static final int MIN_COMPACT_RECORDS = 1024;
+
+    private final File file;
+    private final Looper looper;
+    private Writer writer;
+    private boolean flushScheduled = false;
+    private int appendedRecords = 0;
+
+    /**
+     * 日志对应的当前状态，key为端口
+     */
+    private final TreeMap<Integer, Record> ports = new TreeMap<>();
+    /**
+     * 备用池，key为ip:port，按进入备用池的顺序
+     */
+    private final LinkedHashMap<String, Record> standby = new LinkedHashMap<>();
+
+    static class Record {
+        final String resourceKey;
+        final String outIp;
+
+        Record(String resourceKey, String outIp) {
+            this.resourceKey = resourceKey;
+            this.outIp = outIp;
+        }
+
+        String host() {
+            return resourceKey.substring(0, resourceKey.lastIndexOf(':'));
+        }
+
+        int port() {
+            return Integer.parseInt(resourceKey.substring(resourceKey.lastIndexOf(':') + 1));
+        }
+    }
+
+    MappingJournal(File file, Looper looper) {
+        this.file = file;
+        this.looper = looper;
+    }
+
+    /**
+     * 读取上一次的状态并重写日志，之后的变更追加到新的日志上。文件不存在或者损坏的行直接忽略
+     */
+    void load() {
+        looper.checkLooper();
+        if (file.exists()) {
+            try (BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    replay(line);
+                }
+            } catch (IOException e) {
+                log.warn("read mapping journal failed:{}", file, e);
+            }
+        }
+        compact();
+    }
+
+    private void replay(String line) {
+        String[] parts = line.trim().split(" ");
+        try {
+            switch (parts[0]) {
+                case "M":
+                    ports.put(Integer.parseInt(parts[1]), new Record(parts[2], parts[3]));
+                    standby.remove(parts[2]);
+                    break;
+                case "U":
+                    ports.remove(Integer.parseInt(parts[1]));
+                    break;
+                case "S":
+                    standby.put(parts[1], new Record(parts[1], parts[2]));
+                    break;
+                case "R":
+                    standby.remove(parts[1]);
+                    break;
+                default:
+                    // 空行或者不认识的记录
+            }
+        } catch (RuntimeException e) {
+            // 进程崩溃时最后一行可能只写了一半
+            log.warn("ignore broken mapping journal line:{}", line);
+        }
+    }
+
+    Map<Integer, Record> getPorts() {
+        return ports;
+    }
+
+    Map<String, Record> getStandby() {
+        return standby;
+    }
+
+    void onMapped(int port, Upstream upstream) {
+        ports.put(port, new Record(upstream.resourceKey(), upstream.getOutIp()));
+        standby.remove(upstream.resourceKey());
+        append("M " + port + " " + upstream.resourceKey() + " " + upstream.getOutIp());
+    }
+
+    void onUnmapped(int port) {
+        if (ports.remove(port) != null) {
+            append("U " + port);
+        }
+    }
+
+    void onStandbyAdded(Upstream upstream) {
+        standby.put(upstream.resourceKey(), new Record(upstream.resourceKey(), upstream.getOutIp()));
+        append("S " + upstream.resourceKey() + " " + upstream.getOutIp());
+    }
+
+    void onStandbyRemoved(Upstream upstream) {
+        if (standby.remove(upstream.resourceKey()) != null) {
+            append("R " + upstream.resourceKey());
+        }
+    }
+
+    private void append(String record) {
+        if (writer == null) {
+            return;
+        }
+        try {
+            writer.write(record);
+            writer.write('\n');
+        } catch (IOException e) {
+            onWriteFailed(e);
+            return;
+        }
+        appendedRecords++;
+        if (appendedRecords > Math.max(MIN_COMPACT_RECORDS, (ports.size() + standby.size()) * 4)) {
+            compact();
+            return;
+        }
+        if (!flushScheduled) {
+            flushScheduled = true;
+            looper.postDelay(this::flush, FLUSH_DELAY_MILLIS);
+        }
+    }
+
+    private void flush() {
+        flushScheduled = false;
+        if (writer == null) {
+            return;
+        }
+        try {
+            writer.flush();
+        } catch (IOException e) {
+            onWriteFailed(e);
+        }
+    }
+
+    /**
+     * 把当前状态写到临时文件再替换，替换之前的日志始终是完整的
+     */
+    private void compact() {
+        closeWriter();
+        File tmp = new File(file.getPath() + ".tmp");
+        try {
+            File parent = file.getAbsoluteFile().getParentFile();
+            if (parent != null && !parent.exists() && !parent.mkdirs()) {
+                throw new IOException("can not create directory: " + parent);
+            }
+            try (Writer tmpWriter = new BufferedWriter(
+                    new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8))) {
+                for (Map.Entry<Integer, Record> entry : ports.entrySet()) {
+                    tmpWriter.write("M " + entry.getKey() + " " + entry.getValue().resourceKey
+                            + " " + entry.getValue().outIp + "\n");
+                }
+                for (Record record : standby.values()) {
+                    tmpWriter.write("S " + record.resourceKey + " " + record.outIp + "\n");
+                }
+            }
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8));
+            appendedRecords = 0;
+        } catch (IOException e) {
+            onWriteFailed(e);
+        }
+    }
+
+    private void onWriteFailed(IOException e) {
+        // 持久化只是为了重启加速，写失败不影响服务，关闭之后不再写入
+        log.error("write mapping journal failed, disable it:{}", file, e);
+        closeWriter();
+    }
+
+    private void closeWriter() {
+        if (writer == null) {
+            return;
+        }
+        try {
+            writer.close();
+        } catch (IOException e) {
+            log.warn("close mapping journal failed:{}", file, e);
+        }
+        writer = null;
+    }
+}
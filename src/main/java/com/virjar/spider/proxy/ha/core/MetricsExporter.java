@@ -0,0 +1,326 @@
+package com.virjar.spider.proxy.ha.core;
+
+import com.virjar.spider.proxy.ha.Configs;
+import com.virjar.spider.proxy.ha.safethread.Looper;
+import com.virjar.spider.proxy.ha.safethread.ValueCallback;
+import com.virjar.spider.proxy.ha.utils.ListenQueueStats;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToLongFunction;
+
+/**
+ * Prometheus文本格式的指标导出，映射端口上的直连请求 GET /metrics 访问
+ * <br>
+ * 计数器的求和和文本拼装在单独的线程中完成，不占用eventLoop和looper。
+ * 上游资源维度只导出当前映射在端口上的资源，备用池中的资源只统计数量，避免指标基数随着资源池膨胀
+ */
+@Slf4j
+public class MetricsExporter {
+    public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private static final ExecutorService exportExecutor = Executors.newSingleThreadExecutor(
+            new DefaultThreadFactory("metrics-exporter", true));
+
+    private static final double NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private enum TrafficFamily {
+        TUNNELS_ACTIVE("tunnels_active", "gauge", "Tunnels currently open", TrafficMetrics::getActiveTunnels),
+        TUNNELS("tunnels_total", "counter", "Tunnels opened", TrafficMetrics::getTunnels),
+        UPLOAD_BYTES("upload_bytes_total", "counter", "Bytes relayed from user to upstream", TrafficMetrics::getUploadBytes),
+        DOWNLOAD_BYTES("download_bytes_total", "counter", "Bytes relayed from upstream to user", TrafficMetrics::getDownloadBytes),
+        RELAY_WRITES("relay_writes_total", "counter", "Writes issued by tunnel relays", TrafficMetrics::getRelayWrites),
+        RELAY_FLUSHES("relay_flushes_total", "counter", "Flushes issued by tunnel relays, each at least one write syscall", TrafficMetrics::getRelayFlushes),
+        RELAY_PAUSED_SECONDS("relay_paused_seconds_total", "counter", "Time tunnel relays stopped reading because the peer was not writable",
+                TrafficMetrics::getRelayPausedNanos, true),
+        BORROW_HITS("borrow_hits_total", "counter", "Connection borrows served from the warm cache", TrafficMetrics::getBorrowHits),
+        BORROW_MISSES("borrow_misses_total", "counter", "Connection borrows that had to dial upstream", TrafficMetrics::getBorrowMisses),
+        CONNECT_FAILURES("connect_failures_total", "counter", "Failed connects to upstream", TrafficMetrics::getConnectFailures),
+        HANDSHAKE_FAILURES("handshake_failures_total", "counter", "Failed proxy handshakes with upstream", TrafficMetrics::getHandshakeFailures),
+        FAILOVERS("failovers_total", "counter", "Failover rounds after the mapped upstream failed", TrafficMetrics::getFailovers),
+        FORCED_SWITCHES("forced_switches_total", "counter", "Switches requested through the management api", TrafficMetrics::getForcedSwitches);
+
+        private final String name;
+        private final String type;
+        private final String help;
+        private final ToLongFunction<TrafficMetrics> value;
+        /**
+         * 计数器的单位是纳秒，导出时转换为秒
+         */
+        private final boolean nanos;
+
+        TrafficFamily(String name, String type, String help, ToLongFunction<TrafficMetrics> value) {
+            this(name, type, help, value, false);
+        }
+
+        TrafficFamily(String name, String type, String help, ToLongFunction<TrafficMetrics> value, boolean nanos) {
+            this.name = name;
+            this.type = type;
+            this.help = help;
+            this.value = value;
+            this.nanos = nanos;
+        }
+
+        Object valueOf(TrafficMetrics metrics) {
+            long raw = value.applyAsLong(metrics);
+            if (nanos) {
+                return raw / NANOS_PER_SECOND;
+            }
+            return raw;
+        }
+    }
+
+    /**
+     * 导出时的一个端口映射，端口上的上游资源可能随时切换，这里先固定下来
+     */
+    private static class PortSnapshot {
+        private final String sourceName;
+        private final String port;
+        private final TrafficMetrics portMetrics;
+        private final String upstreamKey;
+        private final TrafficMetrics upstreamMetrics;
+
+        PortSnapshot(Source source, HaProxyMapping haProxyMapping) {
+            Upstream upstream = haProxyMapping.getUpstream();
+            this.sourceName = source.getName();
+            this.port = String.valueOf(haProxyMapping.getLocalMappingPort());
+            this.portMetrics = haProxyMapping.getMetrics();
+            this.upstreamKey = upstream.resourceKey();
+            this.upstreamMetrics = upstream.getMetrics();
+        }
+    }
+
+    /**
+     * 在导出线程中生成指标文本，回调也在导出线程中执行。失败时回调null
+     */
+    public static void scrape(ValueCallback<String> callback) {
+        exportExecutor.execute(() -> {
+            String text;
+            try {
+                text = render();
+            } catch (Exception e) {
+                log.error("render metrics failed", e);
+                text = null;
+            }
+            callback.onReceiveValue(text);
+        });
+    }
+
+    private static String render() {
+        List<Source> sources = Configs.sourceList == null ? new ArrayList<>() : Configs.sourceList;
+        List<PortSnapshot> ports = new ArrayList<>();
+        for (Source source : sources) {
+            for (HaProxyMapping haProxyMapping : source.mappings()) {
+                ports.add(new PortSnapshot(source, haProxyMapping));
+            }
+        }
+
+        StringBuilder sb = new StringBuilder(4096 + ports.size() * 1024);
+        for (TrafficFamily family : TrafficFamily.values()) {
+            String name = "spider_proxy_port_" + family.name;
+            header(sb, name, family.type, family.help + " per mapping port");
+            for (PortSnapshot port : ports) {
+                sample(sb, name, family.valueOf(port.portMetrics),
+                        "source", port.sourceName, "port", port.port);
+            }
+        }
+        Map<Integer, Long> acceptQueueDepth = ListenQueueStats.acceptQueueDepth();
+        if (!acceptQueueDepth.isEmpty()) {
+            header(sb, "spider_proxy_port_accept_queue", "gauge", "Connections waiting in the accept queue per mapping port");
+            for (PortSnapshot port : ports) {
+                sample(sb, "spider_proxy_port_accept_queue",
+                        acceptQueueDepth.getOrDefault(Integer.parseInt(port.port), 0L),
+                        "source", port.sourceName, "port", port.port);
+            }
+        }
+        Map<String, Long> listenCounters = ListenQueueStats.listenOverflowCounters();
+        if (listenCounters.containsKey("ListenOverflows")) {
+            header(sb, "spider_proxy_listen_overflows_total", "counter",
+                    "Times an accept queue overflowed, for all listen sockets of the host");
+            sample(sb, "spider_proxy_listen_overflows_total", listenCounters.get("ListenOverflows"));
+        }
+        if (listenCounters.containsKey("ListenDrops")) {
+            header(sb, "spider_proxy_listen_drops_total", "counter",
+                    "Connections dropped by listen sockets, for all listen sockets of the host");
+            sample(sb, "spider_proxy_listen_drops_total", listenCounters.get("ListenDrops"));
+        }
+        for (TrafficFamily family : TrafficFamily.values()) {
+            if (family == TrafficFamily.FAILOVERS || family == TrafficFamily.FORCED_SWITCHES) {
+                // failover和切换是端口维度的行为
+                continue;
+            }
+            String name = "spider_proxy_upstream_" + family.name;
+            header(sb, name, family.type, family.help + " per upstream currently mapped on a port");
+            for (PortSnapshot port : ports) {
+                sample(sb, name, family.valueOf(port.upstreamMetrics),
+                        "source", port.sourceName, "port", port.port, "upstream", port.upstreamKey);
+            }
+        }
+
+        header(sb, "spider_proxy_source_standby_upstreams", "gauge", "Upstreams waiting in the standby pool");
+        for (Source source : sources) {
+            sample(sb, "spider_proxy_source_standby_upstreams", source.getStandbyDepth(), "source", source.getName());
+        }
+        header(sb, "spider_proxy_source_mapped_ports", "gauge", "Ports currently mapped to an upstream");
+        for (Source source : sources) {
+            sample(sb, "spider_proxy_source_mapped_ports", source.mappings().size(), "source", source.getName());
+        }
+        header(sb, "spider_proxy_source_upstream_destroyed_total", "counter", "Upstreams detected offline and destroyed");
+        for (Source source : sources) {
+            sample(sb, "spider_proxy_source_upstream_destroyed_total", source.getUpstreamDestroyCount(),
+                    "source", source.getName());
+        }
+        header(sb, "spider_proxy_source_probe_queue_depth", "gauge", "Upstream probes waiting for a concurrency slot");
+        for (Source source : sources) {
+            sample(sb, "spider_proxy_source_probe_queue_depth", source.getProbeQueueDepth(), "source", source.getName());
+        }
+        header(sb, "spider_proxy_source_probes_total", "counter", "Upstream probes sent over the network");
+        for (Source source : sources) {
+            sample(sb, "spider_proxy_source_probes_total", source.getProbeCount(), "source", source.getName());
+        }
+        header(sb, "spider_proxy_source_probe_cache_hits_total", "counter", "Upstream probes answered from the result cache");
+        for (Source source : sources) {
+            sample(sb, "spider_proxy_source_probe_cache_hits_total", source.getProbeCacheHitCount(),
+                    "source", source.getName());
+        }
+        header(sb, "spider_proxy_source_refreshes_total", "counter", "Downloads of the source_url resource list");
+        for (Source source : sources) {
+            sample(sb, "spider_proxy_source_refreshes_total", source.getRefreshCount(), "source", source.getName());
+        }
+        header(sb, "spider_proxy_source_demand_refreshes_total", "counter",
+                "Refreshes brought forward because the standby pool ran low");
+        for (Source source : sources) {
+            sample(sb, "spider_proxy_source_demand_refreshes_total", source.getDemandRefreshCount(),
+                    "source", source.getName());
+        }
+        header(sb, "spider_proxy_source_preemptive_auth", "gauge",
+                "Whether the http upstream honors Proxy-Authorization sent with the first CONNECT");
+        for (Source source : sources) {
+            sample(sb, "spider_proxy_source_preemptive_auth", 1,
+                    "source", source.getName(), "state", source.getPreemptiveAuthPolicy().toString());
+        }
+
+        renderSessions(sb, sources);
+        renderLoopers(sb);
+        return sb.toString();
+    }
+
+    private static void renderSessions(StringBuilder sb, List<Source> sources) {
+        List<SessionTable> sessionTables = new ArrayList<>();
+        for (Source source : sources) {
+            if (source.getSessionTable() != null) {
+                sessionTables.add(source.getSessionTable());
+            }
+        }
+        if (sessionTables.isEmpty()) {
+            return;
+        }
+        header(sb, "spider_proxy_source_sessions", "gauge", "Live sessions on the session ports");
+        for (SessionTable sessionTable : sessionTables) {
+            sample(sb, "spider_proxy_source_sessions", sessionTable.getSessionCount(),
+                    "source", sessionTable.getSource().getName());
+        }
+        header(sb, "spider_proxy_source_session_upstreams", "gauge", "Upstreams bound to at least one session");
+        for (SessionTable sessionTable : sessionTables) {
+            sample(sb, "spider_proxy_source_session_upstreams", sessionTable.getUpstreamCount(),
+                    "source", sessionTable.getSource().getName());
+        }
+        for (TrafficFamily family : TrafficFamily.values()) {
+            if (family == TrafficFamily.FORCED_SWITCHES) {
+                continue;
+            }
+            String name = "spider_proxy_session_" + family.name;
+            header(sb, name, family.type, family.help + " summed over all sessions");
+            for (SessionTable sessionTable : sessionTables) {
+                sample(sb, name, family.valueOf(sessionTable.getMetrics()),
+                        "source", sessionTable.getSource().getName());
+            }
+        }
+    }
+
+    private static void renderLoopers(StringBuilder sb) {
+        List<Looper> loopers = Looper.allLoopers();
+        header(sb, "spider_proxy_looper_queue_depth", "gauge", "Tasks waiting in the looper queue");
+        for (Looper looper : loopers) {
+            sample(sb, "spider_proxy_looper_queue_depth", looper.getQueueDepth(), "looper", looper.getName());
+        }
+        header(sb, "spider_proxy_looper_tasks_total", "counter", "Tasks executed by the looper");
+        for (Looper looper : loopers) {
+            sample(sb, "spider_proxy_looper_tasks_total", looper.getTaskCount(), "looper", looper.getName());
+        }
+        header(sb, "spider_proxy_looper_slow_tasks_total", "counter", "Looper tasks slower than looper_slow_task_millis");
+        for (Looper looper : loopers) {
+            sample(sb, "spider_proxy_looper_slow_tasks_total", looper.getSlowTaskCount(), "looper", looper.getName());
+        }
+        header(sb, "spider_proxy_looper_task_wait_seconds_total", "counter", "Time tasks spent queued in the looper");
+        for (Looper looper : loopers) {
+            sample(sb, "spider_proxy_looper_task_wait_seconds_total", looper.getTotalWaitNanos() / NANOS_PER_SECOND,
+                    "looper", looper.getName());
+        }
+        header(sb, "spider_proxy_looper_task_wait_seconds_max", "gauge", "Longest time a task spent queued in the looper");
+        for (Looper looper : loopers) {
+            sample(sb, "spider_proxy_looper_task_wait_seconds_max", looper.getMaxWaitNanos() / NANOS_PER_SECOND,
+                    "looper", looper.getName());
+        }
+        header(sb, "spider_proxy_looper_task_run_seconds_total", "counter", "Time spent running looper tasks");
+        for (Looper looper : loopers) {
+            sample(sb, "spider_proxy_looper_task_run_seconds_total", looper.getTotalRunNanos() / NANOS_PER_SECOND,
+                    "looper", looper.getName());
+        }
+        header(sb, "spider_proxy_looper_task_run_seconds_max", "gauge", "Longest looper task run time");
+        for (Looper looper : loopers) {
+            sample(sb, "spider_proxy_looper_task_run_seconds_max", looper.getMaxRunNanos() / NANOS_PER_SECOND,
+                    "looper", looper.getName());
+        }
+    }
+
+    private static void header(StringBuilder sb, String name, String type, String help) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    /**
+     * @param labels 标签名和标签值交替排列
+     */
+    private static void sample(StringBuilder sb, String name, Object value, String... labels) {
+        sb.append(name);
+        if (labels.length > 0) {
+            sb.append('{');
+            for (int i = 0; i < labels.length; i += 2) {
+                if (i > 0) {
+                    sb.append(',');
+                }
+                sb.append(labels[i]).append("=\"");
+                escapeLabelValue(sb, labels[i + 1]);
+                sb.append('"');
+            }
+            sb.append('}');
+        }
+        sb.append(' ').append(value).append('\n');
+    }
+
+    private static void escapeLabelValue(StringBuilder sb, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                case '"':
+                    sb.append("\\\"");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                default:
+                    sb.append(c);
+            }
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package com.virjar.spider.proxy.ha.core;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 学习上游http代理是否认可CONNECT首次携带的Proxy-Authorization（抢先鉴权）
+ * <br>
+ * 部分代理服务器不认首次携带的鉴权信息，一定要先返回407再接受重发的请求；另一些服务器首次携带鉴权就能通过，
+ * 这种服务器返回407说明账号密码错误或者账号失效，重发也没有意义，只会多一个RTT。按照数据源学习：
+ * <ul>
+ *     <li>首次请求直接成功：认可抢先鉴权，之后遇到407直接失败，不再重发</li>
+ *     <li>407之后重发成功：不认可抢先鉴权，之后遇到407都重发，这个结论优先</li>
+ * </ul>
+ * 认可状态下连续多次407直接失败之后回到未知状态重新学习，避免上游行为变化之后一直失败
+ * <br>
+ * 线程安全，状态变化只是影响一次重发，并发更新不需要加锁
+ */
+public class PreemptiveAuthPolicy {
+    private static final int UNKNOWN = 0;
+    private static final int HONORED = 1;
+    private static final int NOT_HONORED = 2;
+    /**
+     * 认可状态下连续多少次407直接失败之后重新学习
+     */
+    private static final int MAX_FAST_FAIL = 8;
+
+    private volatile int state = UNKNOWN;
+    private final AtomicInteger fastFailCount = new AtomicInteger(0);
+
+    /**
+     * 上游返回407之后是否需要重发带鉴权的请求
+     */
+    public boolean retryAfterChallenge() {
+        return state != HONORED;
+    }
+
+    /**
+     * 上游接受了CONNECT
+     *
+     * @param afterChallenge 是否是407之后重发的请求
+     */
+    public void onAccepted(boolean afterChallenge) {
+        fastFailCount.set(0);
+        if (afterChallenge) {
+            state = NOT_HONORED;
+        } else if (state == UNKNOWN) {
+            state = HONORED;
+        }
+    }
+
+    /**
+     * 认可状态下遇到407，没有重发直接失败
+     */
+    public void onChallengeFastFail() {
+        if (fastFailCount.incrementAndGet() >= MAX_FAST_FAIL) {
+            fastFailCount.set(0);
+            state = UNKNOWN;
+        }
+    }
+
+    @Override
+    public String toString() {
+        switch (state) {
+            case HONORED:
+                return "honored";
+            case NOT_HONORED:
+                return "not_honored";
+            default:
+                return "unknown";
+        }
+    }
+}
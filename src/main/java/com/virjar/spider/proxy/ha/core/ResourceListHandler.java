@@ -0,0 +1,65 @@
+package com.virjar.spider.proxy.ha.core;
+
+import org.asynchttpclient.AsyncHandler;
+import org.asynchttpclient.HttpResponseBodyPart;
+import org.asynchttpclient.HttpResponseHeaders;
+import org.asynchttpclient.HttpResponseStatus;
+
+/**
+ * 下载source_url时，响应体每到达一块就交给{@link UpstreamListParser}解析，不在内存中保留完整的响应
+ * <br>
+ * 状态码不是200时直接中断下载，结果中只保留状态码
+ */
+class ResourceListHandler implements AsyncHandler<ResourceListHandler> {
+    private final UpstreamListParser parser = new UpstreamListParser();
+    private int statusCode;
+    private final long startTimestamp = System.currentTimeMillis();
+    private long costMillis;
+
+    @Override
+    public void onThrowable(Throwable t) {
+        // 异常通过future传递给调用方
+    }
+
+    @Override
+    public State onStatusReceived(HttpResponseStatus responseStatus) {
+        statusCode = responseStatus.getStatusCode();
+        return isSuccess() ? State.CONTINUE : State.ABORT;
+    }
+
+    @Override
+    public State onHeadersReceived(HttpResponseHeaders headers) {
+        return State.CONTINUE;
+    }
+
+    @Override
+    public State onBodyPartReceived(HttpResponseBodyPart bodyPart) {
+        parser.feed(bodyPart.getBodyByteBuffer());
+        return State.CONTINUE;
+    }
+
+    @Override
+    public ResourceListHandler onCompleted() {
+        if (isSuccess()) {
+            parser.finish();
+        }
+        costMillis = System.currentTimeMillis() - startTimestamp;
+        return this;
+    }
+
+    boolean isSuccess() {
+        return statusCode == 200;
+    }
+
+    int getStatusCode() {
+        return statusCode;
+    }
+
+    long getCostMillis() {
+        return costMillis;
+    }
+
+    UpstreamListParser getParser() {
+        return parser;
+    }
+}
@@ -0,0 +1,76 @@
+package com.virjar.spider.proxy.ha.core;
+
+import io.netty.channel.Channel;
+import lombok.Getter;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 会话模式下一个会话对应的映射关系，借用连接、failover和端口映射完全一致，区别在于：
+ * <ul>
+ *     <li>不占用端口，多个会话可以共享同一个上游资源</li>
+ *     <li>不监听资源销毁，下一次访问会话时发现资源不可用再重新分配</li>
+ *     <li>同一个数据源的会话共享一份流量统计</li>
+ * </ul>
+ */
+class SessionMapping extends HaProxyMapping {
+    @Getter
+    private final String sessionId;
+    private final SessionTable sessionTable;
+    private volatile long lastAccessTimestamp = System.currentTimeMillis();
+    /**
+     * 绑定在这个会话上还没有关闭的用户连接，大于0时会话不会过期。淘汰时从0改为-1，之后不能再绑定连接
+     */
+    private final AtomicInteger openChannels = new AtomicInteger(0);
+
+    SessionMapping(SessionTable sessionTable, String sessionId, Integer port, Upstream upstream) {
+        super(port, upstream, sessionTable.getSource(), sessionTable.getMetrics());
+        this.sessionTable = sessionTable;
+        this.sessionId = sessionId;
+    }
+
+    void touch() {
+        lastAccessTimestamp = System.currentTimeMillis();
+    }
+
+    /**
+     * 用户连接绑定到会话上，连接关闭时重新开始计算过期时间
+     *
+     * @return 会话已经被淘汰时返回false，连接没有绑定
+     */
+    boolean attachChannel(Channel channel) {
+        while (true) {
+            int count = openChannels.get();
+            if (count < 0) {
+                return false;
+            }
+            if (openChannels.compareAndSet(count, count + 1)) {
+                break;
+            }
+        }
+        touch();
+        HaProxyMapping.attach(channel, this);
+        channel.closeFuture().addListener(future -> {
+            touch();
+            openChannels.decrementAndGet();
+        });
+        return true;
+    }
+
+    /**
+     * 过期的会话标记为已淘汰，和attachChannel竞争：同一时刻有连接绑定进来时淘汰失败
+     */
+    boolean tryExpire(long now, long ttlMillis) {
+        return now - lastAccessTimestamp > ttlMillis && openChannels.compareAndSet(0, -1);
+    }
+
+    @Override
+    void onUpstreamSwitched(Upstream old, Upstream newUpstream) {
+        sessionTable.onSessionSwitched(old, newUpstream);
+    }
+
+    @Override
+    public void doClose() {
+        sessionTable.evict(this);
+    }
+}
@@ -0,0 +1,327 @@
+package com.virjar.spider.proxy.ha.core;
+
+import com.virjar.spider.proxy.ha.Configs;
+import com.virjar.spider.proxy.ha.safethread.Looper;
+import com.virjar.spider.proxy.ha.safethread.ValueCallback;
+import com.virjar.spider.proxy.ha.utils.NettyTransport;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.util.AttributeKey;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 会话模式：少量端口上按照代理用户名区分会话，每个会话粘滞在一个上游资源上，不再需要一个会话占用一个端口
+ * <br>
+ * 会话表是一个ConcurrentHashMap，命中时在用户连接的eventLoop上直接返回；未命中或者会话的资源已经销毁时，
+ * 在Source的looper中分配资源：优先共享一个还没有满（sessions_per_upstream）的会话资源，
+ * 否则通过requestRoute从备用池取一个新的，备用池也没有资源时超额共享负载最低的会话资源。
+ * 会话的所有连接关闭之后超过session_ttl_seconds没有新的连接则淘汰，资源上没有会话之后归还备用池
+ */
+@Slf4j
+public class SessionTable {
+    private static final AttributeKey<SessionTable> SESSION_TABLE_KEY = AttributeKey.newInstance("sessionTable");
+    private static final String SESSION_PREFIX = "session-";
+
+    @Getter
+    private final Source source;
+    private final Looper looper;
+    private final List<Integer> ports;
+    /**
+     * 所有会话共享的流量统计
+     */
+    @Getter
+    private final TrafficMetrics metrics = new TrafficMetrics();
+
+    private final ConcurrentHashMap<String, SessionMapping> sessions = new ConcurrentHashMap<>();
+
+    /**
+     * 会话正在使用的资源，key为ip:port，只在looper中访问
+     */
+    private final HashMap<String, SessionUpstream> upstreams = new HashMap<>();
+    /**
+     * 还可以接受新会话的资源，懒删除：取出时再判断是否已满或者已经失效
+     */
+    private final ArrayDeque<SessionUpstream> notFull = new ArrayDeque<>();
+    private volatile int upstreamCount = 0;
+    private final Upstream.UpstreamDestroyEvent upstreamDestroyListener = this::onUpstreamDestroyEvent;
+
+    private static class SessionUpstream {
+        private final Upstream upstream;
+        private int refs = 0;
+        private boolean queued = false;
+
+        SessionUpstream(Upstream upstream) {
+            this.upstream = upstream;
+        }
+    }
+
+    SessionTable(Source source, List<Integer> ports) {
+        this.source = source;
+        this.looper = source.getLooper();
+        this.ports = ports;
+    }
+
+    /**
+     * 会话端口上的连接返回对应的会话表，普通映射端口返回null
+     */
+    public static SessionTable get(Channel channel) {
+        if (channel == null) {
+            return null;
+        }
+        SessionTable sessionTable = channel.attr(SESSION_TABLE_KEY).get();
+        if (sessionTable != null) {
+            return sessionTable;
+        }
+        return get(channel.parent());
+    }
+
+    /**
+     * 代理用户名转换为会话标识，支持 session-xxx 的写法，用户名为空时返回null
+     */
+    public static String sessionIdOf(String username) {
+        if (StringUtils.isBlank(username)) {
+            return null;
+        }
+        String sessionId = username.trim();
+        if (sessionId.startsWith(SESSION_PREFIX)) {
+            sessionId = sessionId.substring(SESSION_PREFIX.length());
+        }
+        return sessionId.isEmpty() ? null : sessionId;
+    }
+
+    void start() {
+        for (Integer port : ports) {
+            if (NettyTransport.serverBindCount() > 1) {
+                try {
+                    NettyTransport.probeExclusiveBind(port);
+                } catch (IOException e) {
+                    log.error("can not open session server on port:{}", port, e);
+                    continue;
+                }
+            }
+            for (int i = 0; i < NettyTransport.serverBindCount(); i++) {
+                HaProxyMapping.bindServer(port).addListener((ChannelFutureListener) channelFuture -> {
+                    if (!channelFuture.isSuccess()) {
+                        log.error("can not open session server on port:{}", port, channelFuture.cause());
+                        return;
+                    }
+                    channelFuture.channel().attr(SESSION_TABLE_KEY).set(this);
+                });
+            }
+        }
+        long sweepInterval = Math.max(1000, Math.min(30 * 1000, ttlMillis() / 4));
+        looper.scheduleWithRate(this::evictExpired, sweepInterval);
+    }
+
+    private static long ttlMillis() {
+        return Math.max(1, Configs.sessionTtlSeconds) * 1000L;
+    }
+
+    /**
+     * 查找或者创建会话，并且把用户连接绑定到会话上。没有可用资源时回调null
+     * <br>
+     * 会话命中时在调用线程回调，否则在looper中回调
+     */
+    public void resolve(Channel channel, String sessionId, ValueCallback<HaProxyMapping> valueCallback) {
+        SessionMapping sessionMapping = sessions.get(sessionId);
+        if (sessionMapping != null && sessionMapping.getUpstream().isActive()
+                && sessionMapping.attachChannel(channel)
+                // 绑定的同时会话可能被looper淘汰（资源销毁等），这时按照未命中处理
+                && sessions.get(sessionId) == sessionMapping) {
+            valueCallback.onReceiveValue(sessionMapping);
+            return;
+        }
+        int port = ((InetSocketAddress) channel.localAddress()).getPort();
+        looper.post(() -> bind(sessionId, port, value -> {
+            // 淘汰也在looper中执行，会话表中的会话一定可以绑定
+            if (value != null && !value.attachChannel(channel)) {
+                value = null;
+            }
+            valueCallback.onReceiveValue(value);
+        }));
+    }
+
+    private void bind(String sessionId, int port, ValueCallback<SessionMapping> valueCallback) {
+        SessionMapping current = sessions.get(sessionId);
+        if (current != null && current.getUpstream().isActive()) {
+            current.touch();
+            valueCallback.onReceiveValue(current);
+            return;
+        }
+        assign(upstream -> {
+            if (upstream == null) {
+                log.warn("no available upstream for session:{} source:{}", sessionId, source.getName());
+                valueCallback.onReceiveValue(null);
+                return;
+            }
+            SessionMapping sessionMapping = sessions.get(sessionId);
+            if (sessionMapping == null) {
+                sessionMapping = new SessionMapping(this, sessionId, port, upstream);
+                sessions.put(sessionId, sessionMapping);
+                acquire(upstream);
+            } else if (sessionMapping.getUpstream().isActive()) {
+                // 等待分配的过程中，同一个会话的其他连接已经完成了绑定
+                acquire(upstream);
+                release(upstream);
+            } else {
+                sessionMapping.switchUpstream(upstream);
+            }
+            sessionMapping.touch();
+            valueCallback.onReceiveValue(sessionMapping);
+        });
+    }
+
+    /**
+     * 为会话挑选一个资源，在looper中回调
+     */
+    private void assign(ValueCallback<Upstream> valueCallback) {
+        while (!notFull.isEmpty()) {
+            SessionUpstream candidate = notFull.peekFirst();
+            if (upstreams.get(candidate.upstream.resourceKey()) == candidate
+                    && candidate.upstream.isActive()
+                    && candidate.refs < sessionsPerUpstream()) {
+                valueCallback.onReceiveValue(candidate.upstream);
+                return;
+            }
+            notFull.pollFirst();
+            candidate.queued = false;
+        }
+        source.requestRoute(upstream -> {
+            if (upstream != null) {
+                valueCallback.onReceiveValue(upstream);
+                return;
+            }
+            // 备用池也没有资源了，超额共享负载最低的资源
+            SessionUpstream leastLoaded = null;
+            for (SessionUpstream sessionUpstream : upstreams.values()) {
+                if (sessionUpstream.upstream.isActive()
+                        && (leastLoaded == null || sessionUpstream.refs < leastLoaded.refs)) {
+                    leastLoaded = sessionUpstream;
+                }
+            }
+            valueCallback.onReceiveValue(leastLoaded == null ? null : leastLoaded.upstream);
+        });
+    }
+
+    private static int sessionsPerUpstream() {
+        return Math.max(1, Configs.sessionsPerUpstream);
+    }
+
+    private void acquire(Upstream upstream) {
+        SessionUpstream sessionUpstream = upstreams.get(upstream.resourceKey());
+        if (sessionUpstream == null || sessionUpstream.upstream != upstream) {
+            sessionUpstream = new SessionUpstream(upstream);
+            upstreams.put(upstream.resourceKey(), sessionUpstream);
+            upstreamCount = upstreams.size();
+            upstream.addDestroyListener(upstreamDestroyListener);
+        }
+        sessionUpstream.refs++;
+        offerNotFull(sessionUpstream);
+    }
+
+    private void release(Upstream upstream) {
+        SessionUpstream sessionUpstream = upstreams.get(upstream.resourceKey());
+        if (sessionUpstream == null || sessionUpstream.upstream != upstream) {
+            return;
+        }
+        sessionUpstream.refs--;
+        if (sessionUpstream.refs > 0) {
+            offerNotFull(sessionUpstream);
+            return;
+        }
+        upstreams.remove(upstream.resourceKey());
+        upstreamCount = upstreams.size();
+        // 没有会话在使用了，还给备用池，端口映射和其他会话可以继续使用
+        source.returnStandby(upstream);
+    }
+
+    private void offerNotFull(SessionUpstream sessionUpstream) {
+        if (!sessionUpstream.queued && sessionUpstream.refs < sessionsPerUpstream()) {
+            sessionUpstream.queued = true;
+            notFull.addLast(sessionUpstream);
+        }
+    }
+
+    private void onUpstreamDestroyEvent(Upstream upstream) {
+        looper.post(() -> onUpstreamDestroyed(upstream));
+    }
+
+    private void onUpstreamDestroyed(Upstream upstream) {
+        SessionUpstream sessionUpstream = upstreams.get(upstream.resourceKey());
+        if (sessionUpstream != null && sessionUpstream.upstream == upstream) {
+            // 会话不马上迁移，下一次访问时发现资源不可用再重新分配
+            upstreams.remove(upstream.resourceKey());
+            upstreamCount = upstreams.size();
+        }
+    }
+
+    /**
+     * 会话切换了资源（重新分配或者failover）
+     */
+    void onSessionSwitched(Upstream old, Upstream newUpstream) {
+        if (!looper.inLooper()) {
+            looper.post(() -> onSessionSwitched(old, newUpstream));
+            return;
+        }
+        acquire(newUpstream);
+        release(old);
+    }
+
+    /**
+     * 会话是否占用了这个资源，只能在looper中调用
+     */
+    boolean holds(String resourceKey) {
+        SessionUpstream sessionUpstream = upstreams.get(resourceKey);
+        return sessionUpstream != null && sessionUpstream.upstream.isActive();
+    }
+
+    void evict(SessionMapping sessionMapping) {
+        looper.post(() -> {
+            if (sessions.remove(sessionMapping.getSessionId(), sessionMapping)) {
+                release(sessionMapping.getUpstream());
+            }
+        });
+    }
+
+    private void evictExpired() {
+        long now = System.currentTimeMillis();
+        long ttlMillis = ttlMillis();
+        List<SessionMapping> expired = new ArrayList<>();
+        for (Iterator<SessionMapping> iterator = sessions.values().iterator(); iterator.hasNext(); ) {
+            SessionMapping sessionMapping = iterator.next();
+            if (sessionMapping.tryExpire(now, ttlMillis)) {
+                iterator.remove();
+                expired.add(sessionMapping);
+            }
+        }
+        for (SessionMapping sessionMapping : expired) {
+            release(sessionMapping.getUpstream());
+        }
+        if (!expired.isEmpty()) {
+            log.info("evict {} expired sessions, source:{} sessions:{} upstreams:{}",
+                    expired.size(), source.getName(), sessions.size(), upstreams.size());
+        }
+    }
+
+    public int getSessionCount() {
+        return sessions.size();
+    }
+
+    /**
+     * 会话正在使用的资源数量
+     */
+    public int getUpstreamCount() {
+        return upstreamCount;
+    }
+}
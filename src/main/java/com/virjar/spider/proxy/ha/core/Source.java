@@ -1,11 +1,11 @@
 package com.virjar.spider.proxy.ha.core;
 
 import com.google.common.base.Splitter;
+import com.google.common.io.BaseEncoding;
 import com.virjar.spider.proxy.ha.Configs;
 import com.virjar.spider.proxy.ha.safethread.Looper;
 import com.virjar.spider.proxy.ha.safethread.ValueCallback;
 import com.virjar.spider.proxy.ha.utils.IPUtils;
-import io.netty.handler.codec.http.HttpResponseStatus;
 import lombok.Getter;
 import lombok.NonNull;
 import lombok.RequiredArgsConstructor;
@@ -16,10 +16,21 @@ import org.apache.commons.lang3.math.NumberUtils;
 import org.asynchttpclient.*;
 import org.asynchttpclient.proxy.ProxyServer;
 
+import java.io.File;
 import java.nio.charset.StandardCharsets;
-import java.util.LinkedList;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.TreeSet;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
 
 import static org.asynchttpclient.Dsl.asyncHttpClient;
 
@@ -45,9 +56,104 @@ public class Source {
     @Setter
     @Getter
     private String upstreamAuthPassword;
+    /**
+     * 隧道转发时的写缓冲水位，超过高水位暂停对端读，降到低水位之下恢复
+     */
+    @Setter
+    @Getter
+    private int writeBufferHighWaterMark = 64 * 1024;
+    @Setter
+    @Getter
+    private int writeBufferLowWaterMark = 32 * 1024;
+    /**
+     * socks5缓存连接提前完成greeting和鉴权，借用之后只需要发送CONNECT。只能用于纯socks5的数据源
+     */
+    @Setter
+    @Getter
+    private boolean socks5PreNegotiate = false;
+    /**
+     * 预协商完成之后多久认为鉴权会话过期，过期的缓存连接直接丢弃
+     */
+    @Setter
+    @Getter
+    private int socks5PreNegotiateTtlSeconds = 20;
+    /**
+     * http上游是否认可CONNECT首次携带的鉴权信息
+     */
+    @Getter
+    private final PreemptiveAuthPolicy preemptiveAuthPolicy = new PreemptiveAuthPolicy();
+    /**
+     * 上游鉴权头的值和编码好的报文行，账号配置之后不再变化，第一次使用时计算
+     */
+    private volatile String proxyAuthorization;
+    private volatile byte[] proxyAuthorizationLine;
+    /**
+     * 会话模式的端口，格式和mappingSpace一致。这些端口按照代理用户名区分会话，为空表示不开启
+     */
+    @Setter
+    @Getter
+    private String sessionPorts;
+    @Getter
+    private SessionTable sessionTable;
 
     private TreeSet<Integer> needBindPort = new TreeSet<>();
-    private LinkedList<Upstream> availableUpstream = new LinkedList<>();
+    /**
+     * 备用资源，按照延时和失败次数评分，requestRoute优先返回最好的资源
+     */
+    private final StandbyPool availableUpstream = new StandbyPool();
+    /**
+     * availableUpstream只能在looper中访问，这里保存一份它的大小给指标导出读取
+     */
+    private volatile int standbyDepth = 0;
+    private final LongAdder upstreamDestroyCount = new LongAdder();
+
+    /**
+     * 代理资源的探测结果缓存，key为ip:port，成功和失败都缓存，只在looper中访问
+     */
+    private final HashMap<String, ProbeResult> probeCache = new HashMap<>();
+    /**
+     * 等待探测的资源，以及排队和正在探测的资源集合（用于去重），只在looper中访问
+     */
+    private final ArrayDeque<String> probeQueue = new ArrayDeque<>();
+    private final Set<String> probingResources = new HashSet<>();
+    private int runningProbes = 0;
+    private volatile int probeQueueDepth = 0;
+    private final LongAdder probeCount = new LongAdder();
+    private final LongAdder probeCacheHitCount = new LongAdder();
+
+    private static final long[] EMPTY_RESOURCES = new long[0];
+    /**
+     * 上一次刷新得到的资源列表（排序后的压缩ip:port），只在looper中访问
+     */
+    private long[] lastRefreshResources = EMPTY_RESOURCES;
+    private long lastRefreshBaselineTimestamp = 0;
+
+    /**
+     * 刷新调度状态，只在looper中访问。每个数据源各自调度，备用资源不足时提前刷新，充足时退避
+     */
+    private boolean refreshing = false;
+    private boolean refreshPending = false;
+    private long lastRefreshStartTimestamp = 0;
+    /**
+     * 每次重新安排定时刷新时递增，之前安排的定时任务到期后发现代数不一致就直接忽略
+     */
+    private long refreshTimerGeneration = 0;
+    private int fullPoolRounds = 0;
+    private final LongAdder refreshCount = new LongAdder();
+    private final LongAdder demandRefreshCount = new LongAdder();
+
+    /**
+     * 映射关系的持久化，snapshot_dir为空（默认）时为null
+     */
+    private MappingJournal journal;
+    /**
+     * 从持久化恢复、还没有重新探测确认过的资源，key为ip:port，只在looper中访问
+     */
+    private final HashMap<String, Upstream> restoredUpstreams = new HashMap<>();
+    /**
+     * 恢复之后探测确认不可用而销毁的资源，销毁时刚刚探测过，不需要再次探测，只在looper中访问
+     */
+    private final Set<Upstream> rejectedRestoredUpstreams = new HashSet<>();
 
     @Getter
     private Looper looper;
@@ -65,63 +171,280 @@ public class Source {
      */
     private ConcurrentHashMap<String, HaProxyMapping> mapping = new ConcurrentHashMap<>();
     private ConcurrentHashMap<String, HaProxyMapping> reverseMapping = new ConcurrentHashMap<>();
+    private TreeSet<Integer> sessionPortSet = new TreeSet<>();
 
 
     private void doInit() {
         init = true;
         parseConfig();
         looper = new Looper("main-" + name);
+        if (StringUtils.isNotBlank(sessionPorts)) {
+            sessionTable = new SessionTable(this, new ArrayList<>(sessionPortSet));
+            sessionTable.start();
+        }
+        if (StringUtils.isNotBlank(Configs.snapshotDir)) {
+            journal = new MappingJournal(new File(Configs.snapshotDir, journalFileName()), looper);
+            // 在第一次刷新之前执行
+            looper.post(this::restoreSnapshot);
+        }
     }
 
-    public void refresh() {
+    private String journalFileName() {
+        return name.replaceAll("[\\\\/:*?\"<>|\\s]", "_") + ".journal";
+    }
+
+    /**
+     * 按照上一次运行的映射关系直接绑定端口，备用资源直接进入备用池。之后在后台重新探测一遍，
+     * 不可用或者出口ip变化的资源会被销毁，由正常的掉线流程切换
+     */
+    private void restoreSnapshot() {
+        journal.load();
+        List<MappingJournal.Record> verifyList = new ArrayList<>();
+        for (Map.Entry<Integer, MappingJournal.Record> entry : new ArrayList<>(journal.getPorts().entrySet())) {
+            Integer port = entry.getKey();
+            MappingJournal.Record record = entry.getValue();
+            if (!needBindPort.contains(port) || mapping.containsKey(record.resourceKey)
+                    || reverseMapping.containsKey(record.outIp)) {
+                // 端口已经不在mapping_space中，或者重复的资源
+                journal.onUnmapped(port);
+                continue;
+            }
+            needBindPort.remove(port);
+            Upstream upstream = new Upstream(this, record.host(), record.port(), record.outIp);
+            watchUpstream(upstream);
+            bindPort(port, upstream);
+            restoredUpstreams.put(upstream.resourceKey(), upstream);
+            verifyList.add(record);
+        }
+        for (MappingJournal.Record record : new ArrayList<>(journal.getStandby().values())) {
+            if (mapping.containsKey(record.resourceKey) || reverseMapping.containsKey(record.outIp)
+                    || availableUpstream.containsActive(record.resourceKey)) {
+                continue;
+            }
+            Upstream upstream = new Upstream(this, record.host(), record.port(), record.outIp);
+            watchUpstream(upstream);
+            addStandby(upstream);
+            restoredUpstreams.put(upstream.resourceKey(), upstream);
+            verifyList.add(record);
+        }
+        // 已经映射的端口先确认
+        for (MappingJournal.Record record : verifyList) {
+            testConnectForUpstream(record.host(), record.port(), true);
+        }
+        log.info("restore snapshot source:{} ports:{} standby:{}", name, mapping.size(), availableUpstream.size());
+    }
+
+    /**
+     * 启动这个数据源的刷新调度，第一次刷新在随机的一小段时间之后，避免多个数据源同时请求
+     */
+    public void startRefreshSchedule() {
         if (!init) {
             doInit();
         }
-        httpclient.prepareGet(sourceUrl).execute().toCompletableFuture()
-                .whenCompleteAsync((response, throwable) -> {
+        long firstDelay = ThreadLocalRandom.current().nextLong(refreshMinIntervalMillis() + 1);
+        looper.post(() -> scheduleRefresh(firstDelay));
+    }
+
+    private static long refreshMinIntervalMillis() {
+        return Math.max(1, Configs.refreshMinIntervalSeconds) * 1000L;
+    }
+
+    private void scheduleRefresh(long delay) {
+        looper.checkLooper();
+        long generation = ++refreshTimerGeneration;
+        looper.postDelay(() -> {
+            if (generation == refreshTimerGeneration) {
+                refresh();
+            }
+        }, delay);
+    }
+
+    /**
+     * 备用池不足或者failover拿不到资源时调用，在最小刷新间隔的约束下尽快刷新一次
+     */
+    private void requestRefresh() {
+        looper.checkLooper();
+        if (refreshing || probeOutstanding()) {
+            // 上一次刷新的资源还没有处理完，等这一批探测结束之后再判断要不要马上刷新
+            refreshPending = true;
+            return;
+        }
+        long wait = lastRefreshStartTimestamp + refreshMinIntervalMillis() - System.currentTimeMillis();
+        demandRefreshCount.increment();
+        if (wait <= 0) {
+            refresh();
+        } else {
+            scheduleRefresh(wait);
+        }
+    }
+
+    private void refresh() {
+        looper.checkLooper();
+        refreshing = true;
+        refreshPending = false;
+        lastRefreshStartTimestamp = System.currentTimeMillis();
+        refreshCount.increment();
+        httpclient.prepareGet(sourceUrl).execute(new ResourceListHandler()).toCompletableFuture()
+                .whenComplete((resourceList, throwable) -> {
                     if (throwable != null) {
                         log.error("download resource failed:{}", sourceUrl, throwable);
-                        return;
-                    }
-                    try {
-                        handleResourceResponse(response);
-                    } catch (Exception e) {
-                        log.error("error", e);
+                    } else if (!resourceList.isSuccess()) {
+                        log.error("error resource response url:{} status:{}", sourceUrl, resourceList.getStatusCode());
                     }
+                    looper.post(() -> {
+                        if (throwable == null && resourceList.isSuccess()) {
+                            handleResourceList(resourceList);
+                        }
+                        onRefreshFinished();
+                    });
                 });
 
     }
 
-    private void handleResourceResponse(Response response) {
-        if (response.getStatusCode() != HttpResponseStatus.OK.code()) {
-            log.error("error resource response url:{} response:{}", sourceUrl, response.getResponseBody(StandardCharsets.UTF_8));
-            return;
+    /**
+     * 根据备用池的水位决定下一次刷新的时间：低于低水位时按最小间隔刷新，达到高水位时逐次翻倍退避，
+     * 其他情况按refreshUpstreamInterval。最终时间上下浮动20%，避免数据源之间对齐
+     * <br>
+     * 探测还没有结束时备用池的水位不准确，按正常间隔安排，等探测结束之后再由requestRefresh判断
+     */
+    private void onRefreshFinished() {
+        refreshing = false;
+        long minInterval = refreshMinIntervalMillis();
+        long maxInterval = Math.max(minInterval, Configs.refreshMaxIntervalSeconds * 1000L);
+        int standby = availableUpstream.size();
+        boolean lowWater = standby < Configs.standbyLowWatermark || !needBindPort.isEmpty();
+        long interval;
+        if (probeOutstanding()) {
+            refreshPending |= lowWater;
+            interval = Configs.refreshUpstreamInterval * 1000L;
+        } else if (refreshPending || lowWater) {
+            refreshPending = false;
+            fullPoolRounds = 0;
+            interval = minInterval;
+        } else if (Configs.standbyHighWatermark > 0 && standby >= Configs.standbyHighWatermark) {
+            fullPoolRounds = Math.min(fullPoolRounds + 1, 16);
+            interval = Configs.refreshUpstreamInterval * 1000L << fullPoolRounds;
+        } else {
+            fullPoolRounds = 0;
+            interval = Configs.refreshUpstreamInterval * 1000L;
+        }
+        interval = Math.max(minInterval, Math.min(maxInterval, interval));
+        long jitter = interval / 5;
+        scheduleRefresh(interval - jitter + ThreadLocalRandom.current().nextLong(jitter * 2 + 1));
+    }
+
+    /**
+     * 从备用池取出资源之后检查水位
+     */
+    private void onStandbyTaken(boolean exhausted) {
+        standbyDepth = availableUpstream.size();
+        if (exhausted || standbyDepth < Configs.standbyLowWatermark) {
+            requestRefresh();
+        }
+    }
+
+    /**
+     * 和上一次刷新的结果对比，只有新出现的资源才进入探测流程
+     */
+    private void handleResourceList(ResourceListHandler resourceList) {
+        purgeProbeCache();
+        UpstreamListParser parser = resourceList.getParser();
+        long[] current = parser.sortedPacked();
+        long now = System.currentTimeMillis();
+        long[] previous = lastRefreshResources;
+        if (now - lastRefreshBaselineTimestamp > Configs.probeFailureCacheSeconds * 1000L) {
+            // 定期全量对比一次，之前探测失败的资源在失败缓存过期之后还有机会重新探测
+            previous = EMPTY_RESOURCES;
+            lastRefreshBaselineTimestamp = now;
         }
-        String responseBody = response.getResponseBody(StandardCharsets.UTF_8);
-        log.info("resource down response:{}", responseBody);
+        lastRefreshResources = current;
+
         //ip:port\nip:port\nip:port...
-        for (String line : responseBody.split("\n")) {
-            line = line.trim();
-            // 已经被同步过的代理，不需要再次链接
-            if (mapping.containsKey(line)) {
-                continue;
+        int newCount = 0;
+        int j = 0;
+        for (long resource : current) {
+            // 两个数组都是有序的，归并对比
+            while (j < previous.length && previous[j] < resource) {
+                j++;
             }
-            if (!line.contains(":")) {
+            if (j < previous.length && previous[j] == resource) {
                 continue;
             }
-            testConnectForUpstream(line);
+            newCount++;
+            onNewResource(UpstreamListParser.host(resource), UpstreamListParser.port(resource));
+        }
+        for (String hostResource : parser.getHostResources()) {
+            int index = hostResource.lastIndexOf(':');
+            newCount++;
+            onNewResource(hostResource.substring(0, index), Integer.parseInt(hostResource.substring(index + 1)));
         }
+        log.info("resource refreshed source:{} bytes:{} lines:{} invalid:{} distinct:{} new:{} cost:{}ms",
+                name, parser.getTotalBytes(), parser.getLineCount(), parser.getInvalidCount(),
+                current.length + parser.getHostResources().size(), newCount, resourceList.getCostMillis());
     }
 
-    private void testConnectForUpstream(String ipAndPort) {
+    private void onNewResource(String host, int port) {
+        // 已经被同步过的代理，不需要再次链接
+        if (mapping.containsKey(host + ":" + port)) {
+            return;
+        }
+        testConnectForUpstream(host, port, false);
+    }
+
+    /**
+     * 探测请求进入队列，同时进行的探测数量不超过probeConcurrency。命中探测结果缓存的资源不再发起网络请求
+     *
+     * @param bypassCache 不使用缓存，资源被判定掉线之后重新确认时使用
+     */
+    private void testConnectForUpstream(String ipAndPort, boolean bypassCache) {
         String[] split = ipAndPort.split(":");
         String host = split[0].trim();
-        int port = NumberUtils.toInt(split[1].trim(), -1);
+        int port = split.length < 2 ? -1 : NumberUtils.toInt(split[1].trim(), -1);
         if (port <= 0) {
             log.error("illegal proxy resource :{}", ipAndPort);
             return;
         }
+        looper.post(() -> testConnectForUpstream(host, port, bypassCache));
+    }
+
+    private void testConnectForUpstream(String host, int port, boolean bypassCache) {
+        looper.checkLooper();
+        String resourceKey = host + ":" + port;
+        ProbeResult cached = probeCache.get(resourceKey);
+        if (cached != null && (bypassCache || cached.isExpired())) {
+            probeCache.remove(resourceKey);
+            cached = null;
+        }
+        if (cached != null) {
+            probeCacheHitCount.increment();
+            if (cached.outIp != null) {
+                onProxyResourceTestSuccess(host, port, cached.outIp, cached.costMillis);
+            }
+            return;
+        }
+        if (!probingResources.add(resourceKey)) {
+            // 已经在队列中或者正在探测
+            return;
+        }
+        probeQueue.add(resourceKey);
+        drainProbeQueue();
+    }
+
+    private void drainProbeQueue() {
+        while (runningProbes < Math.max(1, Configs.probeConcurrency) && !probeQueue.isEmpty()) {
+            runningProbes++;
+            doProbe(probeQueue.poll());
+        }
+        probeQueueDepth = probeQueue.size();
+    }
+
+    private void doProbe(String resourceKey) {
+        int index = resourceKey.lastIndexOf(':');
+        String host = resourceKey.substring(0, index);
+        int port = Integer.parseInt(resourceKey.substring(index + 1));
+        probeCount.increment();
         // 对于任意代理资源，发送代理请求，使他访问我们到代理接口，拿到真实ip，另外探测出真实的ip出口
+        long startTimestamp = System.currentTimeMillis();
         BoundRequestBuilder getBuilder = httpclient.prepareGet(Configs.proxyHttpTestURL);
         ProxyServer.Builder proxyBuilder = new ProxyServer.Builder(host, port);
         if (StringUtils.isNotBlank(upstreamAuthUser)) {
@@ -131,54 +454,170 @@ public class Source {
         }
         getBuilder.setProxyServer(proxyBuilder);
 
-        getBuilder.execute().toCompletableFuture().whenCompleteAsync((response, throwable) -> {
+        getBuilder.execute().toCompletableFuture().whenComplete((response, throwable) -> {
+            String outIp = null;
             if (throwable != null) {
-                log.warn("test proxy failed:{}", ipAndPort);
-                return;
-            }
-            try {
-                onProxyResourceTestSuccess(host, port, response);
-            } catch (Exception e) {
-                log.error("error", e);
+                log.warn("test proxy failed:{}", resourceKey);
+            } else {
+                String responseBody = response.getResponseBody(StandardCharsets.UTF_8).trim();
+                if (IPUtils.isIpV4(responseBody)) {
+                    outIp = responseBody;
+                } else {
+                    log.warn("response not ip format:{}", responseBody);
+                }
             }
+            String finalOutIp = outIp;
+            long costMillis = System.currentTimeMillis() - startTimestamp;
+            looper.post(() -> onProbeFinished(host, port, finalOutIp, costMillis));
         });
     }
 
-    private void onProxyResourceTestSuccess(String proxyIp, int portPort, Response proxyResourceTestResponse) {
-        String responseBody = proxyResourceTestResponse.getResponseBody(StandardCharsets.UTF_8).trim();
-        if (!IPUtils.isIpV4(responseBody)) {
-            log.warn("response not ip format:{}", responseBody);
-            return;
+    private void onProbeFinished(String host, int port, String outIp, long costMillis) {
+        String resourceKey = host + ":" + port;
+        runningProbes--;
+        probingResources.remove(resourceKey);
+        long ttlSeconds = outIp == null ? Configs.probeFailureCacheSeconds : Configs.probeSuccessCacheSeconds;
+        if (ttlSeconds > 0) {
+            probeCache.put(resourceKey, new ProbeResult(outIp, costMillis,
+                    System.currentTimeMillis() + ttlSeconds * 1000));
+        }
+        drainProbeQueue();
+        Upstream restored = restoredUpstreams.remove(resourceKey);
+        if (restored != null) {
+            if (outIp == null || !outIp.equals(restored.getOutIp())) {
+                log.info("restored upstream:{} outIp:{} is not available now, probe outIp:{}",
+                        resourceKey, restored.getOutIp(), outIp);
+                rejectedRestoredUpstreams.add(restored);
+                restored.doDestroy();
+            } else {
+                restored.getScore().onHandshake(costMillis);
+            }
+        }
+        if (outIp != null) {
+            onProxyResourceTestSuccess(host, port, outIp, costMillis);
         }
-        if (reverseMapping.containsKey(responseBody)) {
+        if (refreshPending && !probeOutstanding()) {
+            // 这一批探测都结束了，备用资源仍然不足的话提前刷新
+            requestRefresh();
+        }
+    }
+
+    private boolean probeOutstanding() {
+        return runningProbes > 0 || !probeQueue.isEmpty();
+    }
+
+    private void onProxyResourceTestSuccess(String proxyIp, int portPort, String outIp, long costMillis) {
+        if (reverseMapping.containsKey(outIp)) {
             // 这个出口ip被映射过
             return;
         }
-        looper.post(() -> handleUpstreamResource0(new Upstream(Source.this, proxyIp, portPort, responseBody)));
+        String resourceKey = proxyIp + ":" + portPort;
+        if (mapping.containsKey(resourceKey) || availableUpstream.containsActive(resourceKey)
+                || (sessionTable != null && sessionTable.holds(resourceKey))) {
+            // 已经映射、已经在备用池中或者正在被会话使用
+            return;
+        }
+        Upstream upstream = new Upstream(Source.this, proxyIp, portPort, outIp);
+        // 探测请求经过了代理的建连和握手，作为备用资源评分的初始样本
+        upstream.getScore().onHandshake(costMillis);
+        handleUpstreamResource0(upstream);
+    }
+
+    /**
+     * 过期的探测结果只在查询时清理，这里在每次刷新时整体清理一次，避免缓存无限增长
+     */
+    private void purgeProbeCache() {
+        probeCache.values().removeIf(ProbeResult::isExpired);
+    }
+
+    /**
+     * 一个代理资源的探测结果，outIp为null表示探测失败
+     */
+    private static class ProbeResult {
+        private final String outIp;
+        private final long costMillis;
+        private final long expireTimestamp;
+
+        ProbeResult(String outIp, long costMillis, long expireTimestamp) {
+            this.outIp = outIp;
+            this.costMillis = costMillis;
+            this.expireTimestamp = expireTimestamp;
+        }
+
+        boolean isExpired() {
+            return System.currentTimeMillis() > expireTimestamp;
+        }
     }
 
     private void handleUpstreamResource0(Upstream upstreamHolder) {
         looper.checkLooper();
-        upstreamHolder.addDestroyListener(upstream -> {
-            // 有可能有误判，所以这里重新再探测下
-            testConnectForUpstream(upstream.resourceKey());
-        });
+        watchUpstream(upstreamHolder);
         if (needBindPort.isEmpty()) {
             // 所有出口都有映射，所以存起来，等有一些隧道断开之后再链接
-            availableUpstream.addFirst(upstreamHolder);
+            addStandby(upstreamHolder);
             return;
         }
 
-        Integer localMappingPort = needBindPort.pollFirst();
+        bindPort(needBindPort.pollFirst(), upstreamHolder);
+    }
+
+    private void watchUpstream(Upstream upstreamHolder) {
+        upstreamHolder.addDestroyListener(upstream -> looper.post(() -> {
+            if (journal != null) {
+                journal.onStandbyRemoved(upstream);
+            }
+            if (rejectedRestoredUpstreams.remove(upstream)) {
+                // 恢复之后的确认探测已经判定不可用，探测结果是新的
+                return;
+            }
+            // 有可能有误判，所以这里重新再探测下，之前成功的探测结果已经不可信
+            testConnectForUpstream(upstream.resourceKey(), true);
+        }));
+    }
 
+    private void bindPort(Integer localMappingPort, Upstream upstreamHolder) {
         HaProxyMapping haProxyMapping = new HaProxyMapping(localMappingPort, upstreamHolder, this);
         this.reverseMapping.put(upstreamHolder.getOutIp(), haProxyMapping);
         this.mapping.put(upstreamHolder.resourceKey(), haProxyMapping);
+        if (journal != null) {
+            journal.onMapped(localMappingPort, upstreamHolder);
+        }
         haProxyMapping.startMapping();
     }
 
+    private void addStandby(Upstream upstream) {
+        availableUpstream.add(upstream);
+        standbyDepth = availableUpstream.size();
+        if (journal != null) {
+            journal.onStandbyAdded(upstream);
+        }
+    }
+
+    private Upstream pollStandby() {
+        Upstream upstream = availableUpstream.poll();
+        if (upstream != null && journal != null) {
+            journal.onStandbyRemoved(upstream);
+        }
+        return upstream;
+    }
+
     private void parseConfig() {
-        Iterable<String> pairs = Splitter.on(":").split(mappingSpace);
+        needBindPort.addAll(parsePorts(mappingSpace));
+        if (StringUtils.isNotBlank(sessionPorts)) {
+            sessionPortSet = parsePorts(sessionPorts);
+            // 同一个端口只能有一种用途，否则映射端口绑定失败会被当成掉线，反复重新映射
+            for (Integer port : sessionPortSet) {
+                if (needBindPort.contains(port)) {
+                    throw new IllegalArgumentException("session_ports overlap with mapping_space on port:" + port
+                            + " for source:" + name);
+                }
+            }
+        }
+    }
+
+    private static TreeSet<Integer> parsePorts(String portSpace) {
+        TreeSet<Integer> needBindPort = new TreeSet<>();
+        Iterable<String> pairs = Splitter.on(":").split(portSpace);
         for (String pair : pairs) {
             if (pair.contains("-")) {
                 int index = pair.indexOf("-");
@@ -193,6 +632,7 @@ public class Source {
                 needBindPort.add(Integer.parseInt(pair));
             }
         }
+        return needBindPort;
     }
 
 
@@ -201,6 +641,9 @@ public class Source {
             needBindPort.add(haProxyMapping.getLocalMappingPort());
             mapping.remove(haProxyMapping.resourceKey());
             reverseMapping.remove(haProxyMapping.getUpstream().getOutIp());
+            if (journal != null) {
+                journal.onUnmapped(haProxyMapping.getLocalMappingPort());
+            }
 
         });
     }
@@ -209,26 +652,143 @@ public class Source {
         return StringUtils.isNotBlank(upstreamAuthUser);
     }
 
+    /**
+     * @return 上游http代理的Proxy-Authorization，不需要鉴权时为null
+     */
+    public String getProxyAuthorization() {
+        if (!needAuth()) {
+            return null;
+        }
+        String ret = proxyAuthorization;
+        if (ret == null) {
+            ret = "Basic " + BaseEncoding.base64().encode(
+                    (upstreamAuthUser + ":" + upstreamAuthPassword).getBytes(StandardCharsets.UTF_8));
+            proxyAuthorization = ret;
+        }
+        return ret;
+    }
+
+    /**
+     * @return 编码好的 Proxy-Authorization: xxx\r\n ，不需要鉴权时为null
+     */
+    public byte[] getProxyAuthorizationLine() {
+        if (!needAuth()) {
+            return null;
+        }
+        byte[] ret = proxyAuthorizationLine;
+        if (ret == null) {
+            ret = ("Proxy-Authorization: " + getProxyAuthorization() + "\r\n").getBytes(StandardCharsets.US_ASCII);
+            proxyAuthorizationLine = ret;
+        }
+        return ret;
+    }
+
     /**
      * 请求一个新的代理ip资源
      */
     public void requestRoute(ValueCallback<Upstream> valueCallback) {
         looper.post(() -> {
             while (true) {
-                Upstream poll = availableUpstream.poll();
+                Upstream poll = pollStandby();
                 if (poll == null) {
+                    onStandbyTaken(true);
                     valueCallback.onReceiveValue(null);
                     return;
                 }
                 if (!poll.isActive()) {
                     continue;
                 }
+                onStandbyTaken(false);
                 valueCallback.onReceiveValue(poll);
+                return;
+            }
+
+        });
+    }
+
+    /**
+     * 一次请求多个代理ip资源，用于并行failover。资源不足时返回的数量可能少于count
+     */
+    public void requestRoute(int count, ValueCallback<List<Upstream>> valueCallback) {
+        looper.post(() -> {
+            List<Upstream> ret = new ArrayList<>(count);
+            while (ret.size() < count) {
+                Upstream poll = pollStandby();
+                if (poll == null) {
+                    break;
+                }
+                if (poll.isActive()) {
+                    ret.add(poll);
+                }
             }
+            onStandbyTaken(ret.isEmpty());
+            valueCallback.onReceiveValue(ret);
+        });
+    }
 
+    /**
+     * 通过requestRoute拿到但是最终没有使用的资源，归还到备用池
+     */
+    public void returnStandby(Upstream upstream) {
+        looper.post(() -> {
+            if (upstream.isActive() && !mapping.containsKey(upstream.resourceKey())
+                    && (sessionTable == null || !sessionTable.holds(upstream.resourceKey()))) {
+                addStandby(upstream);
+            }
         });
     }
 
+    void onUpstreamDestroyed() {
+        upstreamDestroyCount.increment();
+    }
+
+    /**
+     * 备用池中的资源数量（可能包含已经销毁但是还没有被清理的资源）
+     */
+    public int getStandbyDepth() {
+        return standbyDepth;
+    }
+
+    public long getUpstreamDestroyCount() {
+        return upstreamDestroyCount.sum();
+    }
+
+    public long getRefreshCount() {
+        return refreshCount.sum();
+    }
+
+    /**
+     * 因为备用资源不足而提前安排的刷新次数
+     */
+    public long getDemandRefreshCount() {
+        return demandRefreshCount.sum();
+    }
+
+    /**
+     * 排队等待探测的资源数量，不包括正在探测的
+     */
+    public int getProbeQueueDepth() {
+        return probeQueueDepth;
+    }
+
+    /**
+     * 真正发起网络请求的探测次数
+     */
+    public long getProbeCount() {
+        return probeCount.sum();
+    }
+
+    public long getProbeCacheHitCount() {
+        return probeCacheHitCount.sum();
+    }
+
+    /**
+     * 当前所有的端口映射
+     */
+    public Collection<HaProxyMapping> mappings() {
+        return Collections.unmodifiableCollection(mapping.values());
+    }
+
     public void doUpstreamRoute(HaProxyMapping haProxyMapping, Upstream old, Upstream newUpstream) {
         if (!looper.inLooper()) {
             looper.post(() -> doUpstreamRoute(haProxyMapping, old, newUpstream));
@@ -239,6 +799,9 @@ public class Source {
 
         mapping.put(newUpstream.resourceKey(), haProxyMapping);
         reverseMapping.put(newUpstream.getOutIp(), haProxyMapping);
+        if (journal != null) {
+            journal.onMapped(haProxyMapping.getLocalMappingPort(), newUpstream);
+        }
 
     }
 }
@@ -0,0 +1,122 @@
+package com.virjar.spider.proxy.ha.core;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * 备用资源池，按照{@link UpstreamScore}排序，每次取出分数最低（最快、最稳定）的资源
+ * <br>
+ * 分数会随着新的样本和时间衰减不断变化，堆里保存的是入堆时的分数。取出时重新计算堆顶的分数，
+ * 如果已经比下一个资源差，那么按照新分数放回去重新取；另外每隔一段时间整体重建一次，让变好的资源上浮
+ * <br>
+ * 只能在Source的looper中访问
+ */
+class StandbyPool {
+    private static final long REBUILD_INTERVAL_MILLIS = 10 * 1000;
+
+    private final PriorityQueue<Entry> heap = new PriorityQueue<>();
+    /**
+     * 池中的资源，key为ip:port
+     */
+    private final Map<String, Upstream> members = new HashMap<>();
+    private long sequence = 0;
+    private long lastRebuildTimestamp = System.currentTimeMillis();
+
+    private static class Entry implements Comparable<Entry> {
+        private final Upstream upstream;
+        private double key;
+        /**
+         * 分数相同时，后加入的优先
+         */
+        private final long sequence;
+
+        Entry(Upstream upstream, double key, long sequence) {
+            this.upstream = upstream;
+            this.key = key;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(Entry o) {
+            int ret = Double.compare(key, o.key);
+            if (ret != 0) {
+                return ret;
+            }
+            return Long.compare(o.sequence, sequence);
+        }
+    }
+
+    void add(Upstream upstream) {
+        if (containsActive(upstream.resourceKey())) {
+            return;
+        }
+        members.put(upstream.resourceKey(), upstream);
+        heap.add(new Entry(upstream, upstream.getScore().score(System.currentTimeMillis()), sequence++));
+    }
+
+    /**
+     * 取出当前分数最低的资源，池为空时返回null。返回的资源可能已经被销毁，由调用方判断
+     */
+    Upstream poll() {
+        long now = System.currentTimeMillis();
+        if (now - lastRebuildTimestamp > REBUILD_INTERVAL_MILLIS) {
+            rebuild(now);
+        }
+        // 每个资源最多重新评分一次，避免分数持续变化时一直循环
+        int rescoreBudget = heap.size();
+        while (true) {
+            Entry top = heap.poll();
+            if (top == null) {
+                return null;
+            }
+            Entry next = heap.peek();
+            if (next != null && rescoreBudget-- > 0 && top.upstream.isActive()) {
+                double current = top.upstream.getScore().score(now);
+                if (current > next.key) {
+                    top.key = current;
+                    heap.add(top);
+                    continue;
+                }
+            }
+            members.remove(top.upstream.resourceKey(), top.upstream);
+            return top.upstream;
+        }
+    }
+
+    private void rebuild(long now) {
+        lastRebuildTimestamp = now;
+        List<Entry> entries = new ArrayList<>(heap);
+        heap.clear();
+        for (Entry entry : entries) {
+            if (!entry.upstream.isActive()) {
+                members.remove(entry.upstream.resourceKey(), entry.upstream);
+                continue;
+            }
+            entry.key = entry.upstream.getScore().score(now);
+            heap.add(entry);
+        }
+    }
+
+    /**
+     * 池中是否已经有这个ip:port的可用资源。已经被销毁的同名资源会被移除，给重新探测成功的资源让位
+     */
+    boolean containsActive(String resourceKey) {
+        Upstream upstream = members.get(resourceKey);
+        if (upstream == null) {
+            return false;
+        }
+        if (upstream.isActive()) {
+            return true;
+        }
+        members.remove(resourceKey);
+        heap.removeIf(entry -> entry.upstream == upstream);
+        return false;
+    }
+
+    int size() {
+        return heap.size();
+    }
+}
@@ -0,0 +1,164 @@
+package com.virjar.spider.proxy.ha.core;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufHolder;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 一个映射端口或者一个上游资源的计数器
+ * <br>
+ * 计数发生在各个eventLoop上，这里全部使用LongAdder，累加时不同线程之间没有竞争，只有导出指标时才求和
+ */
+public class TrafficMetrics {
+    private final LongAdder borrowHits = new LongAdder();
+    private final LongAdder borrowMisses = new LongAdder();
+    private final LongAdder connectFailures = new LongAdder();
+    private final LongAdder handshakeFailures = new LongAdder();
+    private final LongAdder failovers = new LongAdder();
+    private final LongAdder forcedSwitches = new LongAdder();
+    private final LongAdder tunnels = new LongAdder();
+    private final LongAdder activeTunnels = new LongAdder();
+    private final LongAdder uploadBytes = new LongAdder();
+    private final LongAdder downloadBytes = new LongAdder();
+    private final LongAdder relayWrites = new LongAdder();
+    private final LongAdder relayFlushes = new LongAdder();
+    private final LongAdder relayPausedNanos = new LongAdder();
+
+    void onBorrow(boolean cacheHit) {
+        if (cacheHit) {
+            borrowHits.increment();
+        } else {
+            borrowMisses.increment();
+        }
+    }
+
+    void onConnectFailed() {
+        connectFailures.increment();
+    }
+
+    void onFailover() {
+        failovers.increment();
+    }
+
+    void onForcedSwitch() {
+        forcedSwitches.increment();
+    }
+
+    public void onHandshakeFailed() {
+        handshakeFailures.increment();
+    }
+
+    public void onTunnelOpen() {
+        tunnels.increment();
+        activeTunnels.increment();
+    }
+
+    public void onTunnelClose() {
+        activeTunnels.decrement();
+    }
+
+    /**
+     * 用户 -> 上游方向的字节数
+     */
+    public void onUpload(long bytes) {
+        if (bytes > 0) {
+            uploadBytes.add(bytes);
+        }
+    }
+
+    /**
+     * 上游 -> 用户方向的字节数
+     */
+    public void onDownload(long bytes) {
+        if (bytes > 0) {
+            downloadBytes.add(bytes);
+        }
+    }
+
+    /**
+     * 隧道转发的一次flush
+     *
+     * @param writes 这次flush合并的写入次数
+     */
+    public void onRelayFlush(long writes) {
+        relayFlushes.increment();
+        if (writes > 0) {
+            relayWrites.add(writes);
+        }
+    }
+
+    /**
+     * 隧道因为对端写缓冲超过高水位暂停读的时长，恢复读的时候上报
+     */
+    public void onRelayPaused(long nanos) {
+        if (nanos > 0) {
+            relayPausedNanos.add(nanos);
+        }
+    }
+
+    /**
+     * 转发消息的字节数。http解码之后的报文只能统计到body部分
+     */
+    public static long sizeOf(Object msg) {
+        if (msg instanceof ByteBuf) {
+            return ((ByteBuf) msg).readableBytes();
+        }
+        if (msg instanceof ByteBufHolder) {
+            return ((ByteBufHolder) msg).content().readableBytes();
+        }
+        return 0;
+    }
+
+    public long getBorrowHits() {
+        return borrowHits.sum();
+    }
+
+    public long getBorrowMisses() {
+        return borrowMisses.sum();
+    }
+
+    public long getConnectFailures() {
+        return connectFailures.sum();
+    }
+
+    public long getHandshakeFailures() {
+        return handshakeFailures.sum();
+    }
+
+    public long getFailovers() {
+        return failovers.sum();
+    }
+
+    public long getForcedSwitches() {
+        return forcedSwitches.sum();
+    }
+
+    public long getTunnels() {
+        return tunnels.sum();
+    }
+
+    public long getActiveTunnels() {
+        return activeTunnels.sum();
+    }
+
+    public long getUploadBytes() {
+        return uploadBytes.sum();
+    }
+
+    public long getDownloadBytes() {
+        return downloadBytes.sum();
+    }
+
+    public long getRelayWrites() {
+        return relayWrites.sum();
+    }
+
+    public long getRelayFlushes() {
+        return relayFlushes.sum();
+    }
+
+    public long getRelayPausedNanos() {
+        return relayPausedNanos.sum();
+    }
+}
@@ -1,22 +1,24 @@
 package com.virjar.spider.proxy.ha.core;
 
 import com.virjar.spider.proxy.ha.Configs;
+import com.virjar.spider.proxy.ha.handlers.upstream.Socks5UpstreamHandShaker;
+import com.virjar.spider.proxy.ha.handlers.upstream.UpstreamHandShaker;
 import com.virjar.spider.proxy.ha.safethread.ValueCallback;
+import com.virjar.spider.proxy.ha.utils.NettyTransport;
 import com.virjar.spider.proxy.ha.utils.NettyUtils;
+import com.virjar.spider.proxy.ha.utils.WheelTimer;
 import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
 import io.netty.channel.*;
-import io.netty.channel.nio.NioEventLoopGroup;
-import io.netty.channel.socket.nio.NioSocketChannel;
 import io.netty.util.AttributeKey;
-import io.netty.util.concurrent.DefaultThreadFactory;
 import io.netty.util.internal.ConcurrentSet;
+import lombok.AccessLevel;
 import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.BooleanUtils;
 
-import java.util.HashSet;
-import java.util.LinkedList;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -42,28 +44,53 @@ public class Upstream {
     /**
      * 连接缓存，和真的代理服务器保持的连接，他是提前创建的连接用于代理转发加速
      */
-    private final LinkedList<Channel> channelCache = new LinkedList<>();
+    private final ChannelCache channelCache = new ChannelCache();
 
     /**
-     * 当前正在使用的连接资源，用于监控上游代理服务器是否掉线
+     * http代理请求完成之后归还的keep-alive连接，只给普通http代理请求复用
      */
-    private final Set<Channel> usedChannels = new HashSet<>();
+    private final ChannelCache keepAliveCache = new ChannelCache();
+
+    /**
+     * 当前正在使用的连接资源，用于监控上游代理服务器是否掉线。
+     * 连接的借用和归还都直接在调用方线程完成，looper只负责路由和销毁这类拓扑变化
+     */
+    private final Set<Channel> usedChannels = ConcurrentHashMap.newKeySet();
 
 
     private long createTimestamp;
 
     private final Set<UpstreamDestroyEvent> destroyCallbacks = new ConcurrentSet<>();
     private final AtomicBoolean destroyed = new AtomicBoolean(false);
-    private static final NioEventLoopGroup upstreamConnectionGroup = new NioEventLoopGroup(
-            0,
-            new DefaultThreadFactory("upstream-group-" + DefaultThreadFactory.toPoolName(NioEventLoopGroup.class))
-            //, NioUdtProvider.BYTE_PROVIDER
-    );
+    private static final EventLoopGroup upstreamConnectionGroup = NettyTransport.newEventLoopGroup("upstream-group-");
+
+    private final MonitorHandler monitorHandler = new MonitorHandler();
+    private final Bootstrap bootstrapPrototype = newBootstrapPrototype();
+
+    /**
+     * 缓存连接数量和存活时间的自适应策略
+     */
+    private final WarmPoolPolicy warmPoolPolicy = new WarmPoolPolicy();
 
-    private Bootstrap upstreamBootstrap;
+    /**
+     * 这个上游资源上的借用、握手、隧道流量计数
+     */
+    @Getter
+    private final TrafficMetrics metrics = new TrafficMetrics();
+
+    /**
+     * 延时和失败次数评分，用于备用资源的挑选
+     */
+    @Getter(AccessLevel.PACKAGE)
+    private final UpstreamScore score = new UpstreamScore();
 
     private AtomicInteger connectFailedCount = new AtomicInteger(0);
 
+    /**
+     * 上游是否支持socks5乐观握手（一次发送greeting、鉴权、CONNECT），出现一次异常之后对这个上游永久关闭
+     */
+    private volatile boolean socks5PipelineSupported = true;
+
 
     Upstream(Source source, String upstreamHost, Integer upstreamPort, String outIp) {
         this.source = source;
@@ -83,81 +110,272 @@ public class Upstream {
 
     private void init() {
         createTimestamp = System.currentTimeMillis();
-        upstreamBootstrap = new Bootstrap()
-                .group(upstreamConnectionGroup)
-                .channelFactory(NioSocketChannel::new)
-                .handler(new MonitorHandler());
-        upstreamBootstrap.option(ChannelOption.CONNECT_TIMEOUT_MILLIS, connectTimeout);
         scheduleCreateCacheConnection();
     }
 
-    private void safeDo(Runnable runnable) {
-        source.getLooper().post(runnable);
+    /**
+     * 不带eventLoop的Bootstrap模板，每次建立连接时复制一份再指定eventLoop，不需要重复配置传输实现和选项
+     */
+    private Bootstrap newBootstrapPrototype() {
+        Bootstrap bootstrap = new Bootstrap()
+                .handler(monitorHandler);
+        NettyTransport.configBootstrap(bootstrap);
+        bootstrap.option(ChannelOption.CONNECT_TIMEOUT_MILLIS, connectTimeout);
+        return bootstrap;
+    }
+
+    private static EventLoopGroup connectionGroup() {
+        if (Configs.upstreamEventLoopAffinity) {
+            // 亲和模式下，上游连接和用户连接共享同一组eventLoop
+            return HaProxyMapping.workerGroup();
+        }
+        return upstreamConnectionGroup;
+    }
+
+    /**
+     * @param eventLoop 用户连接所在的eventLoop，亲和模式下优先返回同一个eventLoop上的连接
+     */
+    public void borrowConnect(EventLoop eventLoop, ValueCallback<Channel> valueCallback) {
+        borrowConnect(eventLoop, false, valueCallback);
     }
 
-    public void borrowConnect(ValueCallback<Channel> valueCallback) {
-        safeDo(() -> borrowConnect0(value -> {
-            if (value == null) {
-                if (connectFailedCount.incrementAndGet() > 3) {
-                    doDestroy();
-                    source.getLooper().postDelay(() -> {
-                        // 代理服务器的代理服务关闭，只是server socket关闭，无法接受请求
-                        // 但是已经创建完成的连接还是可以工作，此时upstream存在alive的连接
-                        // 可以认为此时代理ip处于可用和可用的中间态（可用指：当前处理的channel可能仍然在传输数据，所以不能关闭。不可用指：新的代理连接已经无法创建）
-                        // 此时我们的策略：马上进行upstream路由，切换到其他代理ip源上。60s后关闭上面的所有连接，避免泄漏
-                        NettyUtils.closeAll(usedChannels);
-                    }, 60 * 1000);
+    /**
+     * 借用直接在调用方线程完成，不经过Source的looper。回调在连接所在的eventLoop中执行
+     *
+     * @param reuseKeepAlive 是否可以复用http请求归还的keep-alive连接，只有普通http代理请求可以使用
+     */
+    public void borrowConnect(EventLoop eventLoop, boolean reuseKeepAlive, ValueCallback<Channel> valueCallback) {
+        borrowConnect(eventLoop, reuseKeepAlive, null, valueCallback);
+    }
 
+    /**
+     * @param borrowerMetrics 借用方（映射端口）的计数器，借用的命中和失败同时记录在这里，可以为null
+     */
+    void borrowConnect(EventLoop eventLoop, boolean reuseKeepAlive, TrafficMetrics borrowerMetrics,
+                       ValueCallback<Channel> valueCallback) {
+        EventLoop preferEventLoop = Configs.upstreamEventLoopAffinity ? eventLoop : null;
+        Channel cached = pollCachedConnect(preferEventLoop, reuseKeepAlive);
+        recordBorrow(borrowerMetrics, cached != null);
+        if (cached != null) {
+            usedChannels.add(cached);
+            if (cached.eventLoop().inEventLoop()) {
+                onBorrowed(cached, eventLoop, reuseKeepAlive, borrowerMetrics, valueCallback);
+            } else {
+                cached.eventLoop().execute(() -> onBorrowed(cached, eventLoop, reuseKeepAlive, borrowerMetrics, valueCallback));
+            }
+            return;
+        }
+
+        createUpStreamImpl(preferEventLoop).addListener((ChannelFutureListener) channelFuture -> {
+            if (!channelFuture.isSuccess()) {
+                metrics.onConnectFailed();
+                if (borrowerMetrics != null) {
+                    borrowerMetrics.onConnectFailed();
                 }
+                onBorrowFailed();
                 valueCallback.onReceiveValue(null);
                 return;
             }
-            usedChannels.add(value);
-            value.eventLoop().execute(() -> {
-                if (!value.isActive()) {
-                    borrowConnect(valueCallback);
-                } else {
-                    connectFailedCount.set(0);
-                    value.attr(IS_IDLE_CONNECTION).set(false);
-                    valueCallback.onReceiveValue(value);
-                }
-            });
+            usedChannels.add(channelFuture.channel());
+            onBorrowed(channelFuture.channel(), eventLoop, reuseKeepAlive, borrowerMetrics, valueCallback);
+        });
+    }
 
-        }));
+    private void recordBorrow(TrafficMetrics borrowerMetrics, boolean cacheHit) {
+        metrics.onBorrow(cacheHit);
+        if (borrowerMetrics != null) {
+            borrowerMetrics.onBorrow(cacheHit);
+        }
     }
 
-    private void borrowConnect0(ValueCallback<Channel> valueCallback) {
-        source.getLooper().checkLooper();
-        while (true) {
-            Channel one = channelCache.poll();
+    /**
+     * 在连接所在的eventLoop中执行
+     */
+    private void onBorrowed(Channel channel, EventLoop eventLoop, boolean reuseKeepAlive,
+                            TrafficMetrics borrowerMetrics, ValueCallback<Channel> valueCallback) {
+        if (!channel.isActive()) {
+            usedChannels.remove(channel);
+            borrowConnect(eventLoop, reuseKeepAlive, borrowerMetrics, valueCallback);
+            return;
+        }
+        connectFailedCount.set(0);
+        channel.attr(IS_IDLE_CONNECTION).set(false);
+        valueCallback.onReceiveValue(channel);
+    }
+
+    private void onBorrowFailed() {
+        if (connectFailedCount.incrementAndGet() <= 3) {
+            return;
+        }
+        doDestroy();
+        source.getLooper().postDelay(() -> {
+            // 代理服务器的代理服务关闭，只是server socket关闭，无法接受请求
+            // 但是已经创建完成的连接还是可以工作，此时upstream存在alive的连接
+            // 可以认为此时代理ip处于可用和可用的中间态（可用指：当前处理的channel可能仍然在传输数据，所以不能关闭。不可用指：新的代理连接已经无法创建）
+            // 此时我们的策略：马上进行upstream路由，切换到其他代理ip源上。60s后关闭上面的所有连接，避免泄漏
+            NettyUtils.closeAll(usedChannels);
+        }, 60 * 1000);
+    }
+
+    /**
+     * 从连接缓存中取出一个可用的连接，没有命中时返回null
+     */
+    private Channel pollCachedConnect(EventLoop preferEventLoop, boolean reuseKeepAlive) {
+        while (reuseKeepAlive) {
+            Channel one = keepAliveCache.poll(preferEventLoop);
             if (one == null) {
                 break;
             }
             if (one.isActive()) {
-                valueCallback.onReceiveValue(one);
-                return;
+                return one;
             }
         }
-
-        createUpStreamImpl().addListener((ChannelFutureListener) channelFuture -> {
-            if (channelFuture.isSuccess()) {
-                safeDo(() -> valueCallback.onReceiveValue(channelFuture.channel()));
-                return;
+        Channel cached = null;
+        while (cached == null) {
+            Channel one = channelCache.poll(preferEventLoop);
+            if (one == null) {
+                break;
             }
-            valueCallback.onReceiveValue(null);
-        });
+            if (!one.isActive()) {
+                continue;
+            }
+            if (isSocks5NegotiateStale(one)) {
+                // 预协商太久，上游可能已经清理了鉴权会话
+                one.attr(IS_IDLE_NORMAL_CLOSE).set(true);
+                one.close();
+                continue;
+            }
+            cached = one;
+        }
+        warmPoolPolicy.onBorrow(cached != null);
+        // 命中和未命中都只补充一次，未命中时调用方还会直接建立一个连接
+        topUpAfterBorrow(preferEventLoop);
+        return cached;
+    }
+
+    /**
+     * 借用之后补充缓存连接。当前eventLoop上的缓存连接已经耗尽时在这个eventLoop上补充一个，下次借用就可以命中；
+     * 否则按照目标数量补充
+     */
+    private void topUpAfterBorrow(EventLoop preferEventLoop) {
+        if (!isActive()) {
+            return;
+        }
+        if (preferEventLoop != null && channelCache.size(preferEventLoop) == 0
+                && channelCache.size() + connectionCacheTaskSize.get() < warmPoolPolicy.targetSize()) {
+            createCacheConnection(preferEventLoop);
+            return;
+        }
+        scheduleCreateCacheConnection();
+    }
+
+    /**
+     * 归还一个完成了http请求并且上游允许keep-alive的连接，调用方需要保证连接上已经没有任何编解码器和未完成的报文
+     */
+    public void returnKeepAliveConnect(Channel channel) {
+        usedChannels.remove(channel);
+        if (!channel.isActive()) {
+            return;
+        }
+        if (!isActive()) {
+            NettyUtils.closeChannelIfActive(channel);
+            return;
+        }
+        // 和缓存连接一样按照学习到的上游空闲超时回收，上游先关闭时同样参与空闲超时的学习
+        channel.attr(IS_IDLE_CONNECTION).set(true);
+        keepAliveCache.add(channel);
+        scheduleIdleExpire(channel);
+    }
+
+    /**
+     * 归还一个借出但是没有使用过的连接（比如对冲竞争中落后的连接），重新作为缓存连接
+     */
+    public void returnConnect(Channel channel) {
+        usedChannels.remove(channel);
+        if (!channel.isActive()) {
+            return;
+        }
+        if (!isActive()) {
+            NettyUtils.closeChannelIfActive(channel);
+            return;
+        }
+        channel.attr(IS_IDLE_CONNECTION).set(true);
+        channelCache.add(channel);
+        scheduleIdleExpire(channel);
+    }
+
+    /**
+     * 缓存连接超时一直没有使用，那么把他销毁
+     */
+    private void scheduleIdleExpire(Channel upstreamChannel) {
+        long idleTimestamp = System.currentTimeMillis();
+        upstreamChannel.attr(IDLE_TIMESTAMP).set(idleTimestamp);
+        // 只向前抖动，保证在学习到的上游空闲超时之前回收，同时避免同一批连接同时过期
+        long delayMillis = (long) (warmPoolPolicy.lifetimeMillis() * (1 - 0.2 * ThreadLocalRandom.current().nextDouble()));
+        if (isSocks5Negotiated(upstreamChannel)) {
+            // 预协商的连接在鉴权会话过期之前销毁，连接池会补充新的连接
+            delayMillis = Math.min(delayMillis, source.getSocks5PreNegotiateTtlSeconds() * 1000L);
+        }
+        WheelTimer.newTimeout(() -> {
+                    // 已经被借出使用，或者被借出之后又归还的连接不能关闭
+                    if (upstreamChannel.isActive() && BooleanUtils.isTrue(upstreamChannel.attr(IS_IDLE_CONNECTION).get())
+                            && Long.valueOf(idleTimestamp).equals(upstreamChannel.attr(IDLE_TIMESTAMP).get())) {
+                        upstreamChannel.attr(IS_IDLE_NORMAL_CLOSE).set(true);
+                        upstreamChannel.close();
+                        log.info("destroy unused channel");
+                        warmPoolPolicy.onSelfExpire();
+                    }
+                },
+                delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 连接是否已经完成socks5的greeting和鉴权，借用方只需要发送CONNECT
+     */
+    public static boolean isSocks5Negotiated(Channel channel) {
+        return channel.attr(SOCKS5_NEGOTIATED_TIMESTAMP).get() != null;
+    }
+
+    private boolean isSocks5NegotiateStale(Channel channel) {
+        Long negotiatedTimestamp = channel.attr(SOCKS5_NEGOTIATED_TIMESTAMP).get();
+        return negotiatedTimestamp != null
+                && System.currentTimeMillis() - negotiatedTimestamp > source.getSocks5PreNegotiateTtlSeconds() * 1000L;
+    }
+
+    public boolean isSocks5PipelineSupported() {
+        return socks5PipelineSupported;
+    }
+
+    public void markSocks5PipelineUnsupported() {
+        socks5PipelineSupported = false;
+    }
+
+    /**
+     * 获取连接所属的上游资源
+     */
+    public static Upstream owner(Channel channel) {
+        return channel.attr(OWNER_UPSTREAM).get();
     }
 
     private final AtomicInteger connectionCacheTaskSize = new AtomicInteger(0);
 
-    private ChannelFuture createUpStreamImpl() {
-        ChannelFuture future = upstreamBootstrap.connect(upstreamHost, upstreamPort);
+    private ChannelFuture createUpStreamImpl(EventLoop eventLoop) {
+        // 连接所在的eventLoop，可以是一个特定的eventLoop
+        Bootstrap bootstrap = bootstrapPrototype.clone()
+                .group(eventLoop == null ? connectionGroup() : eventLoop);
+        long startTimestamp = System.currentTimeMillis();
+        ChannelFuture future = bootstrap.connect(upstreamHost, upstreamPort);
         DefaultChannelPromise promise = new DefaultChannelPromise(future.channel());
         future.addListener((ChannelFutureListener) channelFuture -> {
             if (channelFuture.isSuccess()) {
+                long cost = System.currentTimeMillis() - startTimestamp;
+                warmPoolPolicy.onConnected(cost);
+                score.onConnect(cost);
+                channelFuture.channel().attr(OWNER_UPSTREAM).set(Upstream.this);
                 promise.setSuccess();
                 channelFuture.channel().closeFuture().addListener((ChannelFutureListener) channelFuture1 -> onUpstreamConnectionClose(channelFuture1.channel()));
             } else {
+                score.onFailure();
                 promise.setFailure(channelFuture.cause());
             }
         });
@@ -169,88 +387,116 @@ public class Upstream {
             return;
         }
 
-        for (int i = channelCache.size(); i < Configs.cacheConnPerUpstream; i++) {
-            if (!createCacheConnection()) {
+        int target = warmPoolPolicy.targetSize();
+        for (int i = channelCache.size() + connectionCacheTaskSize.get(); i < target; i++) {
+            if (!createCacheConnection(null)) {
                 break;
             }
         }
     }
 
-    private boolean createCacheConnection() {
-        if (connectionCacheTaskSize.getAndIncrement() > Configs.cacheConnPerUpstream) {
+    private boolean createCacheConnection(EventLoop eventLoop) {
+        if (connectionCacheTaskSize.getAndIncrement() > warmPoolPolicy.targetSize()) {
             connectionCacheTaskSize.decrementAndGet();
             return false;
         }
-        createUpStreamImpl().addListener((ChannelFutureListener) channelFuture -> {
+        createUpStreamImpl(eventLoop).addListener((ChannelFutureListener) channelFuture -> {
             connectionCacheTaskSize.decrementAndGet();
             if (!channelFuture.isSuccess()) {
                 // 缓存请求，理论上不应该失败，如果失败了进行一次检测
                 destroyIfDetected();
                 return;
             }
-            channelFuture.channel().attr(IS_IDLE_CONNECTION).set(true);
-
-            safeDo(() -> {
-                Channel upstreamChannel = channelFuture.channel();
-                // 这里，优先使用最近产生的连接
-                channelCache.addFirst(upstreamChannel);
-                upstreamChannel.eventLoop().schedule(() -> {
-                            // 超时一直没有使用，那么把他销毁
-                            if (upstreamChannel.isActive()) {
-                                upstreamChannel.attr(IS_IDLE_NORMAL_CLOSE).set(true);
-                                upstreamChannel.close();
-                                log.info("destroy unused channel");
-                            }
-                        },
-                        Configs.cacheConnAliveSeconds + Math.abs((int) (Configs.cacheConnAliveSeconds * ThreadLocalRandom.current().nextGaussian())),
-                        TimeUnit.SECONDS);
+            Channel upstreamChannel = channelFuture.channel();
+            upstreamChannel.attr(IS_IDLE_CONNECTION).set(true);
+            if (!source.isSocks5PreNegotiate()) {
+                addCacheConnection(upstreamChannel);
+                return;
+            }
+            Socks5UpstreamHandShaker.preNegotiate(upstreamChannel, source, new UpstreamHandShaker.UpstreamHandSharkCallback() {
+                @Override
+                public void onHandSharkFailed(String message) {
+                    log.warn("socks5 pre negotiate failed for upstream:{} {}", resourceKey(), message);
+                    NettyUtils.closeChannelIfActive(upstreamChannel);
+                }
+
+                @Override
+                public void onHandSharkSuccess() {
+                    upstreamChannel.attr(SOCKS5_NEGOTIATED_TIMESTAMP).set(System.currentTimeMillis());
+                    addCacheConnection(upstreamChannel);
+                }
             });
         });
         return true;
     }
 
+    private void addCacheConnection(Channel upstreamChannel) {
+        channelCache.add(upstreamChannel);
+        scheduleIdleExpire(upstreamChannel);
+    }
+
     // 标记这个链接是idle链接，一旦链接被使用了，那么他会切换为非idle态
     private static final AttributeKey<Boolean> IS_IDLE_CONNECTION = AttributeKey.newInstance("IS_IDLE_CONNECTION");
     // 标记链接是idle超时后主动关闭，主动关闭的资源不参与销毁判定
     private static final AttributeKey<Boolean> IS_IDLE_NORMAL_CLOSE = AttributeKey.newInstance("IS_IDLE_NORMAL_CLOSE");
+    // 连接进入缓存（包括keep-alive连接归还）的时间，用于学习上游的空闲超时
+    private static final AttributeKey<Long> IDLE_TIMESTAMP = AttributeKey.newInstance("IDLE_TIMESTAMP");
+    // socks5预协商（greeting和鉴权）完成的时间，只有缓存连接会设置
+    private static final AttributeKey<Long> SOCKS5_NEGOTIATED_TIMESTAMP = AttributeKey.newInstance("SOCKS5_NEGOTIATED_TIMESTAMP");
+    private static final AttributeKey<Upstream> OWNER_UPSTREAM = AttributeKey.newInstance("OWNER_UPSTREAM");
+    // 握手阶段直接读取上游原始数据的回调，握手完成之后清空
+    private static final AttributeKey<HandshakeReader> HANDSHAKE_READER = AttributeKey.newInstance("HANDSHAKE_READER");
+
+    /**
+     * 握手阶段在MonitorHandler中直接读取上游返回的原始数据，不需要在pipeline中增删编解码
+     */
+    public interface HandshakeReader {
+        /**
+         * @param data 上游返回的数据，由实现方负责释放
+         */
+        void onRead(ByteBuf data);
+
+        /**
+         * 握手过程中连接异常或者被关闭
+         */
+        void onError(String message);
+    }
+
+    /**
+     * 设置或者清空（null）连接的握手读取回调，需要在发送握手报文之前设置
+     */
+    public static void setHandshakeReader(Channel channel, HandshakeReader handshakeReader) {
+        channel.attr(HANDSHAKE_READER).set(handshakeReader);
+    }
 
     private void onUpstreamConnectionClose(Channel channel) {
-        safeDo(() -> {
-            usedChannels.remove(channel);
-            boolean isIdleChannel = BooleanUtils.isTrue(channel.attr(IS_IDLE_CONNECTION).get());
-            boolean isIdleNormalClose = BooleanUtils.isTrue(channel.attr(IS_IDLE_NORMAL_CLOSE).get());
-            if (isActive()) {
-                if (isIdleChannel && !isIdleNormalClose) {
-                    // idle链接，如果是服务器主动关闭的，那么认为可能掉线
-                    // 如果是我们自己认为idle太久关闭的，那么我们忽略他
+        usedChannels.remove(channel);
+        channelCache.remove(channel);
+        keepAliveCache.remove(channel);
+        boolean isIdleChannel = BooleanUtils.isTrue(channel.attr(IS_IDLE_CONNECTION).get());
+        boolean isIdleNormalClose = BooleanUtils.isTrue(channel.attr(IS_IDLE_NORMAL_CLOSE).get());
+        if (isActive()) {
+            if (isIdleChannel && !isIdleNormalClose) {
+                // idle链接，如果是服务器主动关闭的，那么认为可能掉线
+                // 如果是我们自己认为idle太久关闭的，那么我们忽略他
+                Long idleTimestamp = channel.attr(IDLE_TIMESTAMP).get();
+                long idleMillis = idleTimestamp == null ? 0 : System.currentTimeMillis() - idleTimestamp;
+                if (warmPoolPolicy.onVendorIdleClose(idleMillis)) {
+                    // 关闭时间和上游的空闲超时吻合，不是掉线。真的掉线的话补充缓存连接时会检测到
+                    log.info("upstream:{} close idle connection after {}ms, {}", resourceKey(), idleMillis, warmPoolPolicy);
+                } else {
                     destroyIfDetected();
                 }
-                scheduleCreateCacheConnection();
             }
-
-
-        });
+            scheduleCreateCacheConnection();
+        }
     }
 
     private void destroyIfDetected() {
-        if (!source.getLooper().inLooper()) {
-            safeDo(this::destroyIfDetected);
-            return;
-        }
         if (!usedChannels.isEmpty()) {
             return;
         }
-        boolean canDestroy = true;
-        while (!channelCache.isEmpty()) {
-            Channel peek = channelCache.peek();
-            if (!peek.isActive()) {
-                channelCache.removeFirst();
-                continue;
-            }
-            canDestroy = false;
-            break;
-        }
-        if (!canDestroy) {
+        if (channelCache.purgeInactive() || keepAliveCache.purgeInactive()) {
             return;
         }
         doDestroy();
@@ -258,6 +504,7 @@ public class Upstream {
 
     public void doDestroy() {
         if (destroyed.compareAndSet(false, true)) {
+            source.onUpstreamDestroyed();
             for (UpstreamDestroyEvent upstreamDestroyEvent : this.destroyCallbacks) {
                 upstreamDestroyEvent.onDestroy(this);
             }
@@ -290,13 +537,32 @@ public class Upstream {
 
         @Override
         public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+            HandshakeReader handshakeReader = ctx.channel().attr(HANDSHAKE_READER).get();
+            if (handshakeReader != null && msg instanceof ByteBuf) {
+                handshakeReader.onRead((ByteBuf) msg);
+                return;
+            }
             super.channelRead(ctx, msg);
             // 这里监控读写情况，可以用于判定读写超时问题
             // todo 也可以修改为 idle
         }
 
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+            HandshakeReader handshakeReader = ctx.channel().attr(HANDSHAKE_READER).get();
+            if (handshakeReader != null) {
+                handshakeReader.onError("upstream closed during handshake");
+            }
+            super.channelInactive(ctx);
+        }
+
         @Override
         public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+            HandshakeReader handshakeReader = ctx.channel().attr(HANDSHAKE_READER).get();
+            if (handshakeReader != null) {
+                handshakeReader.onError(cause.getMessage());
+                return;
+            }
             // ignore
             if (BooleanUtils.isTrue(ctx.channel().attr(IS_IDLE_CONNECTION).get())) {
                 // 空转连接被关闭，不打印日志
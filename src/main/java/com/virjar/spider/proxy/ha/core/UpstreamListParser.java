@@ -0,0 +1,220 @@
+package com.virjar.spider.proxy.ha.core;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * source_url返回的代理资源列表解析，格式为 ip:port\nip:port...
+ * <br>
+ * 响应分块到达时直接按字节解析，不需要先拼成完整的字符串。ipv4的资源压缩为一个long（高位ip，低16位端口），
+ * 整个解析过程每一行都不产生对象；少量域名形式的资源才会生成字符串
+ * <br>
+ * 非线程安全，一次刷新使用一个实例
+ */
+class UpstreamListParser {
+    private static final int MAX_LINE_LENGTH = 256;
+
+    private final byte[] line = new byte[MAX_LINE_LENGTH];
+    private int lineLength = 0;
+    private boolean lineOverflow = false;
+
+    private long[] packed = new long[1024];
+    private int packedSize = 0;
+    private final List<String> hostResources = new ArrayList<>();
+
+    private long totalBytes = 0;
+    private int lineCount = 0;
+    private int invalidCount = 0;
+
+    void feed(ByteBuffer buffer) {
+        totalBytes += buffer.remaining();
+        while (buffer.hasRemaining()) {
+            byte b = buffer.get();
+            if (b == '\n') {
+                endLine();
+                continue;
+            }
+            if (lineLength < MAX_LINE_LENGTH) {
+                line[lineLength++] = b;
+            } else {
+                lineOverflow = true;
+            }
+        }
+    }
+
+    /**
+     * 响应结束，最后一行可能没有换行符
+     */
+    void finish() {
+        endLine();
+    }
+
+    private void endLine() {
+        int start = 0;
+        int end = lineLength;
+        boolean overflow = lineOverflow;
+        lineLength = 0;
+        lineOverflow = false;
+
+        while (start < end && isBlank(line[start])) {
+            start++;
+        }
+        while (end > start && isBlank(line[end - 1])) {
+            end--;
+        }
+        if (start == end) {
+            return;
+        }
+        lineCount++;
+        if (overflow) {
+            invalidCount++;
+            return;
+        }
+        int colon = -1;
+        for (int i = end - 1; i >= start; i--) {
+            if (line[i] == ':') {
+                colon = i;
+                break;
+            }
+        }
+        int port = colon < 0 ? -1 : parsePort(colon + 1, end);
+        if (port <= 0) {
+            invalidCount++;
+            return;
+        }
+        long ip = parseIpV4(start, colon);
+        if (ip >= 0) {
+            addPacked((ip << 16) | port);
+            return;
+        }
+        if (!isHostName(start, colon)) {
+            invalidCount++;
+            return;
+        }
+        hostResources.add(new String(line, start, colon - start, StandardCharsets.US_ASCII).trim() + ":" + port);
+    }
+
+    private static boolean isBlank(byte b) {
+        return b == ' ' || b == '\t' || b == '\r';
+    }
+
+    private int parsePort(int start, int end) {
+        while (start < end && isBlank(line[start])) {
+            start++;
+        }
+        if (start == end || end - start > 5) {
+            return -1;
+        }
+        int port = 0;
+        for (int i = start; i < end; i++) {
+            byte b = line[i];
+            if (b < '0' || b > '9') {
+                return -1;
+            }
+            port = port * 10 + (b - '0');
+        }
+        return port > 65535 ? -1 : port;
+    }
+
+    /**
+     * @return 32位无符号ip，不是ipv4格式时返回-1
+     */
+    private long parseIpV4(int start, int end) {
+        while (end > start && isBlank(line[end - 1])) {
+            end--;
+        }
+        long ip = 0;
+        int octet = 0;
+        int digits = 0;
+        int dots = 0;
+        for (int i = start; i < end; i++) {
+            byte b = line[i];
+            if (b == '.') {
+                if (digits == 0 || ++dots > 3) {
+                    return -1;
+                }
+                ip = (ip << 8) | octet;
+                octet = 0;
+                digits = 0;
+                continue;
+            }
+            if (b < '0' || b > '9' || ++digits > 3) {
+                return -1;
+            }
+            octet = octet * 10 + (b - '0');
+            if (octet > 255) {
+                return -1;
+            }
+        }
+        if (dots != 3 || digits == 0) {
+            return -1;
+        }
+        return (ip << 8) | octet;
+    }
+
+    /**
+     * 域名至少包含一个字母，全是数字和点的是非法的ipv4
+     */
+    private boolean isHostName(int start, int end) {
+        boolean hasLetter = false;
+        for (int i = start; i < end; i++) {
+            byte b = line[i];
+            boolean letter = (b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z');
+            if (!letter && !(b >= '0' && b <= '9') && b != '.' && b != '-' && b != '_') {
+                return false;
+            }
+            hasLetter |= letter;
+        }
+        return hasLetter;
+    }
+
+    private void addPacked(long value) {
+        if (packedSize == packed.length) {
+            packed = Arrays.copyOf(packed, packed.length * 2);
+        }
+        packed[packedSize++] = value;
+    }
+
+    /**
+     * 排序并去重之后的ipv4资源
+     */
+    long[] sortedPacked() {
+        long[] ret = Arrays.copyOf(packed, packedSize);
+        Arrays.sort(ret);
+        int size = 0;
+        for (int i = 0; i < ret.length; i++) {
+            if (size == 0 || ret[size - 1] != ret[i]) {
+                ret[size++] = ret[i];
+            }
+        }
+        return size == ret.length ? ret : Arrays.copyOf(ret, size);
+    }
+
+    List<String> getHostResources() {
+        return hostResources;
+    }
+
+    static String host(long packedValue) {
+        long ip = packedValue >>> 16;
+        return ((ip >>> 24) & 0xFF) + "." + ((ip >>> 16) & 0xFF) + "." + ((ip >>> 8) & 0xFF) + "." + (ip & 0xFF);
+    }
+
+    static int port(long packedValue) {
+        return (int) (packedValue & 0xFFFF);
+    }
+
+    long getTotalBytes() {
+        return totalBytes;
+    }
+
+    int getLineCount() {
+        return lineCount;
+    }
+
+    int getInvalidCount() {
+        return invalidCount;
+    }
+}
@@ -0,0 +1,90 @@
+package com.virjar.spider.proxy.ha.core;
+
+/**
+ * 上游资源的质量评分，用于从备用池中挑选替换资源，分数越低越好，单位可以理解为毫秒
+ * <br>
+ * 分数 = 建连耗时 + 握手耗时 + 失败惩罚。耗时样本的可信度随时间衰减，长时间没有样本时逐步回到未知资源的默认值，
+ * 失败次数同样随时间衰减，一次偶然的失败不会让资源永远排在最后
+ * <br>
+ * 线程安全，样本来自各个eventLoop，评分在looper中读取
+ */
+class UpstreamScore {
+    /**
+     * 耗时样本的可信度衰减时间常数
+     */
+    private static final double SAMPLE_TAU_MILLIS = 10 * 60 * 1000;
+    /**
+     * 失败次数的衰减时间常数
+     */
+    private static final double FAILURE_TAU_MILLIS = 5 * 60 * 1000;
+    private static final double RTT_ALPHA = 0.3;
+    /**
+     * 还没有样本的资源，假设建连和握手各需要这么久
+     */
+    private static final double UNKNOWN_RTT_MILLIS = 500;
+    /**
+     * 一次失败相当于增加的耗时
+     */
+    private static final double FAILURE_PENALTY_MILLIS = 2000;
+
+    private final Rtt connectRtt = new Rtt();
+    private final Rtt handshakeRtt = new Rtt();
+    private double failures = 0;
+    private long failureTimestamp = 0;
+
+    private static class Rtt {
+        private double millis = -1;
+        private long timestamp = 0;
+
+        void onSample(long costMillis, long now) {
+            millis = millis < 0 ? costMillis : millis * (1 - RTT_ALPHA) + costMillis * RTT_ALPHA;
+            timestamp = now;
+        }
+
+        double estimate(long now) {
+            if (millis < 0) {
+                return UNKNOWN_RTT_MILLIS;
+            }
+            double weight = Math.exp(-(now - timestamp) / SAMPLE_TAU_MILLIS);
+            return millis * weight + UNKNOWN_RTT_MILLIS * (1 - weight);
+        }
+    }
+
+    synchronized void onConnect(long costMillis) {
+        connectRtt.onSample(costMillis, System.currentTimeMillis());
+    }
+
+    /**
+     * 代理握手的耗时，备用资源没有真实的握手，探测请求的耗时也作为样本
+     */
+    synchronized void onHandshake(long costMillis) {
+        handshakeRtt.onSample(costMillis, System.currentTimeMillis());
+    }
+
+    /**
+     * 建连失败、握手失败、业务反馈质量差
+     */
+    synchronized void onFailure() {
+        long now = System.currentTimeMillis();
+        failures = decayedFailures(now) + 1;
+        failureTimestamp = now;
+    }
+
+    private double decayedFailures(long now) {
+        if (failures == 0) {
+            return 0;
+        }
+        return failures * Math.exp(-(now - failureTimestamp) / FAILURE_TAU_MILLIS);
+    }
+
+    synchronized double score(long now) {
+        return connectRtt.estimate(now) + handshakeRtt.estimate(now) + decayedFailures(now) * FAILURE_PENALTY_MILLIS;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("score:%.0f connect:%.0f handshake:%.0f failures:%.2f",
+                score(System.currentTimeMillis()), connectRtt.millis, handshakeRtt.millis,
+                decayedFailures(System.currentTimeMillis()));
+    }
+}
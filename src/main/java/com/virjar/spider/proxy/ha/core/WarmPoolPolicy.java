@@ -0,0 +1,182 @@
+package com.virjar.spider.proxy.ha.core;
+
+import com.virjar.spider.proxy.ha.Configs;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 缓存连接池的自适应策略
+ * <br>
+ * 1. 缓存连接数量：根据借用速率（指数衰减的EWMA）和缓存未命中率计算，限制在全局的最小最大值之间。热点端口多缓存，冷端口少缓存
+ * <br>
+ * 2. 缓存连接存活时间：上游多次在相近的空闲时间关闭连接之后，学习上游允许的空闲时间，之后在这个时间之前主动回收；
+ * 上游一直没有主动关闭的话，逐步延长存活时间，减少冷端口上无意义的连接重建
+ * <br>
+ * 线程安全。借用路径上只做计数，每隔一段时间由某一个借用线程把计数折算到EWMA中；其他事件频率很低，直接加锁
+ */
+class WarmPoolPolicy {
+    /**
+     * 借用速率的衰减时间常数
+     */
+    private static final double RATE_TAU_SECONDS = 60;
+    private static final double MISS_ALPHA = 0.1;
+    private static final double CONNECT_ALPHA = 0.2;
+    private static final double VENDOR_IDLE_ALPHA = 0.3;
+    /**
+     * 最近的空闲关闭中至少有这么多次时间相近（相差不超过VENDOR_IDLE_TOLERANCE），才认为上游有固定的空闲超时
+     */
+    private static final int VENDOR_IDLE_MIN_SAMPLES = 3;
+    private static final double VENDOR_IDLE_TOLERANCE = 0.2;
+    /**
+     * 在上游关闭之前多久主动回收
+     */
+    private static final double LIFETIME_SAFETY = 0.9;
+    private static final double LIFETIME_PROBE_FACTOR = 1.25;
+    private static final long MIN_LIFETIME_MILLIS = 5000;
+    /**
+     * 还没有连接耗时样本时，假设建立一个连接需要1s
+     */
+    private static final double DEFAULT_CONNECT_SECONDS = 1;
+    /**
+     * 借用计数折算到EWMA的间隔
+     */
+    private static final long SAMPLE_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final LongAdder borrowCount = new LongAdder();
+    private final LongAdder missCount = new LongAdder();
+    private final AtomicLong lastSampleNanos = new AtomicLong(System.nanoTime());
+    private boolean everBorrowed = false;
+
+    /**
+     * 每秒借用次数
+     */
+    private volatile double borrowRate = 0;
+    private volatile double missRatio = 0;
+    private volatile double connectMillis = 0;
+    /**
+     * 学习到的上游空闲连接存活时间，0表示未知
+     */
+    private volatile double vendorIdleLimitMillis = 0;
+    /**
+     * 最近几次不能确认为空闲超时的上游关闭时间，环形数组
+     */
+    private final long[] idleCloseSamples = new long[8];
+    private int idleCloseSampleCount = 0;
+    private volatile double lifetimeMillis = Configs.cacheConnAliveSeconds * 1000L;
+    private volatile int targetSize = Configs.cacheConnPerUpstream;
+
+    void onBorrow(boolean cacheHit) {
+        borrowCount.increment();
+        if (!cacheHit) {
+            missCount.increment();
+        }
+        maybeSample();
+    }
+
+    /**
+     * 距离上次折算超过采样间隔时，由抢到CAS的线程完成折算，其他线程直接返回
+     */
+    private void maybeSample() {
+        long now = System.nanoTime();
+        long last = lastSampleNanos.get();
+        if (now - last < SAMPLE_INTERVAL_NANOS || !lastSampleNanos.compareAndSet(last, now)) {
+            return;
+        }
+        double elapsedSeconds = (now - last) / 1e9;
+        long borrows = borrowCount.sumThenReset();
+        long misses = missCount.sumThenReset();
+        // 不规则间隔的EWMA，间隔越长历史值衰减越多
+        double alpha = 1 - Math.exp(-elapsedSeconds / RATE_TAU_SECONDS);
+        borrowRate = borrowRate * (1 - alpha) + borrows / elapsedSeconds * alpha;
+        if (borrows > 0) {
+            everBorrowed = true;
+            double missAlpha = 1 - Math.pow(1 - MISS_ALPHA, borrows);
+            missRatio = missRatio * (1 - missAlpha) + (double) misses / borrows * missAlpha;
+        }
+        if (everBorrowed) {
+            targetSize = computeTargetSize();
+        }
+    }
+
+    synchronized void onConnected(long costMillis) {
+        connectMillis = connectMillis == 0 ? costMillis : connectMillis * (1 - CONNECT_ALPHA) + costMillis * CONNECT_ALPHA;
+    }
+
+    /**
+     * 上游主动关闭了一个空闲的缓存连接。上游的空闲超时是一个固定值，关闭时间会聚集在这个值附近；
+     * 时间分散的关闭更可能是ip掉线，不能用来学习，也不能跳过掉线检测
+     *
+     * @return 是否认为是上游的空闲超时
+     */
+    synchronized boolean onVendorIdleClose(long idleMillis) {
+        if (idleMillis < MIN_LIFETIME_MILLIS) {
+            // 太短的一般是网络异常，不是上游的空闲超时
+            return false;
+        }
+        if (vendorIdleLimitMillis != 0 && isNear(idleMillis, vendorIdleLimitMillis)) {
+            vendorIdleLimitMillis = vendorIdleLimitMillis * (1 - VENDOR_IDLE_ALPHA) + idleMillis * VENDOR_IDLE_ALPHA;
+            lifetimeMillis = Math.max(MIN_LIFETIME_MILLIS, vendorIdleLimitMillis * LIFETIME_SAFETY);
+            return true;
+        }
+        idleCloseSamples[idleCloseSampleCount++ % idleCloseSamples.length] = idleMillis;
+        int size = Math.min(idleCloseSampleCount, idleCloseSamples.length);
+        int similar = 0;
+        long similarSum = 0;
+        for (int i = 0; i < size; i++) {
+            if (isNear(idleCloseSamples[i], idleMillis)) {
+                similar++;
+                similarSum += idleCloseSamples[i];
+            }
+        }
+        if (similar < VENDOR_IDLE_MIN_SAMPLES) {
+            return false;
+        }
+        // 之前没有学习到，或者上游调整了空闲超时，使用这一组相近样本的均值
+        vendorIdleLimitMillis = (double) similarSum / similar;
+        lifetimeMillis = Math.max(MIN_LIFETIME_MILLIS, vendorIdleLimitMillis * LIFETIME_SAFETY);
+        idleCloseSampleCount = 0;
+        return true;
+    }
+
+    private static boolean isNear(double value, double base) {
+        return Math.abs(value - base) <= base * VENDOR_IDLE_TOLERANCE;
+    }
+
+    /**
+     * 缓存连接到达存活时间，被我们主动关闭
+     */
+    synchronized void onSelfExpire() {
+        if (vendorIdleLimitMillis != 0) {
+            return;
+        }
+        // 上游还没有主动关闭过空闲连接，尝试延长存活时间
+        lifetimeMillis = Math.min(lifetimeMillis * LIFETIME_PROBE_FACTOR, Configs.cacheConnMaxAliveSeconds * 1000L);
+    }
+
+    long lifetimeMillis() {
+        return (long) lifetimeMillis;
+    }
+
+    int targetSize() {
+        maybeSample();
+        return Math.max(Configs.cacheConnMinPerUpstream, Math.min(Configs.cacheConnMaxPerUpstream, targetSize));
+    }
+
+    private int computeTargetSize() {
+        double connectSeconds = connectMillis == 0 ? DEFAULT_CONNECT_SECONDS : connectMillis / 1000;
+        // 补充一个连接的时间内预计会发生的借用次数，未命中率越高放大越多
+        return (int) Math.ceil(borrowRate * connectSeconds * (2 + 4 * missRatio));
+    }
+
+    @Override
+    public String toString() {
+        return "WarmPoolPolicy{rate=" + String.format("%.3f", borrowRate)
+                + ", missRatio=" + String.format("%.3f", missRatio)
+                + ", connectMillis=" + (long) connectMillis
+                + ", vendorIdleLimitMillis=" + (long) vendorIdleLimitMillis
+                + ", lifetimeMillis=" + (long) lifetimeMillis
+                + ", target=" + targetSize + '}';
+    }
+}
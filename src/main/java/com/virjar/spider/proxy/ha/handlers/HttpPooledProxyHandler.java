@@ -0,0 +1,340 @@
+package com.virjar.spider.proxy.ha.handlers;
+
+import com.virjar.spider.proxy.ha.core.HaProxyMapping;
+import com.virjar.spider.proxy.ha.core.TrafficMetrics;
+import com.virjar.spider.proxy.ha.core.Upstream;
+import com.virjar.spider.proxy.ha.utils.HttpNettyUtils;
+import com.virjar.spider.proxy.ha.utils.NettyUtils;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelPipeline;
+import io.netty.handler.codec.http.*;
+import io.netty.util.ReferenceCountUtil;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayDeque;
+
+/**
+ * 普通http代理请求的上游连接池模式
+ * <br>
+ * 每个http请求单独从Upstream借用连接，响应完成（LastHttpContent）之后，如果上游允许keep-alive，
+ * 那么连接归还到Upstream的连接池，同一个映射端口上的后续请求（包括其他用户连接）可以复用，避免每个请求都和代理供应商建立TCP连接
+ * <br>
+ * 用户连接上的报文在当前用户连接的eventLoop中处理，上游响应在上游连接的eventLoop中处理，状态切换统一回到用户连接的eventLoop
+ */
+@Slf4j
+public class HttpPooledProxyHandler extends ChannelInboundHandlerAdapter {
+    private static final String UPSTREAM_CODEC = "pooled-http-codec";
+    private static final String UPSTREAM_HANDLER = "pooled-http-response";
+
+    private final HaProxyMapping haProxyMapping;
+    private ChannelHandlerContext ctx;
+
+    /**
+     * 当前正在处理的请求，为null表示空闲
+     */
+    private HttpRequest currentRequest;
+    private boolean clientKeepAlive;
+    private Channel upstreamChannel;
+    /**
+     * 当前请求的请求体是否已经全部发送到上游，只在用户连接的eventLoop中访问
+     */
+    private boolean requestComplete;
+    /**
+     * 收到CONNECT之后用户连接交给HttpServerHandler建立隧道，这个handler不再处理
+     */
+    private boolean handedOver = false;
+
+    /**
+     * 上游连接还没有准备好，或者上一个请求的响应还没有结束时收到的报文（http pipeline）
+     */
+    private final ArrayDeque<Object> pendingMessages = new ArrayDeque<>();
+
+    public HttpPooledProxyHandler(HaProxyMapping haProxyMapping) {
+        this.haProxyMapping = haProxyMapping;
+    }
+
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
+        this.ctx = ctx;
+        // 连接池模式下，一个用户连接算作端口上的一条隧道
+        haProxyMapping.getMetrics().onTunnelOpen();
+        ctx.channel().closeFuture().addListener(future -> onClientClose());
+        super.handlerAdded(ctx);
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) {
+        if (!(msg instanceof HttpObject)) {
+            ReferenceCountUtil.release(msg);
+            return;
+        }
+        if (!pendingMessages.isEmpty() || !canProcess()) {
+            pendingMessages.add(msg);
+            return;
+        }
+        handleMessage(msg);
+    }
+
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
+        if (upstreamChannel != null) {
+            upstreamChannel.flush();
+        }
+        super.channelReadComplete(ctx);
+    }
+
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+        // 用户连接写缓冲降到低水位之下，恢复上游响应的读
+        if (ctx.channel().isWritable() && upstreamChannel != null) {
+            upstreamChannel.config().setAutoRead(true);
+        }
+        super.channelWritabilityChanged(ctx);
+    }
+
+    private boolean canProcess() {
+        return currentRequest == null || (upstreamChannel != null && !requestComplete);
+    }
+
+    private void drainPendingMessages() {
+        while (!pendingMessages.isEmpty() && canProcess()) {
+            handleMessage(pendingMessages.poll());
+        }
+    }
+
+    private void handleMessage(Object msg) {
+        if (currentRequest == null) {
+            if (msg instanceof HttpRequest) {
+                startRequest((HttpRequest) msg);
+            } else {
+                // 上一个请求失败之后残留的请求体
+                ReferenceCountUtil.release(msg);
+            }
+            return;
+        }
+        if (!(msg instanceof HttpContent)) {
+            ReferenceCountUtil.release(msg);
+            return;
+        }
+        long bytes = TrafficMetrics.sizeOf(msg);
+        haProxyMapping.getMetrics().onUpload(bytes);
+        Upstream.owner(upstreamChannel).getMetrics().onUpload(bytes);
+        upstreamChannel.write(msg);
+        if (msg instanceof LastHttpContent) {
+            requestComplete = true;
+            upstreamChannel.flush();
+            // 在响应结束之前不再读取用户的后续请求
+            ctx.channel().config().setAutoRead(false);
+        }
+    }
+
+    private void startRequest(HttpRequest httpRequest) {
+        if (httpRequest.getDecoderResult().isFailure()
+                || HttpServerHandler.isRequestToOriginServer(httpRequest)) {
+            // 连接池模式下，同一个连接上只接受普通http代理请求
+            log.warn("unexpected request on pooled http proxy connection: {}", httpRequest.getUri());
+            HttpNettyUtils.writeBadRequest(ctx.channel(), httpRequest);
+            NettyUtils.closeChannelIfActive(ctx.channel());
+            ReferenceCountUtil.release(httpRequest);
+            return;
+        }
+        if (HttpNettyUtils.isCONNECT(httpRequest)) {
+            handOverToTunnel(httpRequest);
+            return;
+        }
+        currentRequest = httpRequest;
+        requestComplete = false;
+        clientKeepAlive = HttpHeaders.isKeepAlive(httpRequest);
+
+        // 到上游的连接总是保持keep-alive，用户连接是否保持由我们自己决定
+        httpRequest.headers().remove("Proxy-Connection");
+        HttpHeaders.setKeepAlive(httpRequest, true);
+        HttpNettyUtils.fillAuthenticationInfo(haProxyMapping.getSource(), httpRequest);
+
+        // 上游连接准备好之前暂停读
+        ctx.channel().config().setAutoRead(false);
+        haProxyMapping.borrowConnect(ctx.channel().eventLoop(), true,
+                value -> ctx.channel().eventLoop().execute(() -> onUpstreamBorrowed(value)));
+    }
+
+    /**
+     * 同一个用户连接上先发送普通请求再发送CONNECT（客户端复用了到代理的连接）。CONNECT之后连接变成隧道，
+     * 不能按照http报文解析响应，更不能把承载隧道的上游连接归还连接池，所以交回HttpServerHandler按照https代理处理。
+     * 只在空闲（上一个请求已经结束）时调用
+     */
+    private void handOverToTunnel(HttpRequest httpRequest) {
+        handedOver = true;
+        // 隧道由HttpServerHandler重新计数
+        haProxyMapping.getMetrics().onTunnelClose();
+        ChannelPipeline pipeline = ctx.pipeline();
+        pipeline.addAfter(ctx.name(), null, new HttpServerHandler());
+        ctx.fireChannelRead(httpRequest);
+        while (!pendingMessages.isEmpty()) {
+            ctx.fireChannelRead(pendingMessages.poll());
+        }
+        ctx.channel().config().setAutoRead(true);
+        pipeline.remove(this);
+    }
+
+    private void onUpstreamBorrowed(Channel channel) {
+        if (channel == null) {
+            log.warn("connect to upstream proxy server failed:{} ", haProxyMapping.resourceKey());
+            HttpNettyUtils.writeBadRequest(ctx.channel(), currentRequest);
+            NettyUtils.closeChannelIfActive(ctx.channel());
+            ReferenceCountUtil.release(currentRequest);
+            return;
+        }
+        if (!ctx.channel().isActive()) {
+            // 用户已经断开，连接还没有使用过，直接归还
+            Upstream.owner(channel).returnKeepAliveConnect(channel);
+            ReferenceCountUtil.release(currentRequest);
+            return;
+        }
+        upstreamChannel = channel;
+        channel.pipeline().addLast(UPSTREAM_CODEC, new HttpClientCodec());
+        channel.pipeline().addLast(UPSTREAM_HANDLER, new UpstreamResponseHandler());
+        channel.write(currentRequest);
+
+        ctx.channel().config().setAutoRead(true);
+        drainPendingMessages();
+        channel.flush();
+    }
+
+    /**
+     * 在用户连接的eventLoop中执行。先解除用户连接和上游连接的关联，再归还连接池，
+     * 避免连接被其他用户借走之后，当前用户断开时把别人正在使用的连接关闭
+     */
+    private void onResponseComplete(Channel channel, boolean upstreamKeepAlive) {
+        if (channel != upstreamChannel) {
+            // 用户已经断开或者上游连接已经失效，连接不再复用
+            NettyUtils.closeChannelIfActive(channel);
+            return;
+        }
+        // 请求体没有发送完成上游就响应了，此时连接上的状态无法确定，不能复用
+        boolean reusable = upstreamKeepAlive && requestComplete;
+        upstreamChannel = null;
+        currentRequest = null;
+        requestComplete = false;
+        if (reusable) {
+            Upstream.owner(channel).returnKeepAliveConnect(channel);
+        } else {
+            channel.close();
+        }
+        if (!clientKeepAlive) {
+            NettyUtils.closeChannelIfActive(ctx.channel());
+            return;
+        }
+        ctx.channel().config().setAutoRead(true);
+        drainPendingMessages();
+    }
+
+    /**
+     * 响应没有完成的时候上游连接断开了，在用户连接的eventLoop中执行
+     */
+    private void onUpstreamBroken(Channel channel, boolean responseStarted) {
+        if (channel != upstreamChannel) {
+            return;
+        }
+        upstreamChannel = null;
+        if (!responseStarted) {
+            HttpNettyUtils.writeBadRequest(ctx.channel(), currentRequest);
+        }
+        currentRequest = null;
+        NettyUtils.closeChannelIfActive(ctx.channel());
+    }
+
+    private void onClientClose() {
+        if (handedOver) {
+            return;
+        }
+        haProxyMapping.getMetrics().onTunnelClose();
+        if (upstreamChannel != null) {
+            // 请求处理中，上游连接上的报文状态未知，不能复用
+            NettyUtils.closeChannelIfActive(upstreamChannel);
+            upstreamChannel = null;
+        }
+        while (!pendingMessages.isEmpty()) {
+            ReferenceCountUtil.release(pendingMessages.poll());
+        }
+    }
+
+    /**
+     * 安装在上游连接上，只负责一个请求的响应
+     */
+    private class UpstreamResponseHandler extends ChannelInboundHandlerAdapter {
+        private boolean responseStarted = false;
+        private boolean upstreamKeepAlive = true;
+        /**
+         * 100-continue之后还有真正的响应
+         */
+        private boolean informational = false;
+
+        @Override
+        public void channelRead(ChannelHandlerContext upstreamCtx, Object msg) {
+            Channel clientChannel = ctx.channel();
+            if (msg instanceof HttpResponse) {
+                HttpResponse httpResponse = (HttpResponse) msg;
+                responseStarted = true;
+                informational = httpResponse.getStatus().code() == HttpResponseStatus.CONTINUE.code();
+                if (!informational) {
+                    upstreamKeepAlive = HttpHeaders.isKeepAlive(httpResponse);
+                    HttpHeaders.setKeepAlive(httpResponse, clientKeepAlive);
+                }
+            }
+            long bytes = TrafficMetrics.sizeOf(msg);
+            haProxyMapping.getMetrics().onDownload(bytes);
+            Upstream.owner(upstreamCtx.channel()).getMetrics().onDownload(bytes);
+            clientChannel.write(msg);
+            if (!clientChannel.isWritable()) {
+                clientChannel.flush();
+                // 用户连接写缓冲超过高水位，暂停上游读，在用户连接可写之后恢复
+                upstreamCtx.channel().config().setAutoRead(false);
+                if (clientChannel.isWritable()) {
+                    upstreamCtx.channel().config().setAutoRead(true);
+                }
+            }
+            if (!(msg instanceof LastHttpContent)) {
+                return;
+            }
+            clientChannel.flush();
+            if (informational) {
+                informational = false;
+                return;
+            }
+            onUpstreamResponseComplete(upstreamCtx);
+        }
+
+        private void onUpstreamResponseComplete(ChannelHandlerContext upstreamCtx) {
+            Channel channel = upstreamCtx.channel();
+            ChannelPipeline pipeline = channel.pipeline();
+            pipeline.remove(UPSTREAM_CODEC);
+            pipeline.remove(this);
+            channel.config().setAutoRead(true);
+
+            boolean keepAlive = upstreamKeepAlive;
+            ctx.channel().eventLoop().execute(() -> onResponseComplete(channel, keepAlive));
+        }
+
+        @Override
+        public void channelReadComplete(ChannelHandlerContext upstreamCtx) throws Exception {
+            ctx.channel().flush();
+            super.channelReadComplete(upstreamCtx);
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext upstreamCtx) throws Exception {
+            Channel channel = upstreamCtx.channel();
+            boolean started = responseStarted;
+            ctx.channel().eventLoop().execute(() -> onUpstreamBroken(channel, started));
+            super.channelInactive(upstreamCtx);
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext upstreamCtx, Throwable cause) {
+            log.warn("pooled upstream connection error", cause);
+            upstreamCtx.close();
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package com.virjar.spider.proxy.ha.handlers;
+
+import com.virjar.spider.proxy.ha.core.Source;
+import com.virjar.spider.proxy.ha.utils.HttpNettyUtils;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.handler.codec.http.HttpRequest;
+
+/**
+ * http代理模式下，同一个用户连接上的后续请求同样需要携带上游代理的鉴权信息。
+ * 这里只处理请求头，请求体原样透传
+ */
+public class HttpProxyAuthorizationHandler extends ChannelInboundHandlerAdapter {
+    private final Source source;
+
+    public HttpProxyAuthorizationHandler(Source source) {
+        this.source = source;
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (msg instanceof HttpRequest) {
+            HttpNettyUtils.fillAuthenticationInfo(source, (HttpRequest) msg);
+        }
+        super.channelRead(ctx, msg);
+    }
+}
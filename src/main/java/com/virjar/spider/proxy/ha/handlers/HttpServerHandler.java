@@ -1,5 +1,6 @@
 package com.virjar.spider.proxy.ha.handlers;
 
+import com.virjar.spider.proxy.ha.Configs;
 import com.virjar.spider.proxy.ha.core.HaProxyMapping;
 import com.virjar.spider.proxy.ha.handlers.upstream.HttpUpstreamHandShaker;
 import com.virjar.spider.proxy.ha.handlers.upstream.HttpsUpstreamHandShaker;
@@ -8,6 +9,7 @@ import com.virjar.spider.proxy.ha.utils.HttpNettyUtils;
 import com.virjar.spider.proxy.ha.utils.NettyUtils;
 import io.netty.channel.*;
 import io.netty.handler.codec.http.*;
+import io.netty.util.ReferenceCountUtil;
 import io.netty.util.ReferenceCounted;
 import lombok.extern.slf4j.Slf4j;
 
@@ -50,13 +52,24 @@ public class HttpServerHandler extends SimpleChannelInboundHandler<HttpRequest>
         // 创建到 后端代理资源的链接
         haProxyMapping = HaProxyMapping.get(ctx.channel());
         isHttps = HttpNettyUtils.isCONNECT(httpRequest);
+        if (isHttps) {
+            IdleReaper.setIdleTimeout(ctx.channel(), Configs.httpsIdleTimeoutSeconds);
+        }
+
+        if (!isHttps && Configs.httpUpstreamKeepAlive && !Configs.httpRawResponseRelay) {
+            // 上游连接池模式，之后这个用户连接上的所有请求都交给HttpPooledProxyHandler处理
+            ctx.pipeline().addAfter(ctx.name(), null, new HttpPooledProxyHandler(haProxyMapping));
+            ctx.fireChannelRead(ReferenceCountUtil.retain(httpRequest));
+            ctx.pipeline().remove(this);
+            return;
+        }
 
         if (!isHttps) {
             // http代理模式，需要暂停读，否则客户端可能一直发数据过来
             ctx.channel().config().setAutoRead(false);
         }
 
-        haProxyMapping.borrowConnect(
+        haProxyMapping.borrowConnect(ctx.channel().eventLoop(),
                 value -> {
                     if (value == null) {
                         log.warn("connect to upstream proxy server failed:{} ", haProxyMapping.resourceKey());
@@ -72,15 +85,20 @@ public class HttpServerHandler extends SimpleChannelInboundHandler<HttpRequest>
         NettyUtils.makePair(ctx.channel(), upstreamChannel);
         NettyUtils.loveOther(ctx.channel(), upstreamChannel);
 
+        long handSharkStartTimestamp = System.currentTimeMillis();
         UpstreamHandShaker.UpstreamHandSharkCallback callback = new UpstreamHandShaker.UpstreamHandSharkCallback() {
             @Override
             public void onHandSharkFailed(String message) {
+                haProxyMapping.onHandshakeFailed(upstreamChannel);
                 HttpNettyUtils.writeBadRequest(ctx.channel(), httpRequest);
             }
 
             @Override
             public void onHandSharkSuccess() {
                 if (isHttps) {
+                    // 普通http代理的握手不需要和上游交互，只有CONNECT的耗时有意义
+                    haProxyMapping.onHandshakeSuccess(upstreamChannel,
+                            System.currentTimeMillis() - handSharkStartTimestamp);
                     onHttpsHandSharkFinish(upstreamChannel);
                 } else {
                     ctx.channel().config().setAutoRead(true);
@@ -115,21 +133,25 @@ public class HttpServerHandler extends SimpleChannelInboundHandler<HttpRequest>
                     pipeline.remove(HttpRequestDecoder.class);
                     pipeline.remove(HttpServerHandler.class);
 
-                    pipeline.addLast(new RelayHandler(upstreamChannel));
-                    upstreamChannel.pipeline().addLast(new RelayHandler(channelFuture.channel()));
+                    RelayHandler.tunnel(channelFuture.channel(), upstreamChannel, haProxyMapping.getSource());
                 });
     }
 
     private void onHttpHandSharkFinish(Channel upstreamChannel) {
         ChannelPipeline pipeline = upstreamChannel.pipeline();
         pipeline.addLast(new HttpRequestEncoder());
-        pipeline.addLast(new HttpResponseDecoder(MAX_INITIAL_LINE_LENGTH_DEFAULT,
-                MAX_HEADER_SIZE_DEFAULT,
-                MAX_CHUNK_SIZE_DEFAULT));
-
-        pipeline.addLast(new RelayHandler(ctx.channel()));
+        if (Configs.httpRawResponseRelay) {
+            // 响应方向不做任何解码，上游返回的原始字节直接转发给用户，避免响应体被解码后重新编码
+            // 请求方向仍然需要解码，因为同一个连接上的每个请求都需要填充上游鉴权信息
+            ctx.pipeline().remove(HttpResponseEncoder.class);
+        } else {
+            pipeline.addLast(new HttpResponseDecoder(MAX_INITIAL_LINE_LENGTH_DEFAULT,
+                    MAX_HEADER_SIZE_DEFAULT,
+                    MAX_CHUNK_SIZE_DEFAULT));
+        }
 
-        ctx.pipeline().addLast(new RelayHandler(upstreamChannel));
+        ctx.pipeline().addLast(new HttpProxyAuthorizationHandler(haProxyMapping.getSource()));
+        RelayHandler.relay(ctx.channel(), upstreamChannel, haProxyMapping.getSource());
         ctx.pipeline().remove(HttpServerHandler.class);
 
         if (httpRequest instanceof ReferenceCounted) {
@@ -140,12 +162,15 @@ public class HttpServerHandler extends SimpleChannelInboundHandler<HttpRequest>
 
 
     private void handleApiHttpRequest() {
-        // 暂时都返回502，后续再处理真实业务逻辑
-        HttpNettyUtils.writeBadRequest(ctx.channel(), httpRequest);
+        ManagementApi.handle(ctx.channel(), httpRequest);
     }
 
 
     private boolean isRequestToOriginServer() {
+        return isRequestToOriginServer(httpRequest);
+    }
+
+    static boolean isRequestToOriginServer(HttpRequest httpRequest) {
         if (httpRequest.getMethod() == HttpMethod.CONNECT) {
             return false;
         }
@@ -0,0 +1,117 @@
+package com.virjar.spider.proxy.ha.handlers;
+
+import com.virjar.spider.proxy.ha.core.SessionTable;
+import com.virjar.spider.proxy.ha.utils.HttpNettyUtils;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.util.ReferenceCountUtil;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 会话端口上的http代理：根据第一个请求Proxy-Authorization中的用户名找到会话，把用户连接绑定到会话上，
+ * 之后交给HttpServerHandler按照普通映射端口处理。同一个用户连接上的后续请求沿用第一个请求的会话
+ * <br>
+ * 会话用户名只在当前服务中使用，所有请求的Proxy-Authorization都会被移除，上游鉴权按照数据源配置重新填充
+ */
+@Slf4j
+public class HttpSessionHandler extends ChannelInboundHandlerAdapter {
+    private final SessionTable sessionTable;
+    private boolean resolved = false;
+    /**
+     * 会话分配过程中到达的消息，分配完成之后按顺序继续传递
+     */
+    private List<Object> pending;
+
+    public HttpSessionHandler(SessionTable sessionTable) {
+        this.sessionTable = sessionTable;
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (pending != null) {
+            pending.add(msg);
+            return;
+        }
+        if (!(msg instanceof HttpRequest)) {
+            ctx.fireChannelRead(msg);
+            return;
+        }
+        HttpRequest httpRequest = (HttpRequest) msg;
+        if (resolved) {
+            httpRequest.headers().remove(HttpHeaders.Names.PROXY_AUTHORIZATION);
+            ctx.fireChannelRead(msg);
+            return;
+        }
+        if (httpRequest.getDecoderResult().isFailure()
+                || HttpServerHandler.isRequestToOriginServer(httpRequest)) {
+            // 解析失败和管理接口由HttpServerHandler处理
+            ctx.fireChannelRead(msg);
+            return;
+        }
+
+        String sessionId = SessionTable.sessionIdOf(HttpNettyUtils.proxyAuthorizationUser(httpRequest));
+        if (sessionId == null) {
+            HttpNettyUtils.writeProxyAuthenticationRequired(ctx.channel(), httpRequest);
+            ReferenceCountUtil.release(msg);
+            return;
+        }
+        httpRequest.headers().remove(HttpHeaders.Names.PROXY_AUTHORIZATION);
+
+        pending = new ArrayList<>();
+        pending.add(msg);
+        ctx.channel().config().setAutoRead(false);
+        sessionTable.resolve(ctx.channel(), sessionId, haProxyMapping -> {
+            if (ctx.executor().inEventLoop()) {
+                onSessionResolved(ctx, httpRequest, haProxyMapping != null);
+            } else {
+                ctx.executor().execute(() -> onSessionResolved(ctx, httpRequest, haProxyMapping != null));
+            }
+        });
+    }
+
+    private void onSessionResolved(ChannelHandlerContext ctx, HttpRequest httpRequest, boolean success) {
+        List<Object> messages = pending;
+        pending = null;
+        if (messages == null) {
+            // 分配过程中连接已经关闭
+            return;
+        }
+        if (!success) {
+            HttpNettyUtils.writeBadRequest(ctx.channel(), httpRequest);
+            releaseAll(messages);
+            return;
+        }
+        resolved = true;
+        // 先恢复自动读，后面的HttpServerHandler在http代理模式下会重新暂停
+        ctx.channel().config().setAutoRead(true);
+        boolean tunnel = HttpMethod.CONNECT.equals(httpRequest.getMethod());
+        for (Object message : messages) {
+            ctx.fireChannelRead(message);
+        }
+        if (tunnel && ctx.pipeline().context(this) != null) {
+            // CONNECT之后是隧道数据，不需要再处理请求头
+            ctx.pipeline().remove(this);
+        }
+    }
+
+    private static void releaseAll(List<Object> messages) {
+        for (Object message : messages) {
+            ReferenceCountUtil.release(message);
+        }
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        if (pending != null) {
+            releaseAll(pending);
+            pending = null;
+        }
+        super.channelInactive(ctx);
+    }
+}
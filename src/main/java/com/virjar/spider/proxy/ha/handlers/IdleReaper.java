@@ -0,0 +1,129 @@
+package com.virjar.spider.proxy.ha.handlers;
+
+import com.virjar.spider.proxy.ha.Configs;
+import com.virjar.spider.proxy.ha.Constants;
+import com.virjar.spider.proxy.ha.utils.NettyUtils;
+import com.virjar.spider.proxy.ha.utils.WheelTimer;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.util.Timeout;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 用户连接的空闲回收，读写都没有数据超过空闲时间之后关闭用户连接和对应的上游连接
+ * <br>
+ * 用户连接上同时能看到两个方向的数据（读是上传，写是下载），所以只需要安装在用户连接上。
+ * 超时检查使用全局时间轮，每个连接只有一个检查任务，到期时如果期间有数据就按剩余时间重新调度
+ */
+@Slf4j
+public class IdleReaper extends ChannelDuplexHandler {
+    public static final String NAME = "idle";
+
+    private volatile long idleTimeoutNanos;
+    private volatile long lastActiveNanos;
+    private ChannelHandlerContext ctx;
+    private volatile Timeout timeout;
+    private volatile boolean cancelled = false;
+
+    public IdleReaper() {
+        this.idleTimeoutNanos = TimeUnit.SECONDS.toNanos(Configs.idleTimeoutSeconds);
+    }
+
+    /**
+     * 协议确定之后使用各自的空闲时间，小于等于0表示使用全局的idle_timeout_seconds。下一次检查时生效
+     */
+    public static void setIdleTimeout(Channel channel, int idleTimeoutSeconds) {
+        if (idleTimeoutSeconds <= 0) {
+            return;
+        }
+        IdleReaper idleReaper = channel.pipeline().get(IdleReaper.class);
+        if (idleReaper != null) {
+            idleReaper.idleTimeoutNanos = TimeUnit.SECONDS.toNanos(idleTimeoutSeconds);
+        }
+    }
+
+    /**
+     * splice转发的数据不经过pipeline，无法感知活跃状态，这种隧道不做空闲回收
+     */
+    public static void disable(Channel channel) {
+        if (channel.pipeline().get(IdleReaper.class) != null) {
+            channel.pipeline().remove(IdleReaper.class);
+        }
+    }
+
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
+        this.ctx = ctx;
+        if (ctx.channel().isActive() && ctx.channel().isRegistered()) {
+            schedule();
+        }
+        super.handlerAdded(ctx);
+    }
+
+    @Override
+    public void channelActive(ChannelHandlerContext ctx) throws Exception {
+        schedule();
+        super.channelActive(ctx);
+    }
+
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) throws Exception {
+        cancel();
+        super.handlerRemoved(ctx);
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        cancel();
+        super.channelInactive(ctx);
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        lastActiveNanos = System.nanoTime();
+        super.channelRead(ctx, msg);
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+        lastActiveNanos = System.nanoTime();
+        super.write(ctx, msg, promise);
+    }
+
+    private void schedule() {
+        if (timeout != null) {
+            return;
+        }
+        lastActiveNanos = System.nanoTime();
+        timeout = WheelTimer.newTimeout(this::check, idleTimeoutNanos, TimeUnit.NANOSECONDS);
+    }
+
+    private void cancel() {
+        cancelled = true;
+        if (timeout != null) {
+            timeout.cancel();
+        }
+    }
+
+    /**
+     * 在时间轮线程中执行
+     */
+    private void check() {
+        Channel channel = ctx.channel();
+        if (cancelled || !channel.isActive()) {
+            return;
+        }
+        long remain = idleTimeoutNanos - (System.nanoTime() - lastActiveNanos);
+        if (remain > 0) {
+            timeout = WheelTimer.newTimeout(this::check, remain, TimeUnit.NANOSECONDS);
+            return;
+        }
+        log.debug("close idle channel:{}", channel);
+        NettyUtils.closeChannelIfActive(channel.attr(Constants.NEXT_CHANNEL).get());
+        NettyUtils.closeChannelIfActive(channel);
+    }
+}
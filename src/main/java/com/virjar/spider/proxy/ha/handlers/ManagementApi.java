@@ -0,0 +1,254 @@
+package com.virjar.spider.proxy.ha.handlers;
+
+import com.google.common.base.Splitter;
+import com.virjar.spider.proxy.ha.core.HaProxyMapping;
+import com.virjar.spider.proxy.ha.core.MetricsExporter;
+import com.virjar.spider.proxy.ha.core.Upstream;
+import com.virjar.spider.proxy.ha.utils.HttpNettyUtils;
+import io.netty.channel.Channel;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.QueryStringDecoder;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.BooleanUtils;
+import org.apache.commons.lang3.StringUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 直连到映射端口的管理接口，全部从内存状态中应答，响应是纯文本，一行一个端口
+ * <br>
+ * 1. GET /metrics：Prometheus指标
+ * <br>
+ * 2. GET /exitIp?port=36000：端口当前的出口ip
+ * <br>
+ * 3. GET /mapping?port=36000,36010-36020：端口映射关系，每行为 "端口 数据源 上游资源 出口ip"，不指定port时返回所有端口
+ * <br>
+ * 4. GET /switch?port=36000,36010-36020：强制切换到备用资源，每行为 "端口 旧出口ip 新出口ip"
+ * <br>
+ * 5. GET /feedback?port=36000&amp;success=false&amp;ip=1.2.3.4：反馈出口质量，连续多次质量差之后自动切换
+ * <br>
+ * 除了/mapping，不指定port时都表示当前请求所在的端口
+ */
+@Slf4j
+class ManagementApi {
+    private static final String TEXT_CONTENT_TYPE = "text/plain; charset=utf-8";
+
+    private final Channel channel;
+    private final HttpRequest httpRequest;
+    private final HaProxyMapping currentMapping;
+    private final Map<String, List<String>> parameters;
+
+    private ManagementApi(Channel channel, HttpRequest httpRequest, QueryStringDecoder queryStringDecoder) {
+        this.channel = channel;
+        this.httpRequest = httpRequest;
+        this.currentMapping = HaProxyMapping.get(channel);
+        this.parameters = queryStringDecoder.parameters();
+    }
+
+    static void handle(Channel channel, HttpRequest httpRequest) {
+        QueryStringDecoder queryStringDecoder = new QueryStringDecoder(httpRequest.getUri());
+        ManagementApi api = new ManagementApi(channel, httpRequest, queryStringDecoder);
+        switch (queryStringDecoder.path()) {
+            case "/metrics":
+                api.metrics();
+                break;
+            case "/exitIp":
+                api.exitIp();
+                break;
+            case "/mapping":
+                api.mapping();
+                break;
+            case "/switch":
+                api.switchUpstream();
+                break;
+            case "/feedback":
+                api.feedback();
+                break;
+            default:
+                HttpNettyUtils.writeBadRequest(channel, httpRequest);
+        }
+    }
+
+    private void metrics() {
+        // 指标在导出线程中生成，不阻塞当前eventLoop
+        MetricsExporter.scrape(text -> {
+            if (text == null) {
+                writeText(HttpResponseStatus.INTERNAL_SERVER_ERROR, "render metrics failed");
+                return;
+            }
+            HttpNettyUtils.writeApiResponse(channel, httpRequest, HttpResponseStatus.OK,
+                    MetricsExporter.CONTENT_TYPE, text);
+        });
+    }
+
+    private void exitIp() {
+        HaProxyMapping haProxyMapping = singleMapping();
+        if (haProxyMapping == null) {
+            return;
+        }
+        writeText(HttpResponseStatus.OK, haProxyMapping.getUpstream().getOutIp());
+    }
+
+    private void mapping() {
+        List<HaProxyMapping> mappings;
+        if (StringUtils.isBlank(parameter("port"))) {
+            mappings = new ArrayList<>(HaProxyMapping.establishedMappings());
+            mappings.sort((o1, o2) -> Integer.compare(o1.getLocalMappingPort(), o2.getLocalMappingPort()));
+        } else {
+            mappings = new ArrayList<>();
+            TreeSet<Integer> ports = ports();
+            if (ports == null) {
+                return;
+            }
+            for (Integer port : ports) {
+                HaProxyMapping haProxyMapping = HaProxyMapping.getByPort(port);
+                if (haProxyMapping != null) {
+                    mappings.add(haProxyMapping);
+                }
+            }
+        }
+        StringBuilder sb = new StringBuilder(mappings.size() * 64);
+        for (HaProxyMapping haProxyMapping : mappings) {
+            Upstream upstream = haProxyMapping.getUpstream();
+            sb.append(haProxyMapping.getLocalMappingPort()).append(' ')
+                    .append(haProxyMapping.getSource().getName()).append(' ')
+                    .append(upstream.resourceKey()).append(' ')
+                    .append(upstream.getOutIp()).append('\n');
+        }
+        writeText(HttpResponseStatus.OK, sb.toString());
+    }
+
+    private void switchUpstream() {
+        TreeSet<Integer> ports = ports();
+        if (ports == null) {
+            return;
+        }
+        // 各个端口在各自数据源的looper中切换，全部完成之后一起返回
+        TreeMap<Integer, String> results = new TreeMap<>();
+        AtomicInteger remain = new AtomicInteger(ports.size());
+        Runnable onPortFinished = () -> {
+            if (remain.decrementAndGet() != 0) {
+                return;
+            }
+            StringBuilder sb = new StringBuilder(results.size() * 40);
+            synchronized (results) {
+                for (Map.Entry<Integer, String> entry : results.entrySet()) {
+                    sb.append(entry.getKey()).append(' ').append(entry.getValue()).append('\n');
+                }
+            }
+            writeText(HttpResponseStatus.OK, sb.toString());
+        };
+        for (Integer port : ports) {
+            HaProxyMapping haProxyMapping = HaProxyMapping.getByPort(port);
+            if (haProxyMapping == null) {
+                synchronized (results) {
+                    results.put(port, "not_found");
+                }
+                onPortFinished.run();
+                continue;
+            }
+            String oldOutIp = haProxyMapping.getUpstream().getOutIp();
+            haProxyMapping.forceSwitch(upstream -> {
+                synchronized (results) {
+                    results.put(port, upstream == null ? oldOutIp + " no_available_upstream"
+                            : oldOutIp + " " + upstream.getOutIp());
+                }
+                onPortFinished.run();
+            });
+        }
+    }
+
+    private void feedback() {
+        HaProxyMapping haProxyMapping = singleMapping();
+        if (haProxyMapping == null) {
+            return;
+        }
+        String success = parameter("success");
+        if (StringUtils.isBlank(success)) {
+            writeText(HttpResponseStatus.BAD_REQUEST, "need param: success");
+            return;
+        }
+        String ip = StringUtils.trimToNull(parameter("ip"));
+        boolean switched = haProxyMapping.onFeedback(BooleanUtils.toBoolean(success), ip);
+        writeText(HttpResponseStatus.OK, switched ? "switched" : "ok");
+    }
+
+    /**
+     * 只操作一个端口的接口，不指定port时为当前端口。找不到端口时直接响应错误并返回null
+     */
+    private HaProxyMapping singleMapping() {
+        String port = parameter("port");
+        if (StringUtils.isBlank(port)) {
+            if (currentMapping == null) {
+                writeText(HttpResponseStatus.BAD_REQUEST, "need param: port");
+            }
+            return currentMapping;
+        }
+        HaProxyMapping haProxyMapping = null;
+        try {
+            haProxyMapping = HaProxyMapping.getByPort(Integer.parseInt(port.trim()));
+        } catch (NumberFormatException e) {
+            // 按照找不到处理
+        }
+        if (haProxyMapping == null) {
+            writeText(HttpResponseStatus.NOT_FOUND, "port not mapped: " + port);
+        }
+        return haProxyMapping;
+    }
+
+    /**
+     * 解析批量端口参数，支持逗号分隔和范围（36000-36010），不指定时为当前端口。参数错误时直接响应错误并返回null
+     */
+    private TreeSet<Integer> ports() {
+        TreeSet<Integer> ports = new TreeSet<>();
+        String portParam = parameter("port");
+        if (StringUtils.isBlank(portParam)) {
+            if (currentMapping == null) {
+                writeText(HttpResponseStatus.BAD_REQUEST, "need param: port");
+                return null;
+            }
+            ports.add(currentMapping.getLocalMappingPort());
+            return ports;
+        }
+        try {
+            for (String pair : Splitter.on(',').trimResults().omitEmptyStrings().split(portParam)) {
+                int index = pair.indexOf('-');
+                if (index > 0) {
+                    int start = Integer.parseInt(pair.substring(0, index).trim());
+                    int end = Integer.parseInt(pair.substring(index + 1).trim());
+                    for (int i = start; i <= end && i <= 65535; i++) {
+                        ports.add(i);
+                    }
+                } else {
+                    ports.add(Integer.parseInt(pair));
+                }
+            }
+        } catch (NumberFormatException e) {
+            writeText(HttpResponseStatus.BAD_REQUEST, "illegal param port: " + portParam);
+            return null;
+        }
+        if (ports.isEmpty()) {
+            writeText(HttpResponseStatus.BAD_REQUEST, "need param: port");
+            return null;
+        }
+        return ports;
+    }
+
+    private String parameter(String name) {
+        List<String> values = parameters.get(name);
+        if (values == null || values.isEmpty()) {
+            return null;
+        }
+        return values.get(0);
+    }
+
+    private void writeText(HttpResponseStatus status, String body) {
+        HttpNettyUtils.writeApiResponse(channel, httpRequest, status, TEXT_CONTENT_TYPE, body);
+    }
+}
@@ -1,9 +1,14 @@
 package com.virjar.spider.proxy.ha.handlers;
 
+import com.virjar.spider.proxy.ha.Configs;
 import com.virjar.spider.proxy.ha.core.HaProxyMapping;
+import com.virjar.spider.proxy.ha.core.SessionTable;
 import com.virjar.spider.proxy.ha.core.Source;
+import com.virjar.spider.proxy.ha.handlers.http2.Http2ConnectHandler;
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
 import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
 import io.netty.channel.ChannelPipeline;
@@ -11,11 +16,10 @@ import io.netty.handler.codec.http.HttpRequestDecoder;
 import io.netty.handler.codec.http.HttpResponseEncoder;
 import io.netty.handler.codec.socks.SocksInitRequestDecoder;
 import io.netty.handler.codec.socks.SocksMessageEncoder;
+import io.netty.util.ReferenceCountUtil;
 import lombok.extern.slf4j.Slf4j;
-import org.apache.commons.lang3.StringUtils;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.nio.charset.StandardCharsets;
 
 @Slf4j
 public class ProxyProtocolRouter extends ChannelInboundHandlerAdapter {
@@ -31,89 +35,192 @@ public class ProxyProtocolRouter extends ChannelInboundHandlerAdapter {
     private static final int MAX_CHUNK_SIZE_DEFAULT = 8192 * 2;
 
     /**
-     * socks5的头部只有3个字节
+     * 协议嗅探最多缓存的字节数，超过之后仍然无法判定协议则关闭连接。最长的http方法为 "PROPPATCH "
      */
-    private static final int ROUTER_MAGIC_HEADER_LENGTH = 3;
+    static final int MAX_SNIFF_LENGTH = 16;
+
+    static final int PROTOCOL_NEED_MORE = 0;
+    static final int PROTOCOL_UNKNOWN = 1;
+    static final int PROTOCOL_HTTP = 2;
+    static final int PROTOCOL_SOCKS4 = 3;
+    static final int PROTOCOL_SOCKS5 = 4;
+    static final int PROTOCOL_HTTP2 = 5;
+
+    /**
+     * h2c prior-knowledge 连接前言 "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n" 的开头部分
+     */
+    private static final byte[] HTTP2_PREFACE_PREFIX = "PRI * HTTP/2".getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * 空的SETTINGS帧 + GOAWAY(last-stream-id=0, error=HTTP_1_1_REQUIRED)
+     */
+    private static final byte[] HTTP2_REJECT_FRAMES = {
+            // SETTINGS: length=0 type=0x4 flags=0 stream=0
+            0, 0, 0, 0x4, 0, 0, 0, 0, 0,
+            // GOAWAY: length=8 type=0x7 flags=0 stream=0
+            0, 0, 8, 0x7, 0, 0, 0, 0, 0,
+            0, 0, 0, 0,
+            0, 0, 0, 0xd
+    };
+
+    /**
+     * 首包可能被拆分成多个tcp报文，数据不够判定协议时暂存在这里
+     */
+    private ByteBuf cumulation;
 
     @Override
     public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
         if (!(msg instanceof ByteBuf)) {
             log.error(ProxyProtocolRouter.class.getName() + ": can only handle ByteBuf message");
+            ReferenceCountUtil.release(msg);
             ctx.close();
             return;
         }
 
-        ByteBuf byteBuf = (ByteBuf) msg;
-        if (byteBuf.readableBytes() < ROUTER_MAGIC_HEADER_LENGTH) {
-            // not enough data
+        ByteBuf byteBuf = cumulate(ctx, (ByteBuf) msg);
+        int protocol = sniff(byteBuf);
+        if (protocol == PROTOCOL_NEED_MORE) {
+            if (byteBuf.readableBytes() >= MAX_SNIFF_LENGTH) {
+                releaseCumulation();
+                ctx.close();
+                return;
+            }
+            // not enough data, 等待后续的数据
+            cumulation = byteBuf;
             return;
         }
-
-        byte firstByte = ((ByteBuf) msg).getByte(0);
-        byte[] readBuf = new byte[ROUTER_MAGIC_HEADER_LENGTH];
-        ((ByteBuf) msg).getBytes(0, readBuf);
+        cumulation = null;
 
         ChannelPipeline pipeline = ctx.channel().pipeline();
-        // 处理http协议的编解码
-        if (maybeHttpRequest(readBuf)) {
-            route2Http(pipeline);
-        } else if (firstByte == SOCKS5_VERSION) {
-            route2Socks5(pipeline);
-        } else if (firstByte == SOCKS4_VERSION) {
-            route2Socks4(pipeline);
-        } else {
-            // this
+        boolean routed;
+        switch (protocol) {
+            case PROTOCOL_HTTP:
+                // 处理http协议的编解码
+                routed = route2Http(pipeline);
+                break;
+            case PROTOCOL_SOCKS5:
+                routed = route2Socks5(pipeline);
+                break;
+            case PROTOCOL_SOCKS4:
+                routed = route2Socks4(pipeline);
+                break;
+            case PROTOCOL_HTTP2:
+                routed = route2Http2(pipeline);
+                if (!routed) {
+                    rejectHttp2(ctx, byteBuf);
+                    return;
+                }
+                break;
+            default:
+                routed = false;
+        }
+        if (!routed) {
+            byteBuf.release();
             ctx.close();
             return;
         }
 
         pipeline.remove(this);
-        super.channelRead(ctx, msg);
+        super.channelRead(ctx, byteBuf);
+    }
+
+    private ByteBuf cumulate(ChannelHandlerContext ctx, ByteBuf in) {
+        if (cumulation == null) {
+            return in;
+        }
+        ByteBuf merged = ctx.alloc().buffer(cumulation.readableBytes() + in.readableBytes());
+        merged.writeBytes(cumulation).writeBytes(in);
+        cumulation.release();
+        cumulation = null;
+        in.release();
+        return merged;
+    }
+
+    private void releaseCumulation() {
+        if (cumulation != null) {
+            cumulation.release();
+            cumulation = null;
+        }
+    }
+
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) throws Exception {
+        releaseCumulation();
+        super.handlerRemoved(ctx);
+    }
+
+    /**
+     * h2c多路复用隧道只在普通映射端口上提供，会话端口需要按照每个请求的用户名区分会话，
+     * 关闭h2c或者数据源不支持https时，按照协议规范明确告知客户端回退到http/1.1，而不是直接断开让客户端无法判断原因
+     */
+    private boolean route2Http2(ChannelPipeline pipeline) {
+        HaProxyMapping haProxyMapping = HaProxyMapping.get(pipeline.channel());
+        if (Configs.http2MaxConcurrentStreams <= 0 || haProxyMapping == null
+                || !checkSupport(pipeline.channel(), "https")) {
+            return false;
+        }
+        IdleReaper.setIdleTimeout(pipeline.channel(), Configs.httpsIdleTimeoutSeconds);
+        Http2ConnectHandler.install(pipeline, haProxyMapping);
+        return true;
+    }
+
+    private void rejectHttp2(ChannelHandlerContext ctx, ByteBuf byteBuf) {
+        byteBuf.release();
+        log.info("reject h2c connection from:{}", ctx.channel().remoteAddress());
+        ctx.writeAndFlush(Unpooled.wrappedBuffer(HTTP2_REJECT_FRAMES))
+                .addListener(ChannelFutureListener.CLOSE);
     }
 
-    private void route2Socks4(ChannelPipeline pipeline) {
+    private boolean route2Socks4(ChannelPipeline pipeline) {
         if (!checkSupport(pipeline.channel(), "socks4")) {
-            // 当前channel不支持socks5
-            pipeline.close();
-            return;
+            // 当前channel不支持socks4
+            return false;
         }
         log.info("not support SOCKS4 proxy");
-        pipeline.channel().close();
+        return false;
     }
 
 
-    private void route2Socks5(ChannelPipeline pipeline) {
+    private boolean route2Socks5(ChannelPipeline pipeline) {
         if (!checkSupport(pipeline.channel(), "socks5")) {
             // 当前channel不支持socks5
-            pipeline.close();
-            return;
+            return false;
         }
 
+        IdleReaper.setIdleTimeout(pipeline.channel(), Configs.socks5IdleTimeoutSeconds);
         pipeline.addLast(new SocksInitRequestDecoder());
         pipeline.addLast(new SocksMessageEncoder());
         pipeline.addLast(new SocksServerHandler());
+        return true;
     }
 
-    private void route2Http(ChannelPipeline pipeline) {
+    private boolean route2Http(ChannelPipeline pipeline) {
         //todo http/https的区分需要后置
         if (!checkSupport(pipeline.channel(), "http")
                 && !checkSupport(pipeline.channel(), "https")
         ) {
-            // 当前channel不支持socks5
-            pipeline.close();
-            return;
+            // 当前channel不支持http
+            return false;
         }
 
+        IdleReaper.setIdleTimeout(pipeline.channel(), Configs.httpIdleTimeoutSeconds);
         pipeline.addLast(new HttpResponseEncoder());
         pipeline.addLast(new HttpRequestDecoder(
                 MAX_INITIAL_LINE_LENGTH_DEFAULT,
                 MAX_HEADER_SIZE_DEFAULT,
                 MAX_CHUNK_SIZE_DEFAULT));
+        SessionTable sessionTable = SessionTable.get(pipeline.channel());
+        if (sessionTable != null) {
+            pipeline.addLast(new HttpSessionHandler(sessionTable));
+        }
         pipeline.addLast(new HttpServerHandler());
+        return true;
     }
 
     private boolean checkSupport(Channel channel, String protocolName) {
-        return HaProxyMapping.get(channel).getSource().getProtocol().contains(protocolName);
+        HaProxyMapping haProxyMapping = HaProxyMapping.get(channel);
+        Source source = haProxyMapping != null ? haProxyMapping.getSource() : SessionTable.get(channel).getSource();
+        return source.getProtocol().contains(protocolName);
     }
 
     @Override
@@ -122,78 +229,106 @@ public class ProxyProtocolRouter extends ChannelInboundHandlerAdapter {
         cause.printStackTrace();
     }
 
+    private static final byte[] GET = method("GET");
+    private static final byte[] PUT = method("PUT");
+    private static final byte[] POST = method("POST");
+    private static final byte[] PATCH = method("PATCH");
+    private static final byte[] PROPFIND = method("PROPFIND");
+    private static final byte[] PROPPATCH = method("PROPPATCH");
+    private static final byte[] DELETE = method("DELETE");
+    private static final byte[] HEAD = method("HEAD");
+    private static final byte[] OPTIONS = method("OPTIONS");
+    private static final byte[] TRACE = method("TRACE");
+    private static final byte[] CONNECT = method("CONNECT");
+    private static final byte[] COPY = method("COPY");
+    private static final byte[] MKCOL = method("MKCOL");
+    private static final byte[] MOVE = method("MOVE");
+    private static final byte[] LOCK = method("LOCK");
+    private static final byte[] UNLOCK = method("UNLOCK");
 
-    enum Method {
-        GET,
-        PUT,
-        POST,
-        DELETE,
-        HEAD,
-        OPTIONS,
-        TRACE,
-        CONNECT,
-        PATCH,
-        PROPFIND,
-        PROPPATCH,
-        MKCOL,
-        MOVE,
-        COPY,
-        LOCK,
-        UNLOCK
-    }
+    private static final byte[][] P_METHODS = {PUT, POST, PATCH, PROPFIND, PROPPATCH};
+    private static final byte[][] C_METHODS = {CONNECT, COPY};
+    private static final byte[][] M_METHODS = {MKCOL, MOVE};
 
-    private static class Trie {
-        private final Map<Byte, Trie> values = new HashMap<>();
-        private String method = null;
+    /**
+     * http方法后面紧跟一个空格，一起参与匹配
+     */
+    private static byte[] method(String name) {
+        return (name + " ").getBytes(StandardCharsets.US_ASCII);
+    }
 
-        void addToTree(byte[] data, int index, String worldEntry) {
-            if (index >= data.length) {
-                //the last
-                if (this.method == null) {
-                    this.method = worldEntry;
+    /**
+     * 根据首包的前几个字节判定协议类型，不修改readerIndex，不分配内存
+     *
+     * @return PROTOCOL_XXX
+     */
+    static int sniff(ByteBuf buf) {
+        int readable = buf.readableBytes();
+        if (readable == 0) {
+            return PROTOCOL_NEED_MORE;
+        }
+        int index = buf.readerIndex();
+        byte first = buf.getByte(index);
+        switch (first) {
+            case SOCKS5_VERSION:
+                return PROTOCOL_SOCKS5;
+            case SOCKS4_VERSION:
+                return PROTOCOL_SOCKS4;
+            case 'G':
+                return matchMethod(buf, GET);
+            case 'D':
+                return matchMethod(buf, DELETE);
+            case 'H':
+                return matchMethod(buf, HEAD);
+            case 'O':
+                return matchMethod(buf, OPTIONS);
+            case 'T':
+                return matchMethod(buf, TRACE);
+            case 'L':
+                return matchMethod(buf, LOCK);
+            case 'U':
+                return matchMethod(buf, UNLOCK);
+            case 'P':
+                int http2 = matchMethod(buf, HTTP2_PREFACE_PREFIX);
+                if (http2 == PROTOCOL_HTTP) {
+                    return PROTOCOL_HTTP2;
                 }
-                return;
-            }
-            Trie trie = values.get(data[index]);
-            if (trie == null) {
-                trie = new Trie();
-                values.put(data[index], trie);
-            }
-            trie.addToTree(data, index + 1, worldEntry);
+                int http = matchMethods(buf, P_METHODS);
+                if (http == PROTOCOL_UNKNOWN && http2 == PROTOCOL_NEED_MORE) {
+                    return PROTOCOL_NEED_MORE;
+                }
+                return http;
+            case 'C':
+                return matchMethods(buf, C_METHODS);
+            case 'M':
+                return matchMethods(buf, M_METHODS);
+            default:
+                return PROTOCOL_UNKNOWN;
         }
+    }
 
-        String find(byte[] dictTable, int index) {
-            if (index >= dictTable.length) {
-                return this.method;
+    private static int matchMethods(ByteBuf buf, byte[][] candidates) {
+        boolean needMore = false;
+        for (byte[] candidate : candidates) {
+            int result = matchMethod(buf, candidate);
+            if (result == PROTOCOL_HTTP) {
+                return PROTOCOL_HTTP;
             }
-
-            Trie trie = values.get(dictTable[index]);
-            if (trie == null) {
-                return this.method;
+            if (result == PROTOCOL_NEED_MORE) {
+                needMore = true;
             }
-            return trie.find(dictTable, index + 1);
         }
-
+        return needMore ? PROTOCOL_NEED_MORE : PROTOCOL_UNKNOWN;
     }
 
-    private static final Trie methodCharacterTrie = new Trie();
-
-
-    static {
-        for (Method method : Method.values()) {
-            byte[] name = method.name().getBytes();
-            if (name.length > ROUTER_MAGIC_HEADER_LENGTH) {
-                byte[] buf = new byte[ROUTER_MAGIC_HEADER_LENGTH];
-                System.arraycopy(name, 0, buf, 0, ROUTER_MAGIC_HEADER_LENGTH);
-                name = buf;
+    private static int matchMethod(ByteBuf buf, byte[] method) {
+        int index = buf.readerIndex();
+        int length = Math.min(buf.readableBytes(), method.length);
+        for (int i = 0; i < length; i++) {
+            if (buf.getByte(index + i) != method[i]) {
+                return PROTOCOL_UNKNOWN;
             }
-            methodCharacterTrie.addToTree(name, 0, method.name());
         }
-    }
-
-
-    // 判断是否为HTTP 协议请求头
-    private static boolean maybeHttpRequest(byte[] data) {
-        return StringUtils.isNotBlank(methodCharacterTrie.find(data, 0));
+        return length == method.length ? PROTOCOL_HTTP : PROTOCOL_NEED_MORE;
     }
 }
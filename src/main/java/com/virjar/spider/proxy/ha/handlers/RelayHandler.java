@@ -1,12 +1,18 @@
 package com.virjar.spider.proxy.ha.handlers;
 
 
+import com.virjar.spider.proxy.ha.Configs;
+import com.virjar.spider.proxy.ha.core.Source;
+import com.virjar.spider.proxy.ha.core.TrafficMetrics;
+import com.virjar.spider.proxy.ha.utils.NettyTransport;
+import com.virjar.spider.proxy.ha.utils.NettyUtils;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.epoll.AbstractEpollStreamChannel;
 import io.netty.util.ReferenceCountUtil;
-import io.netty.util.ReferenceCounted;
 
 /**
  * @author lei.X
@@ -16,9 +22,72 @@ import io.netty.util.ReferenceCounted;
 public final class RelayHandler extends ChannelInboundHandlerAdapter {
 
     private final Channel nextChannel;
+    /**
+     * 数据从当前channel流向nextChannel
+     */
+    private final TunnelStatistics.Direction inbound;
+    /**
+     * 数据从nextChannel流向当前channel
+     */
+    private final TunnelStatistics.Direction outbound;
 
-    public RelayHandler(Channel relayChannel) {
+    /**
+     * 上次flush之后写入nextChannel的消息数量，一个读循环中的数据在channelReadComplete时统一flush
+     */
+    private int pendingWrites = 0;
+
+    private RelayHandler(Channel relayChannel, TunnelStatistics.Direction inbound, TunnelStatistics.Direction outbound) {
         this.nextChannel = relayChannel;
+        this.inbound = inbound;
+        this.outbound = outbound;
+    }
+
+    /**
+     * 在用户连接和上游连接之间建立双向转发，调用前两端的编解码器需要已经处理完成
+     *
+     * @param downstreamChannel 用户（爬虫）到代理服务器的连接
+     * @param upstreamChannel   代理服务器到上游代理资源的连接
+     * @param source            上游资源所属的数据源，提供写缓冲水位配置
+     */
+    public static void relay(Channel downstreamChannel, Channel upstreamChannel, Source source) {
+        NettyUtils.setWriteBufferWaterMark(downstreamChannel,
+                source.getWriteBufferLowWaterMark(), source.getWriteBufferHighWaterMark());
+        NettyUtils.setWriteBufferWaterMark(upstreamChannel,
+                source.getWriteBufferLowWaterMark(), source.getWriteBufferHighWaterMark());
+
+        TunnelStatistics tunnelStatistics = TunnelStatistics.open(downstreamChannel, upstreamChannel);
+
+        downstreamChannel.pipeline().addLast(
+                new RelayHandler(upstreamChannel, tunnelStatistics.getUpload(), tunnelStatistics.getDownload()));
+        upstreamChannel.pipeline().addLast(
+                new RelayHandler(downstreamChannel, tunnelStatistics.getDownload(), tunnelStatistics.getUpload()));
+    }
+
+    /**
+     * 透明隧道（CONNECT/SOCKS5）转发，两端都不再有编解码器。epoll模式下优先使用splice在内核态转发，否则降级为普通转发
+     */
+    public static void tunnel(Channel downstreamChannel, Channel upstreamChannel, Source source) {
+        if (NettyTransport.canSplice(downstreamChannel, upstreamChannel)) {
+            IdleReaper.disable(downstreamChannel);
+            // splice的数据不经过用户态，只统计隧道数量，没有流量
+            TunnelStatistics.open(downstreamChannel, upstreamChannel);
+            splice((AbstractEpollStreamChannel) downstreamChannel, (AbstractEpollStreamChannel) upstreamChannel);
+            return;
+        }
+        relay(downstreamChannel, upstreamChannel, source);
+    }
+
+    private static void splice(AbstractEpollStreamChannel downstreamChannel, AbstractEpollStreamChannel upstreamChannel) {
+        // splice通过内核pipe直接在两个socket之间搬运数据，不经过ByteBuf。pipe容量有限，所以天然带有背压
+        // 长度为Integer.MAX_VALUE表示一直转发，直到channel关闭
+        ChannelFutureListener closeOnFailure = future -> {
+            if (!future.isSuccess()) {
+                NettyUtils.closeChannelIfActive(downstreamChannel);
+                NettyUtils.closeChannelIfActive(upstreamChannel);
+            }
+        };
+        downstreamChannel.spliceTo(upstreamChannel, Integer.MAX_VALUE).addListener(closeOnFailure);
+        upstreamChannel.spliceTo(downstreamChannel, Integer.MAX_VALUE).addListener(closeOnFailure);
     }
 
     @Override
@@ -30,15 +99,59 @@ public final class RelayHandler extends ChannelInboundHandlerAdapter {
     @Override
     public void channelRead(ChannelHandlerContext ctx, Object msg) {
         if (nextChannel.isActive()) {
-            if (msg instanceof ReferenceCounted) {
-                ((ReferenceCounted) msg).retain();
+            // msg的所有权交给nextChannel，写完成后由netty释放，这里不能再retain
+            long bytes = TrafficMetrics.sizeOf(msg);
+            nextChannel.write(msg);
+            inbound.onWrite(bytes);
+            if (++pendingWrites >= Configs.relayFlushAfterReads) {
+                // 读循环太长时强制flush，避免数据在内存中停留过久
+                flushPending();
+            }
+            if (!nextChannel.isWritable()) {
+                // 对端写缓冲超过高水位，暂停当前channel的读，否则数据会在内存中无限堆积
+                // 暂停之前必须把已经写入的数据flush出去，否则对端永远不会恢复可写
+                flushPending();
+                inbound.pause();
+                // 对端可能在暂停之前就已经恢复可写了，此时writabilityChanged事件已经错过，需要再检查一次。
+                // 当前就在readChannel的eventLoop中，暂停和这里的恢复都是同步执行的
+                if (nextChannel.isWritable()) {
+                    inbound.resume();
+                }
             }
-            nextChannel.writeAndFlush(msg);
         } else {
             ReferenceCountUtil.release(msg);
         }
     }
 
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
+        flushPending();
+        super.channelReadComplete(ctx);
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        flushPending();
+        super.channelInactive(ctx);
+    }
+
+    private void flushPending() {
+        if (pendingWrites == 0) {
+            return;
+        }
+        pendingWrites = 0;
+        nextChannel.flush();
+        inbound.onFlush();
+    }
+
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+        // 当前channel的写缓冲降到低水位之下，恢复对端的读
+        if (ctx.channel().isWritable()) {
+            outbound.resume();
+        }
+        super.channelWritabilityChanged(ctx);
+    }
 
     @Override
     public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
@@ -46,4 +159,3 @@ public final class RelayHandler extends ChannelInboundHandlerAdapter {
         ctx.close();
     }
 }
-
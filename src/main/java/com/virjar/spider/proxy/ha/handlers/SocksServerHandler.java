@@ -1,6 +1,7 @@
 package com.virjar.spider.proxy.ha.handlers;
 
 import com.virjar.spider.proxy.ha.core.HaProxyMapping;
+import com.virjar.spider.proxy.ha.core.SessionTable;
 import com.virjar.spider.proxy.ha.handlers.upstream.Socks5UpstreamHandShaker;
 import com.virjar.spider.proxy.ha.handlers.upstream.UpstreamHandShaker;
 import com.virjar.spider.proxy.ha.utils.NettyUtils;
@@ -19,16 +20,32 @@ public class SocksServerHandler extends SimpleChannelInboundHandler<SocksRequest
 
     private SocksCmdRequest req;
 
+    private Socks5UpstreamHandShaker upstreamHandShaker;
+
+    /**
+     * 乐观握手被上游拒绝之后，重新借用连接走逐步握手，只重试一次
+     */
+    private boolean pipelineFallbackRetried = false;
+
     @Override
     protected void channelRead0(ChannelHandlerContext ctx, SocksRequest socksRequest) throws Exception {
         this.ctx = ctx;
+        SessionTable sessionTable = SessionTable.get(ctx.channel());
         switch (socksRequest.requestType()) {
             case INIT:
+                if (sessionTable != null) {
+                    handleSessionInit(ctx, (SocksInitRequest) socksRequest);
+                    break;
+                }
                 // 第一版，先不做鉴权
                 ctx.pipeline().addFirst(new SocksCmdRequestDecoder());
                 ctx.writeAndFlush(new SocksInitResponse(SocksAuthScheme.NO_AUTH));
                 break;
             case AUTH:
+                if (sessionTable != null) {
+                    handleSessionAuth(ctx, sessionTable, (SocksAuthRequest) socksRequest);
+                    break;
+                }
                 ctx.pipeline().addFirst(new SocksCmdRequestDecoder());
                 ctx.writeAndFlush(new SocksAuthResponse(SocksAuthStatus.SUCCESS));
                 break;
@@ -42,6 +59,39 @@ public class SocksServerHandler extends SimpleChannelInboundHandler<SocksRequest
 
     }
 
+    /**
+     * 会话端口使用用户名作为会话标识，要求客户端使用用户名密码鉴权
+     */
+    private void handleSessionInit(ChannelHandlerContext ctx, SocksInitRequest initRequest) {
+        if (!initRequest.authSchemes().contains(SocksAuthScheme.AUTH_PASSWORD)) {
+            ctx.writeAndFlush(new SocksInitResponse(SocksAuthScheme.UNKNOWN))
+                    .addListener(ChannelFutureListener.CLOSE);
+            return;
+        }
+        ctx.pipeline().addFirst(new SocksAuthRequestDecoder());
+        ctx.writeAndFlush(new SocksInitResponse(SocksAuthScheme.AUTH_PASSWORD));
+    }
+
+    private void handleSessionAuth(ChannelHandlerContext ctx, SessionTable sessionTable, SocksAuthRequest authRequest) {
+        String sessionId = SessionTable.sessionIdOf(authRequest.username());
+        if (sessionId == null) {
+            ctx.writeAndFlush(new SocksAuthResponse(SocksAuthStatus.FAILURE))
+                    .addListener(ChannelFutureListener.CLOSE);
+            return;
+        }
+        ctx.channel().config().setAutoRead(false);
+        sessionTable.resolve(ctx.channel(), sessionId, haProxyMapping -> ctx.executor().execute(() -> {
+            if (haProxyMapping == null) {
+                ctx.writeAndFlush(new SocksAuthResponse(SocksAuthStatus.FAILURE))
+                        .addListener(ChannelFutureListener.CLOSE);
+                return;
+            }
+            ctx.pipeline().addFirst(new SocksCmdRequestDecoder());
+            ctx.channel().config().setAutoRead(true);
+            ctx.writeAndFlush(new SocksAuthResponse(SocksAuthStatus.SUCCESS));
+        }));
+    }
+
     private void handleCmd(ChannelHandlerContext ctx, SocksRequest socksRequest) {
         req = (SocksCmdRequest) socksRequest;
         if (req.cmdType() != SocksCmdType.CONNECT) {
@@ -52,28 +102,39 @@ public class SocksServerHandler extends SimpleChannelInboundHandler<SocksRequest
         // 创建到 后端代理资源的链接
         haProxyMapping = HaProxyMapping.get(ctx.channel());
 
-        haProxyMapping.borrowConnect(value -> {
+        haProxyMapping.borrowConnect(ctx.channel().eventLoop(), value -> {
             if (value == null) {
                 log.warn("connect to proxy server failed:{} ", haProxyMapping.resourceKey());
                 writeConnectFailed("");
                 return;
             }
             upstreamChannel = value;
-            new Socks5UpstreamHandShaker(upstreamChannel,
+            long handSharkStartTimestamp = System.currentTimeMillis();
+            upstreamHandShaker = new Socks5UpstreamHandShaker(upstreamChannel,
                     haProxyMapping.getSource(),
                     new UpstreamHandShaker.UpstreamHandSharkCallback() {
                         @Override
                         public void onHandSharkFailed(String message) {
+                            haProxyMapping.onHandshakeFailed(upstreamChannel);
+                            if (upstreamHandShaker.isPipelineRejected() && !pipelineFallbackRetried
+                                    && ctx.channel().isActive()) {
+                                pipelineFallbackRetried = true;
+                                handleCmd(ctx, socksRequest);
+                                return;
+                            }
                             writeConnectFailed(message);
                         }
 
                         @Override
                         public void onHandSharkSuccess() {
+                            haProxyMapping.onHandshakeSuccess(upstreamChannel,
+                                    System.currentTimeMillis() - handSharkStartTimestamp);
                             writeConnectSuccess();
                         }
                     },
                     (SocksCmdRequest) socksRequest
-            ).doHandShark();
+            );
+            upstreamHandShaker.doHandShark();
         });
 
 
@@ -103,10 +164,7 @@ public class SocksServerHandler extends SimpleChannelInboundHandler<SocksRequest
                     pipeline.remove(SocksMessageEncoder.class);
                     pipeline.remove(SocksServerHandler.class);
 
-
-                    pipeline.addLast(new RelayHandler(upstreamChannel));
-                    upstreamChannel.pipeline()
-                            .addLast(new RelayHandler(ctx.channel()));
+                    RelayHandler.tunnel(ctx.channel(), upstreamChannel, haProxyMapping.getSource());
                 });
 
     }
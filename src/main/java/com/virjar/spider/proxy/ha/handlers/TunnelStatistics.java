@@ -0,0 +1,205 @@
+package com.virjar.spider.proxy.ha.handlers;
+
+import com.virjar.spider.proxy.ha.core.HaProxyMapping;
+import com.virjar.spider.proxy.ha.core.TrafficMetrics;
+import com.virjar.spider.proxy.ha.core.Upstream;
+import io.netty.channel.Channel;
+import io.netty.channel.EventLoop;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 一条隧道（用户连接 <-> 上游代理连接）的统计信息，两个方向各自统计
+ * <br>
+ * upload: 用户 -> 上游，download: 上游 -> 用户
+ * <br>
+ * 隧道数量和流量同时累计到映射端口和上游资源的计数器上
+ */
+@Slf4j
+public class TunnelStatistics {
+    @Getter
+    private final Direction upload;
+    @Getter
+    private final Direction download;
+
+    private final long createTimestamp = System.currentTimeMillis();
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+    private final List<TrafficMetrics> metricsList = new ArrayList<>(2);
+
+    private TunnelStatistics(Channel downstreamChannel, Channel upstreamChannel) {
+        HaProxyMapping haProxyMapping = HaProxyMapping.get(downstreamChannel);
+        if (haProxyMapping != null) {
+            metricsList.add(haProxyMapping.getMetrics());
+        }
+        Upstream upstream = Upstream.owner(upstreamChannel);
+        if (upstream != null) {
+            metricsList.add(upstream.getMetrics());
+        }
+        upload = new Direction("upload", downstreamChannel, metricsList, true);
+        download = new Direction("download", upstreamChannel, metricsList, false);
+    }
+
+    /**
+     * 开始统计一条隧道，任意一端关闭时结束
+     */
+    static TunnelStatistics open(Channel downstreamChannel, Channel upstreamChannel) {
+        TunnelStatistics tunnelStatistics = new TunnelStatistics(downstreamChannel, upstreamChannel);
+        for (TrafficMetrics metrics : tunnelStatistics.metricsList) {
+            metrics.onTunnelOpen();
+        }
+        downstreamChannel.closeFuture().addListener(future -> tunnelStatistics.onTunnelClose());
+        upstreamChannel.closeFuture().addListener(future -> tunnelStatistics.onTunnelClose());
+        return tunnelStatistics;
+    }
+
+    private void onTunnelClose() {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        for (TrafficMetrics metrics : metricsList) {
+            metrics.onTunnelClose();
+        }
+        upload.resume();
+        download.resume();
+        boolean stalled = upload.getPauseCount() > 0 || download.getPauseCount() > 0;
+        if (!stalled && !log.isDebugEnabled()) {
+            return;
+        }
+        String summary = "alive:" + (System.currentTimeMillis() - createTimestamp) + "ms " + upload + " " + download;
+        if (stalled) {
+            log.info("tunnel closed with stall, {}", summary);
+        } else {
+            log.debug("tunnel closed, {}", summary);
+        }
+    }
+
+    /**
+     * 单个方向上的数据流，readChannel为数据来源。当数据目的地写缓冲超过高水位，暂停来源的读
+     */
+    public static class Direction {
+        @Getter
+        private final String name;
+        private final Channel readChannel;
+        /**
+         * 流量、写入和flush次数在flush的时候汇总上报，而不是每次写入都上报；暂停时长在恢复读的时候上报
+         */
+        private final List<TrafficMetrics> metricsList;
+        private final boolean upload;
+
+        /**
+         * 暂停状态只在readChannel的eventLoop中修改，其他线程只读取用于统计。
+         * 暂停标记和setAutoRead在同一个线程中执行，不会出现恢复先于暂停执行导致channel一直不可读
+         */
+        private volatile long pauseStartNanos = 0;
+        private volatile long pausedNanos = 0;
+        private volatile int pauseCount = 0;
+
+        /**
+         * 写入和flush只会发生在数据来源channel的eventLoop中，不需要原子操作
+         */
+        private volatile long writeCount = 0;
+        private volatile long flushCount = 0;
+        private long pendingBytes = 0;
+        private long reportedWriteCount = 0;
+
+        Direction(String name, Channel readChannel, List<TrafficMetrics> metricsList, boolean upload) {
+            this.name = name;
+            this.readChannel = readChannel;
+            this.metricsList = metricsList;
+            this.upload = upload;
+        }
+
+        void pause() {
+            EventLoop eventLoop = readChannel.eventLoop();
+            if (!eventLoop.inEventLoop()) {
+                eventLoop.execute(this::pause);
+                return;
+            }
+            if (pauseStartNanos != 0) {
+                return;
+            }
+            // 0 表示当前没有暂停，这里避免 nanoTime 恰好为0的情况
+            pauseStartNanos = System.nanoTime() | 1;
+            pauseCount++;
+            readChannel.config().setAutoRead(false);
+        }
+
+        /**
+         * 对端写缓冲恢复时在对端的eventLoop中调用，这里切换到readChannel的eventLoop执行
+         */
+        void resume() {
+            EventLoop eventLoop = readChannel.eventLoop();
+            if (!eventLoop.inEventLoop()) {
+                eventLoop.execute(this::resume);
+                return;
+            }
+            long start = pauseStartNanos;
+            if (start == 0) {
+                return;
+            }
+            pauseStartNanos = 0;
+            long paused = System.nanoTime() - start;
+            pausedNanos += paused;
+            for (TrafficMetrics metrics : metricsList) {
+                metrics.onRelayPaused(paused);
+            }
+            readChannel.config().setAutoRead(true);
+        }
+
+        void onWrite(long bytes) {
+            writeCount++;
+            pendingBytes += bytes;
+        }
+
+        void onFlush() {
+            flushCount++;
+            long writes = writeCount - reportedWriteCount;
+            reportedWriteCount = writeCount;
+            for (TrafficMetrics metrics : metricsList) {
+                metrics.onRelayFlush(writes);
+                if (upload) {
+                    metrics.onUpload(pendingBytes);
+                } else {
+                    metrics.onDownload(pendingBytes);
+                }
+            }
+            pendingBytes = 0;
+        }
+
+        public long getWriteCount() {
+            return writeCount;
+        }
+
+        /**
+         * 每次flush至少对应一次write系统调用，和writeCount对比可以看出合并的效果
+         */
+        public long getFlushCount() {
+            return flushCount;
+        }
+
+        public int getPauseCount() {
+            return pauseCount;
+        }
+
+        public long getPausedMillis() {
+            long nanos = pausedNanos;
+            long start = pauseStartNanos;
+            if (start != 0) {
+                // 仍然处于暂停态
+                nanos += System.nanoTime() - start;
+            }
+            return TimeUnit.NANOSECONDS.toMillis(nanos);
+        }
+
+        @Override
+        public String toString() {
+            return name + "[write:" + writeCount + " flush:" + flushCount
+                    + " paused:" + getPauseCount() + " times/" + getPausedMillis() + "ms]";
+        }
+    }
+}
@@ -0,0 +1,494 @@
+package com.virjar.spider.proxy.ha.handlers.http2;
+
+import com.twitter.hpack.Decoder;
+import com.virjar.spider.proxy.ha.Configs;
+import com.virjar.spider.proxy.ha.core.HaProxyMapping;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufInputStream;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelPipeline;
+import io.netty.handler.codec.DecoderException;
+import io.netty.handler.codec.http.DefaultHttpRequest;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpVersion;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * h2c（prior-knowledge）入口：一个用户连接上多路复用多个CONNECT隧道
+ * <br>
+ * 每个CONNECT流（目标地址取:authority）单独通过HaProxyMapping.borrowConnect获取上游连接，
+ * 之后按照http/1.1 CONNECT和上游握手，握手成功后回复 :status 200，DATA帧和上游连接之间双向转发
+ * <br>
+ * 不支持RFC 8441的extended CONNECT（websocket over h2）：不发送SETTINGS_ENABLE_CONNECT_PROTOCOL，
+ * 带:protocol的请求按照畸形请求重置流
+ * <br>
+ * 流控：
+ * <ul>
+ *     <li>上传方向：客户端的DATA写入上游完成之后才归还流的接收窗口，上游写得慢时客户端在这个流上自然停止发送，
+ *     不影响其他流。连接级别的窗口收到数据就归还，内存占用由流的窗口和最大流数量限制</li>
+ *     <li>下载方向：按照客户端给出的流窗口和连接窗口发送DATA，窗口用完或者用户连接不可写时暂停对应上游连接的读</li>
+ * </ul>
+ * 所有状态只在用户连接的eventLoop中访问，上游连接上的事件切换到用户连接的eventLoop处理
+ */
+@Slf4j
+public class Http2ConnectHandler extends ChannelInboundHandlerAdapter {
+    /**
+     * 连接级别的接收窗口，数据到达即归还，只需要比所有流的窗口之和的常见值大一些
+     */
+    private static final int CONNECTION_WINDOW_SIZE = 1024 * 1024;
+    private static final int MAX_HEADER_LIST_SIZE = 16 * 1024;
+    private static final int HEADER_TABLE_SIZE = 4096;
+
+    private final HaProxyMapping haProxyMapping;
+    private ChannelHandlerContext ctx;
+
+    private final Decoder hpackDecoder = new Decoder(MAX_HEADER_LIST_SIZE, HEADER_TABLE_SIZE);
+    private final Map<Integer, Http2TunnelStream> streams = new HashMap<>();
+    private int lastStreamId = 0;
+    private boolean goAwayReceived = false;
+
+    private int peerInitialWindowSize = Http2Frames.DEFAULT_WINDOW_SIZE;
+    private int peerMaxFrameSize = Http2Frames.DEFAULT_MAX_FRAME_SIZE;
+    /**
+     * 向客户端发送数据的连接窗口
+     */
+    private long connectionSendWindow = Http2Frames.DEFAULT_WINDOW_SIZE;
+    private int connectionRecvWindow = CONNECTION_WINDOW_SIZE;
+    private int connectionRecvUnacked = 0;
+
+    /**
+     * 分成多个帧（HEADERS + CONTINUATION）传输的头部块
+     */
+    private ByteBuf headerBlock;
+    private int headerBlockStreamId;
+    private boolean headerBlockEndStream;
+
+    private Http2ConnectHandler(HaProxyMapping haProxyMapping) {
+        this.haProxyMapping = haProxyMapping;
+    }
+
+    /**
+     * 在协议嗅探之后安装h2c的解码和处理
+     */
+    public static void install(ChannelPipeline pipeline, HaProxyMapping haProxyMapping) {
+        pipeline.addLast(new Http2FrameDecoder());
+        pipeline.addLast(new Http2ConnectHandler(haProxyMapping));
+    }
+
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
+        this.ctx = ctx;
+        // 服务端的连接前言：SETTINGS，同时把连接接收窗口从默认值调大
+        ctx.write(Http2Frames.settings(ctx.alloc(),
+                Http2Frames.SETTINGS_MAX_CONCURRENT_STREAMS, Configs.http2MaxConcurrentStreams,
+                Http2Frames.SETTINGS_INITIAL_WINDOW_SIZE, streamWindowSize()));
+        ctx.writeAndFlush(Http2Frames.windowUpdate(ctx.alloc(), 0,
+                CONNECTION_WINDOW_SIZE - Http2Frames.DEFAULT_WINDOW_SIZE));
+        super.handlerAdded(ctx);
+    }
+
+    static int streamWindowSize() {
+        return Math.max(Http2Frames.DEFAULT_MAX_FRAME_SIZE, Configs.http2StreamWindowSize);
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        Http2Frames.Frame frame = (Http2Frames.Frame) msg;
+        try {
+            onFrame(frame);
+        } finally {
+            frame.payload.release();
+        }
+    }
+
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
+        ctx.flush();
+        super.channelReadComplete(ctx);
+    }
+
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+        if (ctx.channel().isWritable()) {
+            pumpAll();
+            ctx.flush();
+        }
+        super.channelWritabilityChanged(ctx);
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        for (Http2TunnelStream stream : new ArrayList<>(streams.values())) {
+            stream.close();
+        }
+        streams.clear();
+        releaseHeaderBlock();
+        super.channelInactive(ctx);
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+        Throwable error = cause instanceof DecoderException && cause.getCause() != null ? cause.getCause() : cause;
+        if (error instanceof Http2Frames.ConnectionError) {
+            connectionError((Http2Frames.ConnectionError) error);
+            return;
+        }
+        log.warn("h2c connection error", cause);
+        ctx.close();
+    }
+
+    private void connectionError(Http2Frames.ConnectionError error) {
+        log.warn("h2c connection error from:{} code:{} {}", ctx.channel().remoteAddress(),
+                error.errorCode, error.getMessage());
+        ctx.writeAndFlush(Http2Frames.goAway(ctx.alloc(), lastStreamId, error.errorCode))
+                .addListener(ChannelFutureListener.CLOSE);
+    }
+
+    private void onFrame(Http2Frames.Frame frame) {
+        if (headerBlock != null && frame.type != Http2Frames.TYPE_CONTINUATION) {
+            throw new Http2Frames.ConnectionError(Http2Frames.PROTOCOL_ERROR, "expect CONTINUATION");
+        }
+        switch (frame.type) {
+            case Http2Frames.TYPE_DATA:
+                onData(frame);
+                break;
+            case Http2Frames.TYPE_HEADERS:
+                onHeaders(frame);
+                break;
+            case Http2Frames.TYPE_CONTINUATION:
+                onContinuation(frame);
+                break;
+            case Http2Frames.TYPE_RST_STREAM:
+                onRstStream(frame);
+                break;
+            case Http2Frames.TYPE_SETTINGS:
+                onSettings(frame);
+                break;
+            case Http2Frames.TYPE_PING:
+                if (frame.payload.readableBytes() != 8) {
+                    throw new Http2Frames.ConnectionError(Http2Frames.FRAME_SIZE_ERROR, "bad PING");
+                }
+                if (!frame.hasFlag(Http2Frames.FLAG_ACK)) {
+                    ctx.write(Http2Frames.pingAck(ctx.alloc(), frame.payload));
+                }
+                break;
+            case Http2Frames.TYPE_GOAWAY:
+                goAwayReceived = true;
+                if (streams.isEmpty()) {
+                    ctx.close();
+                }
+                break;
+            case Http2Frames.TYPE_WINDOW_UPDATE:
+                onWindowUpdate(frame);
+                break;
+            case Http2Frames.TYPE_PUSH_PROMISE:
+                throw new Http2Frames.ConnectionError(Http2Frames.PROTOCOL_ERROR, "client can not push");
+            default:
+                // PRIORITY和未知类型的帧直接忽略
+        }
+    }
+
+    private void onData(Http2Frames.Frame frame) {
+        int streamId = frame.streamId;
+        if (streamId == 0 || streamId > lastStreamId) {
+            throw new Http2Frames.ConnectionError(Http2Frames.PROTOCOL_ERROR, "DATA on idle stream:" + streamId);
+        }
+        ByteBuf payload = frame.payload;
+        int flowControlled = payload.readableBytes();
+        connectionRecvWindow -= flowControlled;
+        if (connectionRecvWindow < 0) {
+            throw new Http2Frames.ConnectionError(Http2Frames.FLOW_CONTROL_ERROR, "connection window exceeded");
+        }
+        connectionRecvUnacked += flowControlled;
+        if (connectionRecvUnacked >= CONNECTION_WINDOW_SIZE / 2) {
+            ctx.write(Http2Frames.windowUpdate(ctx.alloc(), 0, connectionRecvUnacked));
+            connectionRecvWindow += connectionRecvUnacked;
+            connectionRecvUnacked = 0;
+        }
+
+        Http2TunnelStream stream = streams.get(streamId);
+        if (stream == null) {
+            // 已经关闭的流，对端可能还有在途的数据，直接丢弃
+            return;
+        }
+        int padLength = 0;
+        if (frame.hasFlag(Http2Frames.FLAG_PADDED)) {
+            padLength = payload.readUnsignedByte();
+        }
+        int dataLength = payload.readableBytes() - padLength;
+        if (dataLength < 0) {
+            throw new Http2Frames.ConnectionError(Http2Frames.PROTOCOL_ERROR, "bad padding");
+        }
+        stream.onData(payload.readSlice(dataLength).retain(), flowControlled,
+                frame.hasFlag(Http2Frames.FLAG_END_STREAM));
+    }
+
+    private void onHeaders(Http2Frames.Frame frame) {
+        int streamId = frame.streamId;
+        if (streamId == 0 || (streamId & 1) == 0) {
+            throw new Http2Frames.ConnectionError(Http2Frames.PROTOCOL_ERROR, "bad stream id:" + streamId);
+        }
+        ByteBuf payload = frame.payload;
+        int padLength = 0;
+        if (frame.hasFlag(Http2Frames.FLAG_PADDED)) {
+            padLength = payload.readUnsignedByte();
+        }
+        if (frame.hasFlag(Http2Frames.FLAG_PRIORITY)) {
+            payload.skipBytes(5);
+        }
+        int fragmentLength = payload.readableBytes() - padLength;
+        if (fragmentLength < 0) {
+            throw new Http2Frames.ConnectionError(Http2Frames.PROTOCOL_ERROR, "bad padding");
+        }
+        headerBlock = ctx.alloc().buffer(fragmentLength);
+        headerBlock.writeBytes(payload, payload.readerIndex(), fragmentLength);
+        headerBlockStreamId = streamId;
+        headerBlockEndStream = frame.hasFlag(Http2Frames.FLAG_END_STREAM);
+        if (frame.hasFlag(Http2Frames.FLAG_END_HEADERS)) {
+            onHeaderBlock();
+        }
+    }
+
+    private void onContinuation(Http2Frames.Frame frame) {
+        if (headerBlock == null || frame.streamId != headerBlockStreamId) {
+            throw new Http2Frames.ConnectionError(Http2Frames.PROTOCOL_ERROR, "unexpected CONTINUATION");
+        }
+        if (headerBlock.readableBytes() + frame.payload.readableBytes() > MAX_HEADER_LIST_SIZE * 2) {
+            throw new Http2Frames.ConnectionError(Http2Frames.PROTOCOL_ERROR, "header block too large");
+        }
+        headerBlock.writeBytes(frame.payload);
+        if (frame.hasFlag(Http2Frames.FLAG_END_HEADERS)) {
+            onHeaderBlock();
+        }
+    }
+
+    private void releaseHeaderBlock() {
+        if (headerBlock != null) {
+            headerBlock.release();
+            headerBlock = null;
+        }
+    }
+
+    private void onHeaderBlock() {
+        int streamId = headerBlockStreamId;
+        boolean endStream = headerBlockEndStream;
+        List<String[]> headers = new ArrayList<>();
+        boolean truncated;
+        try {
+            // 即使这个流会被拒绝，头部块也必须解码，否则hpack动态表和对端不一致
+            hpackDecoder.decode(new ByteBufInputStream(headerBlock),
+                    (name, value, sensitive) -> headers.add(new String[]{
+                            new String(name, StandardCharsets.ISO_8859_1),
+                            new String(value, StandardCharsets.ISO_8859_1)}));
+            truncated = hpackDecoder.endHeaderBlock();
+        } catch (IOException e) {
+            throw new Http2Frames.ConnectionError(Http2Frames.COMPRESSION_ERROR, e.getMessage());
+        } finally {
+            releaseHeaderBlock();
+        }
+
+        Http2TunnelStream existing = streams.get(streamId);
+        if (existing != null) {
+            // CONNECT流上不允许再出现头部（trailer）
+            existing.reset(Http2Frames.PROTOCOL_ERROR);
+            return;
+        }
+        if (streamId <= lastStreamId) {
+            throw new Http2Frames.ConnectionError(Http2Frames.STREAM_CLOSED, "HEADERS on closed stream:" + streamId);
+        }
+        lastStreamId = streamId;
+        if (goAwayReceived) {
+            writeRstStream(streamId, Http2Frames.REFUSED_STREAM);
+            return;
+        }
+        if (truncated || streams.size() >= Configs.http2MaxConcurrentStreams) {
+            writeRstStream(streamId, Http2Frames.REFUSED_STREAM);
+            return;
+        }
+
+        String method = null;
+        String authority = null;
+        boolean hasProtocol = false;
+        for (String[] header : headers) {
+            if (":method".equals(header[0])) {
+                method = header[1];
+            } else if (":authority".equals(header[0])) {
+                authority = header[1];
+            } else if (":protocol".equals(header[0])) {
+                hasProtocol = true;
+            }
+        }
+        if (hasProtocol) {
+            // 没有声明SETTINGS_ENABLE_CONNECT_PROTOCOL，客户端不应该发送:protocol，按照畸形请求处理（RFC 8441 3）
+            writeRstStream(streamId, Http2Frames.PROTOCOL_ERROR);
+            return;
+        }
+        if (!HttpMethod.CONNECT.name().equals(method)) {
+            // 这个入口只提供隧道
+            ctx.write(Http2Frames.headers(ctx.alloc(), streamId, Http2Frames.STATUS_405, true));
+            return;
+        }
+        if (authority == null || authority.isEmpty() || endStream) {
+            ctx.write(Http2Frames.headers(ctx.alloc(), streamId, Http2Frames.STATUS_400, true));
+            return;
+        }
+        Http2TunnelStream stream = new Http2TunnelStream(this, streamId, toConnectRequest(authority, headers));
+        streams.put(streamId, stream);
+        stream.start();
+    }
+
+    /**
+     * 转换为http/1.1的CONNECT请求，和上游按照普通https代理握手。普通头部原样转发，伪头部丢弃
+     */
+    private static HttpRequest toConnectRequest(String authority, List<String[]> headers) {
+        HttpRequest httpRequest = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.CONNECT, authority);
+        httpRequest.headers().set(HttpHeaders.Names.HOST, authority);
+        for (String[] header : headers) {
+            if (!header[0].startsWith(":")) {
+                httpRequest.headers().add(header[0], header[1]);
+            }
+        }
+        return httpRequest;
+    }
+
+    private void onRstStream(Http2Frames.Frame frame) {
+        if (frame.streamId == 0) {
+            throw new Http2Frames.ConnectionError(Http2Frames.PROTOCOL_ERROR, "RST_STREAM on stream 0");
+        }
+        Http2TunnelStream stream = streams.get(frame.streamId);
+        if (stream != null) {
+            stream.close();
+        }
+    }
+
+    private void onSettings(Http2Frames.Frame frame) {
+        if (frame.streamId != 0) {
+            throw new Http2Frames.ConnectionError(Http2Frames.PROTOCOL_ERROR, "SETTINGS on stream:" + frame.streamId);
+        }
+        if (frame.hasFlag(Http2Frames.FLAG_ACK)) {
+            return;
+        }
+        ByteBuf payload = frame.payload;
+        if (payload.readableBytes() % 6 != 0) {
+            throw new Http2Frames.ConnectionError(Http2Frames.FRAME_SIZE_ERROR, "bad SETTINGS length");
+        }
+        while (payload.isReadable()) {
+            int key = payload.readUnsignedShort();
+            long value = payload.readUnsignedInt();
+            switch (key) {
+                case Http2Frames.SETTINGS_INITIAL_WINDOW_SIZE:
+                    if (value > Http2Frames.MAX_WINDOW_SIZE) {
+                        throw new Http2Frames.ConnectionError(Http2Frames.FLOW_CONTROL_ERROR, "bad initial window");
+                    }
+                    int delta = (int) value - peerInitialWindowSize;
+                    peerInitialWindowSize = (int) value;
+                    for (Http2TunnelStream stream : streams.values()) {
+                        stream.onSendWindowDelta(delta);
+                    }
+                    break;
+                case Http2Frames.SETTINGS_MAX_FRAME_SIZE:
+                    if (value < Http2Frames.DEFAULT_MAX_FRAME_SIZE || value > Http2Frames.MAX_FRAME_SIZE_UPPER_BOUND) {
+                        throw new Http2Frames.ConnectionError(Http2Frames.PROTOCOL_ERROR, "bad max frame size");
+                    }
+                    peerMaxFrameSize = (int) value;
+                    break;
+                default:
+                    // 响应头部不使用动态表，SETTINGS_HEADER_TABLE_SIZE不需要处理；其他设置对隧道没有影响
+            }
+        }
+        ctx.write(Http2Frames.settingsAck(ctx.alloc()));
+        pumpAll();
+    }
+
+    private void onWindowUpdate(Http2Frames.Frame frame) {
+        if (frame.payload.readableBytes() != 4) {
+            throw new Http2Frames.ConnectionError(Http2Frames.FRAME_SIZE_ERROR, "bad WINDOW_UPDATE");
+        }
+        int increment = frame.payload.readInt() & Integer.MAX_VALUE;
+        if (frame.streamId == 0) {
+            if (increment == 0) {
+                throw new Http2Frames.ConnectionError(Http2Frames.PROTOCOL_ERROR, "zero window increment");
+            }
+            connectionSendWindow += increment;
+            if (connectionSendWindow > Http2Frames.MAX_WINDOW_SIZE) {
+                throw new Http2Frames.ConnectionError(Http2Frames.FLOW_CONTROL_ERROR, "connection window overflow");
+            }
+            pumpAll();
+            return;
+        }
+        Http2TunnelStream stream = streams.get(frame.streamId);
+        if (stream != null) {
+            stream.onWindowUpdate(increment);
+        }
+    }
+
+    private void pumpAll() {
+        for (Http2TunnelStream stream : new ArrayList<>(streams.values())) {
+            stream.pumpDownload();
+        }
+    }
+
+    // 以下方法给Http2TunnelStream使用，都在用户连接的eventLoop中调用
+
+    ChannelHandlerContext ctx() {
+        return ctx;
+    }
+
+    HaProxyMapping getHaProxyMapping() {
+        return haProxyMapping;
+    }
+
+    int getPeerInitialWindowSize() {
+        return peerInitialWindowSize;
+    }
+
+    int getPeerMaxFrameSize() {
+        return peerMaxFrameSize;
+    }
+
+    long getConnectionSendWindow() {
+        return connectionSendWindow;
+    }
+
+    void consumeConnectionSendWindow(int bytes) {
+        connectionSendWindow -= bytes;
+    }
+
+    void writeRstStream(int streamId, int errorCode) {
+        ctx.write(Http2Frames.rstStream(ctx.alloc(), streamId, errorCode));
+    }
+
+    void onStreamClosed(Http2TunnelStream stream) {
+        streams.remove(stream.getStreamId(), stream);
+        if (goAwayReceived && streams.isEmpty()) {
+            ctx.flush();
+            ctx.close();
+        }
+    }
+
+    /**
+     * 在用户连接的eventLoop中执行，执行完成之后flush
+     */
+    void runInEventLoop(Runnable runnable) {
+        if (ctx.executor().inEventLoop()) {
+            runnable.run();
+            ctx.flush();
+            return;
+        }
+        ctx.executor().execute(() -> {
+            runnable.run();
+            ctx.flush();
+        });
+    }
+}
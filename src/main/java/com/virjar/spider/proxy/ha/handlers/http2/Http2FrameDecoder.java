@@ -0,0 +1,48 @@
+package com.virjar.spider.proxy.ha.handlers.http2;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.ByteToMessageDecoder;
+
+import java.util.List;
+
+/**
+ * 校验h2c连接前言之后，把字节流切分为http2帧。帧的payload是输入的切片，不做拷贝
+ */
+class Http2FrameDecoder extends ByteToMessageDecoder {
+    private boolean prefaceReceived = false;
+
+    @Override
+    protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) {
+        if (!prefaceReceived) {
+            int length = Math.min(in.readableBytes(), Http2Frames.CONNECTION_PREFACE.length);
+            for (int i = 0; i < length; i++) {
+                if (in.getByte(in.readerIndex() + i) != Http2Frames.CONNECTION_PREFACE[i]) {
+                    throw new Http2Frames.ConnectionError(Http2Frames.PROTOCOL_ERROR, "bad connection preface");
+                }
+            }
+            if (length < Http2Frames.CONNECTION_PREFACE.length) {
+                return;
+            }
+            in.skipBytes(length);
+            prefaceReceived = true;
+        }
+        if (in.readableBytes() < Http2Frames.FRAME_HEADER_LENGTH) {
+            return;
+        }
+        int index = in.readerIndex();
+        int payloadLength = in.getUnsignedMedium(index);
+        if (payloadLength > Http2Frames.DEFAULT_MAX_FRAME_SIZE) {
+            // 没有调整SETTINGS_MAX_FRAME_SIZE，对端不能发送超过默认值的帧
+            throw new Http2Frames.ConnectionError(Http2Frames.FRAME_SIZE_ERROR, "frame too large:" + payloadLength);
+        }
+        if (in.readableBytes() < Http2Frames.FRAME_HEADER_LENGTH + payloadLength) {
+            return;
+        }
+        int type = in.getUnsignedByte(index + 3);
+        int flags = in.getUnsignedByte(index + 4);
+        int streamId = in.getInt(index + 5) & Integer.MAX_VALUE;
+        in.skipBytes(Http2Frames.FRAME_HEADER_LENGTH);
+        out.add(new Http2Frames.Frame(type, flags, streamId, in.readSlice(payloadLength).retain()));
+    }
+}
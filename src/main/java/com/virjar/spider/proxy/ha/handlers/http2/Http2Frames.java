@@ -0,0 +1,181 @@
+package com.virjar.spider.proxy.ha.handlers.http2;
+
+import com.twitter.hpack.Encoder;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * http2帧的常量和编码，只包含CONNECT隧道需要用到的部分（RFC 7540）
+ */
+class Http2Frames {
+    static final byte[] CONNECTION_PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    static final int FRAME_HEADER_LENGTH = 9;
+    static final int DEFAULT_WINDOW_SIZE = 65535;
+    static final int DEFAULT_MAX_FRAME_SIZE = 16384;
+    static final int MAX_FRAME_SIZE_UPPER_BOUND = 16777215;
+    static final int MAX_WINDOW_SIZE = Integer.MAX_VALUE;
+
+    static final int TYPE_DATA = 0x0;
+    static final int TYPE_HEADERS = 0x1;
+    static final int TYPE_PRIORITY = 0x2;
+    static final int TYPE_RST_STREAM = 0x3;
+    static final int TYPE_SETTINGS = 0x4;
+    static final int TYPE_PUSH_PROMISE = 0x5;
+    static final int TYPE_PING = 0x6;
+    static final int TYPE_GOAWAY = 0x7;
+    static final int TYPE_WINDOW_UPDATE = 0x8;
+    static final int TYPE_CONTINUATION = 0x9;
+
+    static final int FLAG_END_STREAM = 0x1;
+    static final int FLAG_ACK = 0x1;
+    static final int FLAG_END_HEADERS = 0x4;
+    static final int FLAG_PADDED = 0x8;
+    static final int FLAG_PRIORITY = 0x20;
+
+    static final int SETTINGS_HEADER_TABLE_SIZE = 0x1;
+    static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+    static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+    static final int SETTINGS_MAX_FRAME_SIZE = 0x5;
+
+    static final int NO_ERROR = 0x0;
+    static final int PROTOCOL_ERROR = 0x1;
+    static final int INTERNAL_ERROR = 0x2;
+    static final int FLOW_CONTROL_ERROR = 0x3;
+    static final int STREAM_CLOSED = 0x5;
+    static final int FRAME_SIZE_ERROR = 0x6;
+    static final int REFUSED_STREAM = 0x7;
+    static final int CANCEL = 0x8;
+    static final int COMPRESSION_ERROR = 0x9;
+    static final int CONNECT_ERROR = 0xa;
+    static final int HTTP_1_1_REQUIRED = 0xd;
+
+    /**
+     * 响应头只有:status，预先编码。编码器不使用动态表，不需要和对端同步表大小
+     */
+    static final byte[] STATUS_200 = encodeStatus(200);
+    static final byte[] STATUS_400 = encodeStatus(400);
+    static final byte[] STATUS_405 = encodeStatus(405);
+    static final byte[] STATUS_502 = encodeStatus(502);
+
+    /**
+     * 解码之后的一帧，payload由接收方负责释放
+     */
+    static class Frame {
+        final int type;
+        final int flags;
+        final int streamId;
+        final ByteBuf payload;
+
+        Frame(int type, int flags, int streamId, ByteBuf payload) {
+            this.type = type;
+            this.flags = flags;
+            this.streamId = streamId;
+            this.payload = payload;
+        }
+
+        boolean hasFlag(int flag) {
+            return (flags & flag) != 0;
+        }
+    }
+
+    /**
+     * 连接级别的错误，发送GOAWAY之后关闭连接
+     */
+    static class ConnectionError extends RuntimeException {
+        final int errorCode;
+
+        ConnectionError(int errorCode, String message) {
+            super(message);
+            this.errorCode = errorCode;
+        }
+    }
+
+    private static byte[] encodeStatus(int status) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            new Encoder(0).encodeHeader(out, ":status".getBytes(StandardCharsets.US_ASCII),
+                    String.valueOf(status).getBytes(StandardCharsets.US_ASCII), false);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return out.toByteArray();
+    }
+
+    static void writeFrameHeader(ByteBuf buf, int length, int type, int flags, int streamId) {
+        buf.writeMedium(length);
+        buf.writeByte(type);
+        buf.writeByte(flags);
+        buf.writeInt(streamId & Integer.MAX_VALUE);
+    }
+
+    /**
+     * @param settings key value 交替
+     */
+    static ByteBuf settings(ByteBufAllocator alloc, int... settings) {
+        int count = settings.length / 2;
+        ByteBuf buf = alloc.buffer(FRAME_HEADER_LENGTH + count * 6);
+        writeFrameHeader(buf, count * 6, TYPE_SETTINGS, 0, 0);
+        for (int i = 0; i < count; i++) {
+            buf.writeShort(settings[i * 2]);
+            buf.writeInt(settings[i * 2 + 1]);
+        }
+        return buf;
+    }
+
+    static ByteBuf settingsAck(ByteBufAllocator alloc) {
+        ByteBuf buf = alloc.buffer(FRAME_HEADER_LENGTH);
+        writeFrameHeader(buf, 0, TYPE_SETTINGS, FLAG_ACK, 0);
+        return buf;
+    }
+
+    static ByteBuf pingAck(ByteBufAllocator alloc, ByteBuf opaqueData) {
+        ByteBuf buf = alloc.buffer(FRAME_HEADER_LENGTH + 8);
+        writeFrameHeader(buf, 8, TYPE_PING, FLAG_ACK, 0);
+        buf.writeBytes(opaqueData, opaqueData.readerIndex(), 8);
+        return buf;
+    }
+
+    static ByteBuf goAway(ByteBufAllocator alloc, int lastStreamId, int errorCode) {
+        ByteBuf buf = alloc.buffer(FRAME_HEADER_LENGTH + 8);
+        writeFrameHeader(buf, 8, TYPE_GOAWAY, 0, 0);
+        buf.writeInt(lastStreamId & Integer.MAX_VALUE);
+        buf.writeInt(errorCode);
+        return buf;
+    }
+
+    static ByteBuf rstStream(ByteBufAllocator alloc, int streamId, int errorCode) {
+        ByteBuf buf = alloc.buffer(FRAME_HEADER_LENGTH + 4);
+        writeFrameHeader(buf, 4, TYPE_RST_STREAM, 0, streamId);
+        buf.writeInt(errorCode);
+        return buf;
+    }
+
+    static ByteBuf windowUpdate(ByteBufAllocator alloc, int streamId, int increment) {
+        ByteBuf buf = alloc.buffer(FRAME_HEADER_LENGTH + 4);
+        writeFrameHeader(buf, 4, TYPE_WINDOW_UPDATE, 0, streamId);
+        buf.writeInt(increment);
+        return buf;
+    }
+
+    static ByteBuf headers(ByteBufAllocator alloc, int streamId, byte[] headerBlock, boolean endStream) {
+        ByteBuf buf = alloc.buffer(FRAME_HEADER_LENGTH + headerBlock.length);
+        writeFrameHeader(buf, headerBlock.length, TYPE_HEADERS,
+                FLAG_END_HEADERS | (endStream ? FLAG_END_STREAM : 0), streamId);
+        buf.writeBytes(headerBlock);
+        return buf;
+    }
+
+    /**
+     * DATA帧只编码帧头，数据部分直接使用上游读到的ByteBuf，不做拷贝
+     */
+    static ByteBuf dataHeader(ByteBufAllocator alloc, int streamId, int length, boolean endStream) {
+        ByteBuf buf = alloc.buffer(FRAME_HEADER_LENGTH);
+        writeFrameHeader(buf, length, TYPE_DATA, endStream ? FLAG_END_STREAM : 0, streamId);
+        return buf;
+    }
+}
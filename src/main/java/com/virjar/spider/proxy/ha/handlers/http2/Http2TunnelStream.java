@@ -0,0 +1,381 @@
+package com.virjar.spider.proxy.ha.handlers.http2;
+
+import com.virjar.spider.proxy.ha.core.HaProxyMapping;
+import com.virjar.spider.proxy.ha.core.TrafficMetrics;
+import com.virjar.spider.proxy.ha.core.Upstream;
+import com.virjar.spider.proxy.ha.handlers.upstream.HttpsUpstreamHandShaker;
+import com.virjar.spider.proxy.ha.handlers.upstream.UpstreamHandShaker;
+import com.virjar.spider.proxy.ha.utils.NettyUtils;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.EventLoop;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.util.ReferenceCountUtil;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayDeque;
+
+/**
+ * h2c连接上的一个CONNECT隧道，对应一个上游连接。只在用户连接的eventLoop中访问
+ * <br>
+ * 客户端的END_STREAM对应上游连接的半关闭（shutdownOutput），上游关闭连接对应发送END_STREAM
+ */
+@Slf4j
+class Http2TunnelStream {
+    private final Http2ConnectHandler connection;
+    @Getter
+    private final int streamId;
+    private final HttpRequest connectRequest;
+
+    private Channel upstreamChannel;
+    /**
+     * 已经回复了 :status 200，可以开始转发
+     */
+    private boolean established = false;
+    private boolean closed = false;
+    /**
+     * 客户端已经发送了END_STREAM
+     */
+    private boolean remoteEnded = false;
+    /**
+     * 上游连接已经读到EOF
+     */
+    private boolean upstreamEof = false;
+
+    /**
+     * 上游连接准备好之前客户端发送的数据
+     */
+    private final ArrayDeque<ByteBuf> uploadPending = new ArrayDeque<>();
+    private ChannelFuture lastUploadFuture;
+    private int recvWindow = Http2ConnectHandler.streamWindowSize();
+    private int recvUnacked = 0;
+
+    /**
+     * 上游读到但是因为窗口不足还没有发送给客户端的数据
+     */
+    private final ArrayDeque<ByteBuf> downloadPending = new ArrayDeque<>();
+    private long sendWindow;
+    private boolean upstreamReading = true;
+
+    Http2TunnelStream(Http2ConnectHandler connection, int streamId, HttpRequest connectRequest) {
+        this.connection = connection;
+        this.streamId = streamId;
+        this.connectRequest = connectRequest;
+        this.sendWindow = connection.getPeerInitialWindowSize();
+    }
+
+    void start() {
+        HaProxyMapping haProxyMapping = connection.getHaProxyMapping();
+        Channel clientChannel = connection.ctx().channel();
+        haProxyMapping.borrowConnect(clientChannel.eventLoop(), value -> connection.runInEventLoop(() -> {
+            if (value == null) {
+                log.warn("connect to upstream proxy server failed:{} ", haProxyMapping.resourceKey());
+                respondFailure();
+                return;
+            }
+            onUpstreamConnected(value);
+        }));
+    }
+
+    private void onUpstreamConnected(Channel channel) {
+        if (closed) {
+            NettyUtils.closeChannelIfActive(channel);
+            return;
+        }
+        upstreamChannel = channel;
+        HaProxyMapping haProxyMapping = connection.getHaProxyMapping();
+        long handSharkStartTimestamp = System.currentTimeMillis();
+        new HttpsUpstreamHandShaker(channel, haProxyMapping.getSource(), new UpstreamHandShaker.UpstreamHandSharkCallback() {
+            @Override
+            public void onHandSharkFailed(String message) {
+                haProxyMapping.onHandshakeFailed(channel);
+                log.warn("h2c stream handshake failed:{} {}", connectRequest.getUri(), message);
+                connection.runInEventLoop(() -> respondFailure());
+            }
+
+            @Override
+            public void onHandSharkSuccess() {
+                haProxyMapping.onHandshakeSuccess(channel, System.currentTimeMillis() - handSharkStartTimestamp);
+                // 在上游的eventLoop中同步安装，握手之后上游立即发送的数据不会丢失
+                channel.pipeline().addLast(new UpstreamReader());
+                connection.runInEventLoop(() -> onEstablished());
+            }
+        }, connectRequest).doHandShark();
+    }
+
+    private void onEstablished() {
+        if (closed) {
+            return;
+        }
+        established = true;
+        HaProxyMapping haProxyMapping = connection.getHaProxyMapping();
+        haProxyMapping.getMetrics().onTunnelOpen();
+        Upstream owner = Upstream.owner(upstreamChannel);
+        if (owner != null) {
+            owner.getMetrics().onTunnelOpen();
+        }
+        ChannelHandlerContext ctx = connection.ctx();
+        ctx.write(Http2Frames.headers(ctx.alloc(), streamId, Http2Frames.STATUS_200, false));
+        while (!uploadPending.isEmpty()) {
+            writeUpstream(uploadPending.poll());
+        }
+        if (remoteEnded) {
+            shutdownUpstreamOutput();
+        }
+        pumpDownload();
+    }
+
+    /**
+     * 借用或者握手失败，回复502
+     */
+    private void respondFailure() {
+        if (closed) {
+            return;
+        }
+        ChannelHandlerContext ctx = connection.ctx();
+        ctx.write(Http2Frames.headers(ctx.alloc(), streamId, Http2Frames.STATUS_502, true));
+        if (!remoteEnded) {
+            // 告诉客户端不需要再发送数据
+            connection.writeRstStream(streamId, Http2Frames.NO_ERROR);
+        }
+        close();
+    }
+
+    /**
+     * 客户端发送的数据
+     *
+     * @param flowControlled 这一帧占用的流控窗口，包括padding
+     */
+    void onData(ByteBuf data, int flowControlled, boolean endStream) {
+        if (closed) {
+            data.release();
+            return;
+        }
+        recvWindow -= flowControlled;
+        if (recvWindow < 0 || remoteEnded) {
+            data.release();
+            reset(recvWindow < 0 ? Http2Frames.FLOW_CONTROL_ERROR : Http2Frames.STREAM_CLOSED);
+            return;
+        }
+        // padding不需要写入上游，直接归还窗口
+        onUploadConsumed(flowControlled - data.readableBytes());
+        if (!data.isReadable()) {
+            data.release();
+        } else if (established) {
+            writeUpstream(data);
+        } else {
+            uploadPending.add(data);
+        }
+        if (endStream) {
+            remoteEnded = true;
+            if (established) {
+                shutdownUpstreamOutput();
+            }
+        }
+    }
+
+    private void writeUpstream(ByteBuf data) {
+        int bytes = data.readableBytes();
+        connection.getHaProxyMapping().getMetrics().onUpload(bytes);
+        Upstream owner = Upstream.owner(upstreamChannel);
+        if (owner != null) {
+            owner.getMetrics().onUpload(bytes);
+        }
+        lastUploadFuture = upstreamChannel.writeAndFlush(data);
+        // 写入上游之后才归还窗口，上游写得慢时客户端在这个流上停止发送
+        lastUploadFuture.addListener(future -> {
+            if (future.isSuccess()) {
+                connection.runInEventLoop(() -> onUploadConsumed(bytes));
+            }
+        });
+    }
+
+    private void onUploadConsumed(int bytes) {
+        if (closed || remoteEnded || bytes <= 0) {
+            return;
+        }
+        recvUnacked += bytes;
+        if (recvUnacked >= Http2ConnectHandler.streamWindowSize() / 2) {
+            ChannelHandlerContext ctx = connection.ctx();
+            ctx.write(Http2Frames.windowUpdate(ctx.alloc(), streamId, recvUnacked));
+            recvWindow += recvUnacked;
+            recvUnacked = 0;
+        }
+    }
+
+    private void shutdownUpstreamOutput() {
+        Channel channel = upstreamChannel;
+        if (!(channel instanceof SocketChannel)) {
+            return;
+        }
+        if (lastUploadFuture == null) {
+            ((SocketChannel) channel).shutdownOutput();
+            return;
+        }
+        // 等待已经写入的数据发送完成之后再半关闭
+        lastUploadFuture.addListener(future -> ((SocketChannel) channel).shutdownOutput());
+    }
+
+    void onWindowUpdate(int increment) {
+        if (increment == 0) {
+            reset(Http2Frames.PROTOCOL_ERROR);
+            return;
+        }
+        onSendWindowDelta(increment);
+    }
+
+    void onSendWindowDelta(int delta) {
+        sendWindow += delta;
+        if (sendWindow > Http2Frames.MAX_WINDOW_SIZE) {
+            reset(Http2Frames.FLOW_CONTROL_ERROR);
+            return;
+        }
+        pumpDownload();
+    }
+
+    private void onUpstreamData(ByteBuf data) {
+        if (closed) {
+            data.release();
+            return;
+        }
+        int bytes = data.readableBytes();
+        connection.getHaProxyMapping().getMetrics().onDownload(bytes);
+        Upstream owner = Upstream.owner(upstreamChannel);
+        if (owner != null) {
+            owner.getMetrics().onDownload(bytes);
+        }
+        downloadPending.add(data);
+        pumpDownload();
+    }
+
+    private void onUpstreamEof() {
+        if (closed) {
+            return;
+        }
+        upstreamEof = true;
+        pumpDownload();
+    }
+
+    /**
+     * 在流窗口、连接窗口和用户连接可写的范围内，把上游数据发送给客户端；发不完的时候暂停上游的读
+     */
+    void pumpDownload() {
+        if (closed || !established) {
+            return;
+        }
+        ChannelHandlerContext ctx = connection.ctx();
+        while (!downloadPending.isEmpty()) {
+            long window = Math.min(sendWindow, connection.getConnectionSendWindow());
+            if (window <= 0 || !ctx.channel().isWritable()) {
+                break;
+            }
+            ByteBuf head = downloadPending.peek();
+            int length = (int) Math.min(Math.min(head.readableBytes(), window), connection.getPeerMaxFrameSize());
+            ctx.write(Http2Frames.dataHeader(ctx.alloc(), streamId, length, false));
+            ctx.write(head.readSlice(length).retain());
+            if (!head.isReadable()) {
+                downloadPending.poll().release();
+            }
+            sendWindow -= length;
+            connection.consumeConnectionSendWindow(length);
+        }
+        if (downloadPending.isEmpty() && upstreamEof) {
+            ctx.write(Http2Frames.dataHeader(ctx.alloc(), streamId, 0, true));
+            if (!remoteEnded) {
+                // 上游已经关闭，客户端后续的数据没有意义
+                connection.writeRstStream(streamId, Http2Frames.NO_ERROR);
+            }
+            close();
+            return;
+        }
+        boolean canRead = downloadPending.isEmpty() && sendWindow > 0
+                && connection.getConnectionSendWindow() > 0 && ctx.channel().isWritable();
+        if (canRead != upstreamReading) {
+            upstreamReading = canRead;
+            setUpstreamAutoRead(canRead);
+        }
+    }
+
+    /**
+     * autoRead在上游连接的eventLoop中切换。期望状态在用户连接的eventLoop中维护，切换任务按照提交顺序执行，
+     * 暂停和恢复不会乱序；两个连接在同一个eventLoop上时直接执行
+     */
+    private void setUpstreamAutoRead(boolean autoRead) {
+        Channel channel = upstreamChannel;
+        EventLoop eventLoop = channel.eventLoop();
+        if (eventLoop.inEventLoop()) {
+            channel.config().setAutoRead(autoRead);
+            return;
+        }
+        eventLoop.execute(() -> channel.config().setAutoRead(autoRead));
+    }
+
+    /**
+     * 流级别的错误，发送RST_STREAM之后关闭
+     */
+    void reset(int errorCode) {
+        if (closed) {
+            return;
+        }
+        connection.writeRstStream(streamId, errorCode);
+        close();
+    }
+
+    /**
+     * 释放流的所有资源并关闭上游连接，不再发送任何帧
+     */
+    void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        releaseAll(uploadPending);
+        releaseAll(downloadPending);
+        if (established) {
+            connection.getHaProxyMapping().getMetrics().onTunnelClose();
+            Upstream owner = Upstream.owner(upstreamChannel);
+            if (owner != null) {
+                owner.getMetrics().onTunnelClose();
+            }
+        }
+        NettyUtils.closeChannelIfActive(upstreamChannel);
+        connection.onStreamClosed(this);
+    }
+
+    private static void releaseAll(ArrayDeque<ByteBuf> queue) {
+        while (!queue.isEmpty()) {
+            ReferenceCountUtil.release(queue.poll());
+        }
+    }
+
+    /**
+     * 安装在上游连接上，把上游的数据和关闭事件交给用户连接的eventLoop
+     */
+    private class UpstreamReader extends ChannelInboundHandlerAdapter {
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            if (!(msg instanceof ByteBuf)) {
+                ReferenceCountUtil.release(msg);
+                return;
+            }
+            ByteBuf data = (ByteBuf) msg;
+            connection.runInEventLoop(() -> onUpstreamData(data));
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+            connection.runInEventLoop(() -> onUpstreamEof());
+            super.channelInactive(ctx);
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            ctx.close();
+        }
+    }
+}
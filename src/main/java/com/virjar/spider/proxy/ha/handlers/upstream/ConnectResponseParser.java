@@ -0,0 +1,168 @@
+package com.virjar.spider.proxy.ha.handlers.upstream;
+
+import io.netty.buffer.ByteBuf;
+
+/**
+ * CONNECT响应的增量解析，只关心状态码和复用连接重发请求需要的信息：
+ * <ul>
+ *     <li>响应行 HTTP/1.x NNN</li>
+ *     <li>Content-Length、Transfer-Encoding、Connection/Proxy-Connection，用于跳过407的响应体</li>
+ * </ul>
+ * 其他头部只扫描不保存。200响应在头部结束时完成，之后的数据属于隧道；其他响应在跳过响应体之后完成
+ */
+class ConnectResponseParser {
+    static final int NEED_MORE = -1;
+    static final int MALFORMED = -2;
+
+    private static final int MAX_HEADER_BYTES = 16 * 1024;
+    /**
+     * 需要识别的头部都很短，更长的行只保留前面这一部分用于匹配
+     */
+    private static final int MAX_LINE_PREFIX = 128;
+
+    private static final int STATE_STATUS_LINE = 0;
+    private static final int STATE_HEADERS = 1;
+    private static final int STATE_BODY = 2;
+
+    private final byte[] line = new byte[MAX_LINE_PREFIX];
+    private int lineLength;
+    private int headerBytes;
+    private int state;
+    private int statusCode;
+    private long contentLength;
+    private boolean chunked;
+    private boolean connectionClose;
+
+    ConnectResponseParser() {
+        reset();
+    }
+
+    void reset() {
+        lineLength = 0;
+        headerBytes = 0;
+        state = STATE_STATUS_LINE;
+        statusCode = 0;
+        contentLength = 0;
+        chunked = false;
+        connectionClose = false;
+    }
+
+    /**
+     * 消费data中属于这个响应的数据，响应完成之后剩余的数据保留在data中
+     *
+     * @return 响应完成时返回状态码，否则返回 NEED_MORE 或者 MALFORMED
+     */
+    int parse(ByteBuf data) {
+        while (data.isReadable()) {
+            if (state == STATE_BODY) {
+                int skip = (int) Math.min(contentLength, data.readableBytes());
+                data.skipBytes(skip);
+                contentLength -= skip;
+                if (contentLength == 0) {
+                    return statusCode;
+                }
+                continue;
+            }
+            byte b = data.readByte();
+            if (++headerBytes > MAX_HEADER_BYTES) {
+                return MALFORMED;
+            }
+            if (b != '\n') {
+                if (lineLength < MAX_LINE_PREFIX) {
+                    line[lineLength] = b;
+                }
+                lineLength++;
+                continue;
+            }
+            int length = Math.min(lineLength, MAX_LINE_PREFIX);
+            if (lineLength > 0 && lineLength <= MAX_LINE_PREFIX && line[lineLength - 1] == '\r') {
+                length--;
+            }
+            lineLength = 0;
+            if (state == STATE_STATUS_LINE) {
+                if (!parseStatusLine(length)) {
+                    return MALFORMED;
+                }
+                state = STATE_HEADERS;
+                continue;
+            }
+            if (length > 0) {
+                parseHeader(length);
+                continue;
+            }
+            // 空行，头部结束
+            if (statusCode == 200 || contentLength == 0 || chunked) {
+                return statusCode;
+            }
+            state = STATE_BODY;
+        }
+        return NEED_MORE;
+    }
+
+    /**
+     * 407之后是否可以在同一个连接上重发请求
+     */
+    boolean isReusable() {
+        return !chunked && !connectionClose;
+    }
+
+    private boolean parseStatusLine(int length) {
+        // HTTP/1.x NNN
+        if (length < 12 || line[8] != ' ' || !startsWithIgnoreCase(length, "HTTP/1.")) {
+            return false;
+        }
+        int code = 0;
+        for (int i = 9; i < 12; i++) {
+            byte b = line[i];
+            if (b < '0' || b > '9') {
+                return false;
+            }
+            code = code * 10 + (b - '0');
+        }
+        statusCode = code;
+        return true;
+    }
+
+    private void parseHeader(int length) {
+        if (startsWithIgnoreCase(length, "Content-Length:")) {
+            long value = 0;
+            for (int i = "Content-Length:".length(); i < length; i++) {
+                byte b = line[i];
+                if (b >= '0' && b <= '9') {
+                    value = value * 10 + (b - '0');
+                }
+            }
+            contentLength = value;
+        } else if (startsWithIgnoreCase(length, "Transfer-Encoding:")) {
+            chunked = containsIgnoreCase(length, "chunked");
+        } else if (startsWithIgnoreCase(length, "Connection:")
+                || startsWithIgnoreCase(length, "Proxy-Connection:")) {
+            connectionClose = containsIgnoreCase(length, "close");
+        }
+    }
+
+    private boolean startsWithIgnoreCase(int length, String prefix) {
+        return regionMatches(0, length, prefix);
+    }
+
+    private boolean containsIgnoreCase(int length, String word) {
+        for (int i = 0; i + word.length() <= length; i++) {
+            if (regionMatches(i, length, word)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean regionMatches(int offset, int length, String word) {
+        if (offset + word.length() > length) {
+            return false;
+        }
+        for (int i = 0; i < word.length(); i++) {
+            if (Character.toLowerCase((char) line[offset + i]) != Character.toLowerCase(word.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
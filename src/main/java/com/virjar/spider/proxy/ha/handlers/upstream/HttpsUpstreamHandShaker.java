@@ -1,7 +1,12 @@
 package com.virjar.spider.proxy.ha.handlers.upstream;
 
+import com.virjar.spider.proxy.ha.Configs;
+import com.virjar.spider.proxy.ha.core.PreemptiveAuthPolicy;
 import com.virjar.spider.proxy.ha.core.Source;
+import com.virjar.spider.proxy.ha.core.Upstream;
 import com.virjar.spider.proxy.ha.utils.HttpNettyUtils;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelPipeline;
@@ -10,8 +15,14 @@ import io.netty.handler.codec.http.*;
 import io.netty.util.ReferenceCounted;
 import lombok.extern.slf4j.Slf4j;
 
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
 @Slf4j
 public class HttpsUpstreamHandShaker extends UpstreamHandShaker<HttpRequest> {
+    private static final byte[] HEADER_SEPARATOR = ": ".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] CRLF = "\r\n".getBytes(StandardCharsets.US_ASCII);
+
     private boolean hasSendAuthentication = false;
 
     public HttpsUpstreamHandShaker(Channel upstreamChannel, Source source, UpstreamHandSharkCallback upstreamHandSharkCallback, HttpRequest httpRequest) {
@@ -20,6 +31,10 @@ public class HttpsUpstreamHandShaker extends UpstreamHandShaker<HttpRequest> {
 
     @Override
     public void doHandShark() {
+        if (Configs.httpConnectFastPath) {
+            new FastConnectHandShaker().start();
+            return;
+        }
         ChannelPipeline pipeline = upstreamChannel.pipeline();
         pipeline.addFirst(new HttpRequestEncoder());
         pipeline.addFirst(new HttpResponseDecoder());
@@ -47,6 +62,9 @@ public class HttpsUpstreamHandShaker extends UpstreamHandShaker<HttpRequest> {
             pipeline.remove(HttpRequestEncoder.class);
             pipeline.remove(HttpResponseDecoder.class);
             pipeline.remove(ConnectResponseHandler.class);
+            if (source.needAuth()) {
+                source.getPreemptiveAuthPolicy().onAccepted(hasSendAuthentication);
+            }
             upstreamHandSharkCallback.onHandSharkSuccess();
             return;
         }
@@ -56,6 +74,12 @@ public class HttpsUpstreamHandShaker extends UpstreamHandShaker<HttpRequest> {
                 upstreamHandSharkCallback.onHandSharkFailed("upstream password error");
                 return;
             }
+            if (!source.getPreemptiveAuthPolicy().retryAfterChallenge()) {
+                // 上游认可首次携带的鉴权，407说明账号不可用，重发也不会成功
+                source.getPreemptiveAuthPolicy().onChallengeFastFail();
+                upstreamHandSharkCallback.onHandSharkFailed("upstream password error");
+                return;
+            }
 
             // 有部分代理服务器标准实现不合理，首次发送了代理鉴权内容但是他不认，依然返回407
             // 然后java okhttpclient 网络库一旦首次发送过密码，即使407也不会重新发送带鉴权请求，而是直接报告失败
@@ -78,6 +102,131 @@ public class HttpsUpstreamHandShaker extends UpstreamHandShaker<HttpRequest> {
     }
 
 
+    /**
+     * CONNECT握手的快速路径：用户的CONNECT请求按原样逐字节编码，鉴权行使用Source中预先编码好的数据，
+     * 发送的内容和编解码路径一致；响应由MonitorHandler交给ConnectResponseParser解析，上游pipeline不做任何修改
+     */
+    private class FastConnectHandShaker implements Upstream.HandshakeReader {
+        private final ConnectResponseParser parser = new ConnectResponseParser();
+        /**
+         * 是否已经因为407重发过请求
+         */
+        private boolean challenged = false;
+        private boolean finished = false;
+
+        void start() {
+            Upstream.setHandshakeReader(upstreamChannel, this);
+            writeConnect();
+        }
+
+        private void writeConnect() {
+            // 数据源没有配置鉴权时，和编解码路径一样透传用户的鉴权信息
+            byte[] authorizationLine = source.getProxyAuthorizationLine();
+            ByteBuf buf = upstreamChannel.alloc().buffer(256);
+            ByteBufUtil.writeAscii(buf, originRequest.getMethod().name());
+            buf.writeByte(' ');
+            ByteBufUtil.writeAscii(buf, originRequest.getUri());
+            buf.writeByte(' ');
+            ByteBufUtil.writeAscii(buf, originRequest.getProtocolVersion().text());
+            buf.writeBytes(CRLF);
+            for (Map.Entry<String, String> header : originRequest.headers()) {
+                if (authorizationLine != null
+                        && HttpHeaders.Names.PROXY_AUTHORIZATION.equalsIgnoreCase(header.getKey())) {
+                    continue;
+                }
+                ByteBufUtil.writeAscii(buf, header.getKey());
+                buf.writeBytes(HEADER_SEPARATOR);
+                ByteBufUtil.writeAscii(buf, header.getValue());
+                buf.writeBytes(CRLF);
+            }
+            if (authorizationLine != null) {
+                buf.writeBytes(authorizationLine);
+            }
+            buf.writeBytes(CRLF);
+            upstreamChannel.writeAndFlush(buf).addListener(future -> {
+                if (!future.isSuccess()) {
+                    fail(future.cause().getMessage());
+                }
+            });
+        }
+
+        @Override
+        public void onRead(ByteBuf data) {
+            try {
+                if (finished) {
+                    return;
+                }
+                int code = parser.parse(data);
+                if (code == ConnectResponseParser.NEED_MORE) {
+                    return;
+                }
+                if (code == ConnectResponseParser.MALFORMED) {
+                    fail("malformed connect response");
+                    return;
+                }
+                if (code == HttpResponseStatus.OK.code()) {
+                    // 和编解码路径一样，上游在200之后提前发送的数据不会转发
+                    finish();
+                    if (source.needAuth()) {
+                        source.getPreemptiveAuthPolicy().onAccepted(challenged);
+                    }
+                    upstreamHandSharkCallback.onHandSharkSuccess();
+                    return;
+                }
+                if (code == HttpResponseStatus.PROXY_AUTHENTICATION_REQUIRED.code()) {
+                    onChallenge();
+                    return;
+                }
+                fail("connect failed:" + code);
+            } finally {
+                data.release();
+            }
+        }
+
+        private void onChallenge() {
+            if (challenged || !source.needAuth()) {
+                log.warn("upstream password error");
+                fail("upstream password error");
+                return;
+            }
+            PreemptiveAuthPolicy preemptiveAuthPolicy = source.getPreemptiveAuthPolicy();
+            if (!preemptiveAuthPolicy.retryAfterChallenge()) {
+                // 上游认可首次携带的鉴权，407说明账号不可用，重发也不会成功
+                preemptiveAuthPolicy.onChallengeFastFail();
+                fail("upstream password error");
+                return;
+            }
+            if (!parser.isReusable()) {
+                fail("upstream close connection after 407");
+                return;
+            }
+            // 有部分代理服务器不认首次发送的鉴权，依然返回407，这里再发送一次
+            challenged = true;
+            parser.reset();
+            writeConnect();
+        }
+
+        @Override
+        public void onError(String message) {
+            if (!finished) {
+                fail(message);
+            }
+        }
+
+        private void fail(String message) {
+            if (finished) {
+                return;
+            }
+            finish();
+            upstreamHandSharkCallback.onHandSharkFailed(message);
+        }
+
+        private void finish() {
+            finished = true;
+            Upstream.setHandshakeReader(upstreamChannel, null);
+        }
+    }
+
     private class ConnectResponseHandler extends SimpleChannelInboundHandler<HttpResponse> {
 
         @Override
@@ -1,15 +1,30 @@
 package com.virjar.spider.proxy.ha.handlers.upstream;
 
 import com.google.common.collect.Lists;
+import com.virjar.spider.proxy.ha.Configs;
 import com.virjar.spider.proxy.ha.core.Source;
+import com.virjar.spider.proxy.ha.core.Upstream;
+import com.virjar.spider.proxy.ha.utils.WheelTimer;
+import io.netty.buffer.ByteBuf;
 import io.netty.channel.*;
 import io.netty.handler.codec.socks.*;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.Timeout;
 import lombok.extern.slf4j.Slf4j;
 
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 @Slf4j
 public class Socks5UpstreamHandShaker extends UpstreamHandShaker<SocksCmdRequest> {
+    /**
+     * 乐观模式下，等待greeting和鉴权响应的超时时间。部分服务器会丢弃提前到达的报文，此时会一直等待
+     */
+    private static final long PIPELINE_NEGOTIATE_TIMEOUT_MILLIS = 5000;
+
+    private boolean pipelineRejected = false;
+
     public Socks5UpstreamHandShaker(Channel upstreamChannel, Source source,
                                     UpstreamHandSharkCallback upstreamHandSharkCallback,
                                     SocksCmdRequest socksCmdRequest) {
@@ -102,8 +117,36 @@ public class Socks5UpstreamHandShaker extends UpstreamHandShaker<SocksCmdRequest
                 });
     }
 
+    /**
+     * 预协商：只完成greeting和鉴权，用于socks5缓存连接。完成之后借用方只需要发送CONNECT
+     */
+    public static void preNegotiate(Channel upstreamChannel, Source source,
+                                    UpstreamHandSharkCallback upstreamHandSharkCallback) {
+        new Socks5UpstreamHandShaker(upstreamChannel, source, upstreamHandSharkCallback, null).doNegotiate();
+    }
+
     @Override
     public void doHandShark() {
+        if (Upstream.isSocks5Negotiated(upstreamChannel)) {
+            doConnectOnly();
+            return;
+        }
+        Upstream upstream = Upstream.owner(upstreamChannel);
+        if (Configs.socks5PipelineHandshake && upstream != null && upstream.isSocks5PipelineSupported()) {
+            doPipelinedHandShark(upstream);
+            return;
+        }
+        doStepwiseHandShark();
+    }
+
+    /**
+     * 乐观模式被上游拒绝，调用方可以重新借用连接走逐步握手
+     */
+    public boolean isPipelineRejected() {
+        return pipelineRejected;
+    }
+
+    private void doStepwiseHandShark() {
         upstreamChannel.pipeline().addLast(new SocksMessageEncoder());
         List<SocksAuthScheme> socksAuthSchemes = Lists.newLinkedList();
         socksAuthSchemes.add(SocksAuthScheme.NO_AUTH);
@@ -123,6 +166,75 @@ public class Socks5UpstreamHandShaker extends UpstreamHandShaker<SocksCmdRequest
                 });
     }
 
+    /**
+     * 乐观模式：greeting、密码鉴权、CONNECT三个报文一次发送，然后按顺序校验三个响应，节省两个RTT。
+     * <br>
+     * greeting只声明我们真正要使用的鉴权方式，否则服务器选择了其他方式之后，后续报文会被错误解析
+     */
+    private void doPipelinedHandShark(Upstream upstream) {
+        boolean needAuth = source.needAuth();
+        ByteBuf request = upstreamChannel.alloc().buffer();
+        new SocksInitRequest(Collections.singletonList(
+                needAuth ? SocksAuthScheme.AUTH_PASSWORD : SocksAuthScheme.NO_AUTH)
+        ).encodeAsByteBuf(request);
+        if (needAuth) {
+            new SocksAuthRequest(source.getUpstreamAuthUser(), source.getUpstreamAuthPassword())
+                    .encodeAsByteBuf(request);
+        }
+        originRequest.encodeAsByteBuf(request);
+
+        upstreamChannel.pipeline().addLast(new Socks5ReplyHandler(upstream, needAuth, true, false));
+        writeRequest(request);
+    }
+
+    /**
+     * 连接已经预协商完成，只需要发送CONNECT
+     */
+    private void doConnectOnly() {
+        ByteBuf request = upstreamChannel.alloc().buffer();
+        originRequest.encodeAsByteBuf(request);
+        Socks5ReplyHandler replyHandler = new Socks5ReplyHandler(Upstream.owner(upstreamChannel),
+                source.needAuth(), false, false);
+        replyHandler.state = Socks5ReplyHandler.STATE_CMD;
+        upstreamChannel.pipeline().addLast(replyHandler);
+        writeRequest(request);
+    }
+
+    private void doNegotiate() {
+        Upstream upstream = Upstream.owner(upstreamChannel);
+        boolean needAuth = source.needAuth();
+        boolean pipelined = Configs.socks5PipelineHandshake && upstream != null && upstream.isSocks5PipelineSupported();
+        ByteBuf request = upstreamChannel.alloc().buffer();
+        if (pipelined) {
+            new SocksInitRequest(Collections.singletonList(
+                    needAuth ? SocksAuthScheme.AUTH_PASSWORD : SocksAuthScheme.NO_AUTH)
+            ).encodeAsByteBuf(request);
+            if (needAuth) {
+                new SocksAuthRequest(source.getUpstreamAuthUser(), source.getUpstreamAuthPassword())
+                        .encodeAsByteBuf(request);
+            }
+        } else {
+            // 逐步协商，收到greeting响应之后再发送鉴权
+            List<SocksAuthScheme> socksAuthSchemes = Lists.newLinkedList();
+            socksAuthSchemes.add(SocksAuthScheme.NO_AUTH);
+            if (needAuth) {
+                socksAuthSchemes.add(SocksAuthScheme.AUTH_PASSWORD);
+            }
+            new SocksInitRequest(socksAuthSchemes).encodeAsByteBuf(request);
+        }
+        upstreamChannel.pipeline().addLast(new Socks5ReplyHandler(upstream, needAuth, pipelined, true));
+        writeRequest(request);
+    }
+
+    private void writeRequest(ByteBuf request) {
+        upstreamChannel.writeAndFlush(request)
+                .addListener((ChannelFutureListener) channelFuture -> {
+                    if (!channelFuture.isSuccess()) {
+                        upstreamHandSharkCallback.onHandSharkFailed(channelFuture.cause().getMessage());
+                    }
+                });
+    }
+
     private class SocksUpstreamHandSharkHandler extends SimpleChannelInboundHandler<SocksResponse> {
 
         @Override
@@ -137,5 +249,244 @@ public class Socks5UpstreamHandShaker extends UpstreamHandShaker<SocksCmdRequest
         }
     }
 
+    /**
+     * 按顺序解析socks5的三个响应：
+     * <pre>
+     * METHOD: VER METHOD
+     * AUTH:   VER STATUS
+     * CMD:    VER REP RSV ATYP BND.ADDR BND.PORT
+     * </pre>
+     * 用于乐观握手、缓存连接的预协商（只到鉴权完成）、以及预协商之后的CONNECT
+     */
+    private class Socks5ReplyHandler extends ChannelInboundHandlerAdapter {
+        private static final int STATE_METHOD = 0;
+        private static final int STATE_AUTH = 1;
+        private static final int STATE_CMD = 2;
+        private static final int STATE_DONE = 3;
+
+        private final Upstream upstream;
+        private final boolean needAuth;
+        /**
+         * 请求报文是否一次性发送，只有这种模式下的协议异常才认为是上游不支持乐观握手
+         */
+        private final boolean pipelined;
+        /**
+         * 只协商到鉴权完成，不处理CONNECT
+         */
+        private final boolean negotiateOnly;
+        private int state = STATE_METHOD;
+        private ByteBuf cumulation;
+        private Timeout negotiateTimeout;
+
+        Socks5ReplyHandler(Upstream upstream, boolean needAuth, boolean pipelined, boolean negotiateOnly) {
+            this.upstream = upstream;
+            this.needAuth = needAuth;
+            this.pipelined = pipelined;
+            this.negotiateOnly = negotiateOnly;
+        }
+
+        @Override
+        public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
+            negotiateTimeout = WheelTimer.newTimeout(() -> ctx.executor().execute(() -> {
+                if (state == STATE_METHOD || state == STATE_AUTH) {
+                    onMisbehave(ctx, "negotiate timeout");
+                }
+            }), PIPELINE_NEGOTIATE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            super.handlerAdded(ctx);
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+            if (!(msg instanceof ByteBuf) || state == STATE_DONE) {
+                ReferenceCountUtil.release(msg);
+                return;
+            }
+            ByteBuf in = (ByteBuf) msg;
+            if (cumulation == null) {
+                cumulation = in;
+            } else {
+                ByteBuf merged = ctx.alloc().buffer(cumulation.readableBytes() + in.readableBytes());
+                merged.writeBytes(cumulation).writeBytes(in);
+                cumulation.release();
+                in.release();
+                cumulation = merged;
+            }
+            parse(ctx);
+        }
+
+        private void parse(ChannelHandlerContext ctx) {
+            while (state != STATE_DONE) {
+                int readable = cumulation.readableBytes();
+                int index = cumulation.readerIndex();
+                switch (state) {
+                    case STATE_METHOD:
+                        if (readable < 2) {
+                            return;
+                        }
+                        byte method = cumulation.getByte(index + 1);
+                        byte expected = needAuth ? SocksAuthScheme.AUTH_PASSWORD.byteValue() : SocksAuthScheme.NO_AUTH.byteValue();
+                        if (cumulation.getByte(index) != SocksProtocolVersion.SOCKS5.byteValue()
+                                || (method != expected && (pipelined || method != SocksAuthScheme.NO_AUTH.byteValue()))) {
+                            onMisbehave(ctx, "unexpected method reply:" + method);
+                            return;
+                        }
+                        cumulation.skipBytes(2);
+                        if (method == SocksAuthScheme.NO_AUTH.byteValue()) {
+                            // 服务器不要密码
+                            state = STATE_CMD;
+                        } else {
+                            state = STATE_AUTH;
+                            if (!pipelined) {
+                                writeAuthRequest(ctx);
+                            }
+                        }
+                        if (state == STATE_CMD && negotiateOnly) {
+                            finishWithSuccess(ctx);
+                            return;
+                        }
+                        break;
+                    case STATE_AUTH:
+                        if (readable < 2) {
+                            return;
+                        }
+                        if (cumulation.getByte(index) != SocksSubnegotiationVersion.AUTH_PASSWORD.byteValue()) {
+                            onMisbehave(ctx, "unexpected auth reply version");
+                            return;
+                        }
+                        if (cumulation.getByte(index + 1) != SocksAuthStatus.SUCCESS.byteValue()) {
+                            finish(ctx);
+                            upstreamHandSharkCallback.onHandSharkFailed("upstream auth failed");
+                            return;
+                        }
+                        cumulation.skipBytes(2);
+                        state = STATE_CMD;
+                        if (negotiateOnly) {
+                            finishWithSuccess(ctx);
+                            return;
+                        }
+                        break;
+                    case STATE_CMD:
+                        if (readable < 5) {
+                            return;
+                        }
+                        int length = cmdReplyLength(index);
+                        if (cumulation.getByte(index) != SocksProtocolVersion.SOCKS5.byteValue() || length < 0) {
+                            onMisbehave(ctx, "unexpected cmd reply");
+                            return;
+                        }
+                        if (readable < length) {
+                            return;
+                        }
+                        SocksCmdStatus cmdStatus = SocksCmdStatus.valueOf(cumulation.getByte(index + 1));
+                        cumulation.skipBytes(length);
+                        if (cmdStatus != SocksCmdStatus.SUCCESS) {
+                            finish(ctx);
+                            upstreamHandSharkCallback.onHandSharkFailed("connect failed:" + cmdStatus);
+                            return;
+                        }
+                        finishWithSuccess(ctx);
+                        return;
+                    default:
+                        return;
+                }
+            }
+        }
+
+        /**
+         * @return CMD响应的总长度，无法识别的地址类型返回-1
+         */
+        private int cmdReplyLength(int index) {
+            switch (SocksAddressType.valueOf(cumulation.getByte(index + 3))) {
+                case IPv4:
+                    return 4 + 4 + 2;
+                case DOMAIN:
+                    return 4 + 1 + cumulation.getUnsignedByte(index + 4) + 2;
+                case IPv6:
+                    return 4 + 16 + 2;
+                default:
+                    return -1;
+            }
+        }
+
+        private void writeAuthRequest(ChannelHandlerContext ctx) {
+            ByteBuf request = ctx.alloc().buffer();
+            new SocksAuthRequest(source.getUpstreamAuthUser(), source.getUpstreamAuthPassword())
+                    .encodeAsByteBuf(request);
+            writeRequest(request);
+        }
 
+        private void finishWithSuccess(ChannelHandlerContext ctx) {
+            finish(ctx);
+            upstreamHandSharkCallback.onHandSharkSuccess();
+        }
+
+        /**
+         * 握手结束，移除当前handler，剩余的数据（服务器先发的数据）传递给后续的handler
+         */
+        private void finish(ChannelHandlerContext ctx) {
+            state = STATE_DONE;
+            if (negotiateTimeout != null) {
+                negotiateTimeout.cancel();
+            }
+            ByteBuf remain = cumulation;
+            cumulation = null;
+            ctx.pipeline().remove(this);
+            if (remain != null) {
+                if (remain.isReadable()) {
+                    ctx.fireChannelRead(remain);
+                } else {
+                    remain.release();
+                }
+            }
+        }
+
+        private void onMisbehave(ChannelHandlerContext ctx, String message) {
+            if (state == STATE_DONE) {
+                return;
+            }
+            if (!pipelined || upstream == null) {
+                finish(ctx);
+                ctx.channel().close();
+                upstreamHandSharkCallback.onHandSharkFailed(message);
+                return;
+            }
+            log.warn("upstream:{} does not support pipelined socks5 handshake: {}, fallback to stepwise handshake",
+                    upstream.resourceKey(), message);
+            upstream.markSocks5PipelineUnsupported();
+            pipelineRejected = true;
+            finish(ctx);
+            ctx.channel().close();
+            upstreamHandSharkCallback.onHandSharkFailed(message);
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+            if (state == STATE_METHOD || state == STATE_AUTH) {
+                // 还没有完成协商就被关闭，大概率是服务器不接受提前发送的报文
+                onMisbehave(ctx, "closed before negotiate complete");
+            } else if (state == STATE_CMD) {
+                finish(ctx);
+                upstreamHandSharkCallback.onHandSharkFailed("upstream closed before connect reply");
+            }
+            super.channelInactive(ctx);
+        }
+
+        @Override
+        public void handlerRemoved(ChannelHandlerContext ctx) throws Exception {
+            if (cumulation != null) {
+                cumulation.release();
+                cumulation = null;
+            }
+            super.handlerRemoved(ctx);
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+            if (state != STATE_DONE) {
+                finish(ctx);
+                upstreamHandSharkCallback.onHandSharkFailed(cause.getMessage());
+            }
+            ctx.channel().close();
+        }
+    }
 }
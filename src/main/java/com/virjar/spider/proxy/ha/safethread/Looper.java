@@ -1,31 +1,82 @@
 package com.virjar.spider.proxy.ha.safethread;
 
 
+import com.virjar.spider.proxy.ha.Configs;
+import io.netty.util.internal.PlatformDependent;
+import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
 
-import java.util.concurrent.*;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * 单线程事件循环模型，用来避免一致性问题
+ * <br>
+ * 任务队列是无锁的多生产者单消费者队列，投递任务不加锁，只有looper线程休眠的时候才需要唤醒。
+ * looper线程每次批量取出任务执行，延时任务使用looper自己的小顶堆，不依赖外部的调度线程。
+ * <br>
+ * 同时统计队列深度、任务排队时间、执行时间以及慢任务，用于判断隧道建立的延时来自网络还是来自looper积压
  */
 @Slf4j
 public class Looper {
-    private final BlockingQueue<Runnable> taskQueue = new LinkedBlockingQueue<>();
+    /**
+     * 每一轮最多执行的任务数量，之后检查一次延时任务
+     */
+    private static final int MAX_BATCH_SIZE = 256;
+    /**
+     * 积压告警的最小间隔
+     */
+    private static final long BACKLOG_WARN_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(10);
 
-    private final LoopThread loopThread;
+    private static final List<Looper> allLoopers = new CopyOnWriteArrayList<>();
+
+    @Getter
+    private final String name;
+    private final Queue<Task> taskQueue = PlatformDependent.newMpscQueue();
+    private final AtomicInteger queueDepth = new AtomicInteger(0);
+    private final AtomicBoolean sleeping = new AtomicBoolean(false);
     /**
-     * 让looper拥有延时任务的能力
+     * 延时任务，只有looper线程访问
      */
-    private static final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1);
+    private final PriorityQueue<DelayTask> delayTasks = new PriorityQueue<>();
+    private long delayTaskSequence = 0;
+
+    private final LoopThread loopThread;
+
+    // 以下统计只有looper线程写入，其他线程只读
+    private volatile long taskCount = 0;
+    private volatile long totalWaitNanos = 0;
+    private volatile long maxWaitNanos = 0;
+    private volatile long totalRunNanos = 0;
+    private volatile long maxRunNanos = 0;
+    private volatile long slowTaskCount = 0;
+    private long lastBacklogWarnNanos = 0;
 
     public Looper(String looperName) {
+        this.name = looperName;
         loopThread = new LoopThread(looperName);
         loopThread.setDaemon(true);
         loopThread.start();
+        allLoopers.add(this);
+    }
+
+    public static List<Looper> allLoopers() {
+        return Collections.unmodifiableList(allLoopers);
     }
 
     public void post(Runnable runnable) {
-        taskQueue.add(runnable);
+        taskQueue.offer(new Task(runnable, System.nanoTime()));
+        queueDepth.incrementAndGet();
+        if (sleeping.get() && sleeping.compareAndSet(true, false)) {
+            LockSupport.unpark(loopThread);
+        }
     }
 
     public void postDelay(Runnable runnable, long delay) {
@@ -33,7 +84,16 @@ public class Looper {
             post(runnable);
             return;
         }
-        scheduler.schedule(() -> post(runnable), delay, TimeUnit.MILLISECONDS);
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay);
+        if (inLooper()) {
+            addDelayTask(runnable, deadline);
+        } else {
+            post(() -> addDelayTask(runnable, deadline));
+        }
+    }
+
+    private void addDelayTask(Runnable runnable, long deadline) {
+        delayTasks.add(new DelayTask(runnable, deadline, delayTaskSequence++));
     }
 
     public FixRateScheduleHandle scheduleWithRate(Runnable runnable, long rate) {
@@ -81,6 +141,74 @@ public class Looper {
         }
     }
 
+    /**
+     * 当前排队中的任务数量
+     */
+    public int getQueueDepth() {
+        return queueDepth.get();
+    }
+
+    public long getTaskCount() {
+        return taskCount;
+    }
+
+    /**
+     * 所有任务的排队时间总和，除以taskCount得到平均排队时间
+     */
+    public long getTotalWaitNanos() {
+        return totalWaitNanos;
+    }
+
+    public long getMaxWaitNanos() {
+        return maxWaitNanos;
+    }
+
+    public long getTotalRunNanos() {
+        return totalRunNanos;
+    }
+
+    public long getMaxRunNanos() {
+        return maxRunNanos;
+    }
+
+    public long getSlowTaskCount() {
+        return slowTaskCount;
+    }
+
+    private static class Task {
+        private final Runnable runnable;
+        private final long enqueueNanos;
+
+        Task(Runnable runnable, long enqueueNanos) {
+            this.runnable = runnable;
+            this.enqueueNanos = enqueueNanos;
+        }
+    }
+
+    private static class DelayTask implements Comparable<DelayTask> {
+        private final Runnable runnable;
+        private final long deadline;
+        /**
+         * 到期时间相同的任务按照添加顺序执行
+         */
+        private final long sequence;
+
+        DelayTask(Runnable runnable, long deadline, long sequence) {
+            this.runnable = runnable;
+            this.deadline = deadline;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(DelayTask o) {
+            long diff = deadline - o.deadline;
+            if (diff != 0) {
+                return diff < 0 ? -1 : 1;
+            }
+            return Long.compare(sequence, o.sequence);
+        }
+    }
+
     private class LoopThread extends Thread {
         LoopThread(String name) {
             super(name);
@@ -89,13 +217,81 @@ public class Looper {
         @Override
         public void run() {
             while (!Thread.currentThread().isInterrupted()) {
-                try {
-                    taskQueue.take().run();
-                } catch (InterruptedException interruptedException) {
-                    return;
-                } catch (Throwable throwable) {
-                    log.error("group event loop error", throwable);
+                runDelayTasks();
+                if (drainTasks() > 0) {
+                    continue;
+                }
+                sleeping.set(true);
+                // 设置休眠标记之后再检查一次，避免和post之间的竞争导致任务一直得不到执行
+                if (taskQueue.isEmpty()) {
+                    DelayTask next = delayTasks.peek();
+                    if (next == null) {
+                        LockSupport.park(this);
+                    } else {
+                        LockSupport.parkNanos(this, next.deadline - System.nanoTime());
+                    }
                 }
+                sleeping.set(false);
+            }
+        }
+
+        private int drainTasks() {
+            int count = 0;
+            Task task;
+            while (count < MAX_BATCH_SIZE && (task = taskQueue.poll()) != null) {
+                queueDepth.decrementAndGet();
+                runTask(task.runnable, task.enqueueNanos);
+                count++;
+            }
+            return count;
+        }
+
+        private void runDelayTasks() {
+            if (delayTasks.isEmpty()) {
+                return;
+            }
+            long now = System.nanoTime();
+            DelayTask delayTask;
+            while ((delayTask = delayTasks.peek()) != null && delayTask.deadline - now <= 0) {
+                delayTasks.poll();
+                runTask(delayTask.runnable, delayTask.deadline);
+            }
+        }
+
+        /**
+         * @param readyNanos 任务可以开始执行的时间，普通任务是投递时间，延时任务是到期时间
+         */
+        private void runTask(Runnable runnable, long readyNanos) {
+            long startNanos = System.nanoTime();
+            try {
+                runnable.run();
+            } catch (Throwable throwable) {
+                log.error("group event loop error", throwable);
+            }
+            long endNanos = System.nanoTime();
+            record(runnable, startNanos - readyNanos, endNanos - startNanos, endNanos);
+        }
+
+        private void record(Runnable runnable, long waitNanos, long runNanos, long now) {
+            taskCount++;
+            totalWaitNanos += waitNanos;
+            totalRunNanos += runNanos;
+            if (waitNanos > maxWaitNanos) {
+                maxWaitNanos = waitNanos;
+            }
+            if (runNanos > maxRunNanos) {
+                maxRunNanos = runNanos;
+            }
+            long slowThresholdNanos = TimeUnit.MILLISECONDS.toNanos(Configs.looperSlowTaskMillis);
+            if (runNanos > slowThresholdNanos) {
+                slowTaskCount++;
+                log.warn("slow task in looper:{} cost:{}ms task:{}", name,
+                        TimeUnit.NANOSECONDS.toMillis(runNanos), runnable.getClass().getName());
+            }
+            if (waitNanos > slowThresholdNanos && now - lastBacklogWarnNanos > BACKLOG_WARN_INTERVAL_NANOS) {
+                lastBacklogWarnNanos = now;
+                log.warn("looper:{} backlog, task wait:{}ms queue depth:{}", name,
+                        TimeUnit.NANOSECONDS.toMillis(waitNanos), queueDepth.get());
             }
         }
     }
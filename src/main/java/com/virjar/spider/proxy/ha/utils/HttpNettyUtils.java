@@ -108,6 +108,56 @@ public class HttpNettyUtils {
         return respondWithShortCircuitResponse(httpRequestChannel, response);
     }
 
+    /**
+     * 要求客户端提供代理鉴权信息（会话模式下用户名为会话标识），响应之后关闭连接
+     */
+    public static boolean writeProxyAuthenticationRequired(Channel httpRequestChannel, HttpRequest httpRequest) {
+        FullHttpResponse response = createFullHttpResponse(HttpVersion.HTTP_1_1,
+                HttpResponseStatus.PROXY_AUTHENTICATION_REQUIRED, "need proxy username as session id");
+        response.headers().set(HttpHeaders.Names.PROXY_AUTHENTICATE, "Basic realm=\"session\"");
+        HttpHeaders.setKeepAlive(response, false);
+        if (isHEAD(httpRequest)) {
+            response.content().clear();
+        }
+        return respondWithShortCircuitResponse(httpRequestChannel, response);
+    }
+
+    /**
+     * 解析Proxy-Authorization中Basic鉴权的用户名，没有或者格式不正确时返回null
+     */
+    public static String proxyAuthorizationUser(HttpRequest httpRequest) {
+        String authorization = httpRequest.headers().get(HttpHeaders.Names.PROXY_AUTHORIZATION);
+        if (authorization == null || !authorization.regionMatches(true, 0, "Basic ", 0, 6)) {
+            return null;
+        }
+        String credentials;
+        try {
+            credentials = new String(BaseEncoding.base64().decode(authorization.substring(6).trim()),
+                    StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        int index = credentials.indexOf(':');
+        return index < 0 ? credentials : credentials.substring(0, index);
+    }
+
+    /**
+     * 直连到映射端口的管理请求的响应，按照请求决定是否保持连接
+     */
+    public static boolean writeApiResponse(Channel httpRequestChannel, HttpRequest httpRequest,
+                                           HttpResponseStatus status, String contentType, String body) {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        FullHttpResponse response = createFullHttpResponse(HttpVersion.HTTP_1_1, status,
+                contentType, Unpooled.wrappedBuffer(bytes), bytes.length);
+        HttpHeaders.setKeepAlive(response, HttpHeaders.isKeepAlive(httpRequest));
+
+        if (isHEAD(httpRequest)) {
+            response.content().clear();
+        }
+
+        return respondWithShortCircuitResponse(httpRequestChannel, response);
+    }
+
     public static boolean isHEAD(HttpRequest httpRequest) {
         return HttpMethod.HEAD.equals(httpRequest.getMethod());
     }
@@ -176,8 +226,7 @@ public class HttpNettyUtils {
         if (!source.needAuth()) {
             return;
         }
-        String authorizationContent = "Basic " + BaseEncoding.base64().encode((source.getUpstreamAuthUser() + ":" + source.getUpstreamAuthPassword()).getBytes(StandardCharsets.UTF_8));
-        httpRequest.headers().set(HttpHeaders.Names.PROXY_AUTHORIZATION, authorizationContent);
+        httpRequest.headers().set(HttpHeaders.Names.PROXY_AUTHORIZATION, source.getProxyAuthorization());
     }
 
     public static HttpRequest copyHttpRequest(HttpRequest original) {
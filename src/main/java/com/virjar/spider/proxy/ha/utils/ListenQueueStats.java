@@ -0,0 +1,94 @@
+package com.virjar.spider.proxy.ha.utils;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 从linux的/proc读取监听socket的accept队列状态，其他系统上没有这些文件，返回空结果
+ * <br>
+ * ListenOverflows/ListenDrops是整个网络命名空间的累计值，内核没有按端口统计；
+ * 端口维度只能拿到当前accept队列中等待的连接数量（/proc/net/tcp中LISTEN状态的rx_queue），同一个端口多次绑定时累加
+ */
+@Slf4j
+public class ListenQueueStats {
+    private static final String TCP_LISTEN_STATE = "0A";
+
+    /**
+     * @return TcpExt中的ListenOverflows和ListenDrops，读取失败时为空
+     */
+    public static Map<String, Long> listenOverflowCounters() {
+        Map<String, Long> ret = new HashMap<>();
+        File file = new File("/proc/net/netstat");
+        if (!file.exists()) {
+            return ret;
+        }
+        try (BufferedReader reader = open(file)) {
+            String names;
+            while ((names = reader.readLine()) != null) {
+                String values = reader.readLine();
+                if (values == null) {
+                    break;
+                }
+                if (!names.startsWith("TcpExt:")) {
+                    continue;
+                }
+                String[] nameParts = names.split("\\s+");
+                String[] valueParts = values.split("\\s+");
+                for (int i = 1; i < nameParts.length && i < valueParts.length; i++) {
+                    if ("ListenOverflows".equals(nameParts[i]) || "ListenDrops".equals(nameParts[i])) {
+                        ret.put(nameParts[i], Long.parseLong(valueParts[i]));
+                    }
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            log.warn("read {} failed", file, e);
+        }
+        return ret;
+    }
+
+    /**
+     * @return 监听端口 -> accept队列中等待的连接数量
+     */
+    public static Map<Integer, Long> acceptQueueDepth() {
+        Map<Integer, Long> ret = new HashMap<>();
+        readListenSockets(new File("/proc/net/tcp"), ret);
+        readListenSockets(new File("/proc/net/tcp6"), ret);
+        return ret;
+    }
+
+    private static void readListenSockets(File file, Map<Integer, Long> ret) {
+        if (!file.exists()) {
+            return;
+        }
+        try (BufferedReader reader = open(file)) {
+            // 第一行是表头
+            String line = reader.readLine();
+            while ((line = reader.readLine()) != null) {
+                // sl local_address rem_address st tx_queue:rx_queue ...
+                String[] parts = line.trim().split("\\s+");
+                if (parts.length < 5 || !TCP_LISTEN_STATE.equals(parts[3])) {
+                    continue;
+                }
+                String localAddress = parts[1];
+                int port = Integer.parseInt(localAddress.substring(localAddress.lastIndexOf(':') + 1), 16);
+                String queue = parts[4];
+                long rxQueue = Long.parseLong(queue.substring(queue.indexOf(':') + 1), 16);
+                ret.merge(port, rxQueue, Long::sum);
+            }
+        } catch (IOException | RuntimeException e) {
+            log.warn("read {} failed", file, e);
+        }
+    }
+
+    private static BufferedReader open(File file) throws IOException {
+        return new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.US_ASCII));
+    }
+}
@@ -0,0 +1,129 @@
+package com.virjar.spider.proxy.ha.utils;
+
+import com.virjar.spider.proxy.ha.Configs;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.ServerChannel;
+import io.netty.channel.epoll.AbstractEpollStreamChannel;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollMode;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+
+/**
+ * 屏蔽nio和epoll两种传输实现的差异，epoll只在linux并且native库可以加载时启用，否则降级到nio
+ */
+@Slf4j
+public class NettyTransport {
+    private static volatile Boolean epoll;
+
+    public static boolean isEpoll() {
+        if (epoll != null) {
+            return epoll;
+        }
+        synchronized (NettyTransport.class) {
+            if (epoll != null) {
+                return epoll;
+            }
+            boolean useEpoll = false;
+            if ("epoll".equalsIgnoreCase(Configs.transport)) {
+                if (Epoll.isAvailable()) {
+                    useEpoll = true;
+                    log.info("use native epoll transport, splice: {}", Configs.epollSplice);
+                    if (Configs.epollSplice && !Configs.upstreamEventLoopAffinity) {
+                        // splice要求两端在同一个eventLoop上，不开启亲和时几乎所有隧道都会退回到用户态转发
+                        log.warn("epoll_splice requires upstream_event_loop_affinity, enable it");
+                        Configs.upstreamEventLoopAffinity = true;
+                    }
+                } else {
+                    log.warn("epoll transport not available, fallback to nio", Epoll.unavailabilityCause());
+                }
+            }
+            epoll = useEpoll;
+            return useEpoll;
+        }
+    }
+
+    private static boolean spliceEnable() {
+        return isEpoll() && Configs.epollSplice;
+    }
+
+    public static EventLoopGroup newEventLoopGroup(String name) {
+        if (isEpoll()) {
+            return new EpollEventLoopGroup(0,
+                    new DefaultThreadFactory(name + DefaultThreadFactory.toPoolName(EpollEventLoopGroup.class)));
+        }
+        return new NioEventLoopGroup(0,
+                new DefaultThreadFactory(name + DefaultThreadFactory.toPoolName(NioEventLoopGroup.class)));
+    }
+
+    public static Class<? extends ServerChannel> serverChannelClass() {
+        return isEpoll() ? EpollServerSocketChannel.class : NioServerSocketChannel.class;
+    }
+
+    public static Class<? extends Channel> socketChannelClass() {
+        return isEpoll() ? EpollSocketChannel.class : NioSocketChannel.class;
+    }
+
+    public static void configServerBootstrap(ServerBootstrap serverBootstrap) {
+        serverBootstrap.channel(serverChannelClass());
+        if (Configs.acceptBacklog > 0) {
+            serverBootstrap.option(ChannelOption.SO_BACKLOG, Configs.acceptBacklog);
+        }
+        if (serverBindCount() > 1) {
+            serverBootstrap.option(EpollChannelOption.SO_REUSEPORT, true);
+        }
+        if (spliceEnable()) {
+            // splice要求channel工作在水平触发模式，并且只能在channel注册之前设置
+            serverBootstrap.childOption(EpollChannelOption.EPOLL_MODE, EpollMode.LEVEL_TRIGGERED);
+        }
+    }
+
+    /**
+     * 每个监听端口绑定的次数，只有epoll支持SO_REUSEPORT
+     */
+    public static int serverBindCount() {
+        return isEpoll() ? Math.max(1, Configs.reusePortBinds) : 1;
+    }
+
+    /**
+     * 开启SO_REUSEPORT之后，同一个uid下其他同样开启SO_REUSEPORT的监听socket（包括本进程的其他端口映射和其他进程）
+     * 也可以绑定成功，不再有绑定失败的信号。所以先用一个不带SO_REUSEPORT的socket试探绑定，端口被占用时抛出异常
+     */
+    public static void probeExclusiveBind(int port) throws IOException {
+        try (ServerSocket serverSocket = new ServerSocket()) {
+            serverSocket.bind(new InetSocketAddress(port));
+        }
+    }
+
+    public static void configBootstrap(Bootstrap bootstrap) {
+        bootstrap.channel(socketChannelClass());
+        if (spliceEnable()) {
+            bootstrap.option(EpollChannelOption.EPOLL_MODE, EpollMode.LEVEL_TRIGGERED);
+        }
+    }
+
+    /**
+     * 两个channel之间是否可以使用splice转发，netty要求两个channel在同一个eventLoop上
+     */
+    public static boolean canSplice(Channel from, Channel to) {
+        return spliceEnable()
+                && from instanceof AbstractEpollStreamChannel
+                && to instanceof AbstractEpollStreamChannel
+                && from.eventLoop() == to.eventLoop();
+    }
+}
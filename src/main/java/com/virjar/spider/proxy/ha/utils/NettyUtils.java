@@ -3,6 +3,7 @@ package com.virjar.spider.proxy.ha.utils;
 import com.virjar.spider.proxy.ha.Constants;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.Channel;
+import io.netty.channel.ChannelConfig;
 import io.netty.channel.ChannelFutureListener;
 
 import java.util.Collection;
@@ -29,6 +30,18 @@ public class NettyUtils {
         boy.attr(Constants.NEXT_CHANNEL).set(girl);
     }
 
+    public static void setWriteBufferWaterMark(Channel channel, int low, int high) {
+        ChannelConfig config = channel.config();
+        // netty在设置水位时会校验 low <= high，所以需要根据当前值决定设置顺序
+        if (low > config.getWriteBufferHighWaterMark()) {
+            config.setWriteBufferHighWaterMark(high);
+            config.setWriteBufferLowWaterMark(low);
+        } else {
+            config.setWriteBufferLowWaterMark(low);
+            config.setWriteBufferHighWaterMark(high);
+        }
+    }
+
     public static void closeAll(Collection<Channel> channels) {
         if (channels == null) {
             return;
@@ -0,0 +1,28 @@
+package com.virjar.spider.proxy.ha.utils;
+
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timeout;
+import io.netty.util.concurrent.DefaultThreadFactory;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 全局的时间轮定时器，缓存连接过期、隧道空闲回收这类和连接数量成正比的超时任务都在这里调度。
+ * 几十万连接各自调度过期任务时，eventLoop.schedule/ScheduledExecutorService需要维护同样数量的堆节点和ScheduledFuture，
+ * 时间轮的插入和取消都是O(1)
+ * <br>
+ * 时间轮只有一个工作线程，任务里面只能做轻量的操作（投递到looper或者eventLoop、关闭连接），不能阻塞。
+ * looper的延时任务由looper自己调度
+ */
+public class WheelTimer {
+    /**
+     * 精度10ms，对冲延时这类毫秒级的任务也可以使用
+     */
+    private static final HashedWheelTimer timer = new HashedWheelTimer(
+            new DefaultThreadFactory("ha-wheel-timer", true),
+            10, TimeUnit.MILLISECONDS, 1024);
+
+    public static Timeout newTimeout(Runnable runnable, long delay, TimeUnit unit) {
+        return timer.newTimeout(timeout -> runnable.run(), delay, unit);
+    }
+}
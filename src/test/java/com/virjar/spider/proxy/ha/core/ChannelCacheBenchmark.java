@@ -0,0 +1,100 @@
+package com.virjar.spider.proxy.ha.core;
+
+import io.netty.channel.Channel;
+import io.netty.channel.EventLoop;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.local.LocalChannel;
+import io.netty.channel.local.LocalEventLoopGroup;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 多个用户连接的eventLoop同时借用、归还同一个上游资源的连接池。
+ * channelsPerLoop为1时线程数远大于缓存的连接数，大部分借用在自己的分区未命中，需要扫描其他分区
+ * <br>
+ * mvn -Pjmh verify -Djmh.includes=ChannelCacheBenchmark
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(16)
+@Fork(1)
+public class ChannelCacheBenchmark {
+    private static final int EVENT_LOOPS = 4;
+
+    @State(Scope.Benchmark)
+    public static class Pool {
+        @Param({"1", "64"})
+        public int channelsPerLoop;
+
+        final ChannelCache channelCache = new ChannelCache();
+        final EventLoop[] eventLoops = new EventLoop[EVENT_LOOPS];
+        final AtomicInteger threadIndex = new AtomicInteger(0);
+        private EventLoopGroup group;
+
+        @Setup(Level.Trial)
+        public void setup() throws InterruptedException {
+            group = new LocalEventLoopGroup(EVENT_LOOPS);
+            for (int i = 0; i < EVENT_LOOPS; i++) {
+                eventLoops[i] = group.next();
+                for (int j = 0; j < channelsPerLoop; j++) {
+                    Channel channel = new LocalChannel();
+                    eventLoops[i].register(channel).sync();
+                    channelCache.add(channel);
+                }
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            group.shutdownGracefully(0, 0, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * 每个压测线程模拟一个用户连接的eventLoop，均匀分布在各个分区上
+     */
+    @State(Scope.Thread)
+    public static class Borrower {
+        EventLoop preferEventLoop;
+
+        @Setup(Level.Trial)
+        public void setup(Pool pool) {
+            preferEventLoop = pool.eventLoops[pool.threadIndex.getAndIncrement() % EVENT_LOOPS];
+        }
+    }
+
+    @Benchmark
+    public Channel borrowAndReturn(Pool pool, Borrower borrower) {
+        Channel channel = pool.channelCache.poll(borrower.preferEventLoop);
+        if (channel != null) {
+            pool.channelCache.add(channel);
+        }
+        return channel;
+    }
+
+    @Benchmark
+    public Channel borrowAnyAndReturn(Pool pool) {
+        Channel channel = pool.channelCache.poll(null);
+        if (channel != null) {
+            pool.channelCache.add(channel);
+        }
+        return channel;
+    }
+}
@@ -0,0 +1,115 @@
+package com.virjar.spider.proxy.ha.core;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class UpstreamListParserTest {
+
+    private static ByteBuffer buffer(String content) {
+        return ByteBuffer.wrap(content.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private static List<String> resources(UpstreamListParser parser) {
+        List<String> ret = new ArrayList<>();
+        for (long packed : parser.sortedPacked()) {
+            ret.add(UpstreamListParser.host(packed) + ":" + UpstreamListParser.port(packed));
+        }
+        return ret;
+    }
+
+    @Test
+    public void parseLines() {
+        UpstreamListParser parser = new UpstreamListParser();
+        parser.feed(buffer("1.2.3.4:8080\r\n 10.0.0.1 : 3128 \n\n255.255.255.255:65535"));
+        parser.finish();
+        assertEquals(Arrays.asList("1.2.3.4:8080", "10.0.0.1:3128", "255.255.255.255:65535"), resources(parser));
+        assertEquals(3, parser.getLineCount());
+        assertEquals(0, parser.getInvalidCount());
+    }
+
+    @Test
+    public void chunkSplitInsideLine() {
+        String content = "1.2.3.4:8080\n5.6.7.8:1080\n";
+        UpstreamListParser parser = new UpstreamListParser();
+        // 每个字节单独一块，模拟响应体任意位置被切分
+        for (byte b : content.getBytes(StandardCharsets.US_ASCII)) {
+            parser.feed(ByteBuffer.wrap(new byte[]{b}));
+        }
+        parser.finish();
+        assertEquals(Arrays.asList("1.2.3.4:8080", "5.6.7.8:1080"), resources(parser));
+        assertEquals(content.length(), parser.getTotalBytes());
+    }
+
+    @Test
+    public void sortAndDeduplicate() {
+        UpstreamListParser parser = new UpstreamListParser();
+        parser.feed(buffer("9.9.9.9:80\n1.1.1.1:80\n9.9.9.9:80\n1.1.1.1:79\n"));
+        parser.finish();
+        assertEquals(Arrays.asList("1.1.1.1:79", "1.1.1.1:80", "9.9.9.9:80"), resources(parser));
+        assertEquals(4, parser.getLineCount());
+    }
+
+    @Test
+    public void hostNameResources() {
+        UpstreamListParser parser = new UpstreamListParser();
+        parser.feed(buffer("proxy-1.example.com:8000\n1.2.3.4:80\n"));
+        parser.finish();
+        assertEquals(Arrays.asList("proxy-1.example.com:8000"), parser.getHostResources());
+        assertEquals(Arrays.asList("1.2.3.4:80"), resources(parser));
+    }
+
+    @Test
+    public void invalidLines() {
+        UpstreamListParser parser = new UpstreamListParser();
+        parser.feed(buffer("1.2.3.4\n"
+                + "1.2.3.4:70000\n"
+                + "1.2.3.4:0\n"
+                + "1.2.3.4:80a\n"
+                + "256.1.1.1:80\n"
+                + "1.2.3:80\n"
+                + "1..2.3:80\n"
+                + "<html>:80\n"
+                + "1.2.3.4:80\n"));
+        parser.finish();
+        assertEquals(9, parser.getLineCount());
+        assertEquals(8, parser.getInvalidCount());
+        assertEquals(Arrays.asList("1.2.3.4:80"), resources(parser));
+        assertEquals(0, parser.getHostResources().size());
+    }
+
+    @Test
+    public void overlongLine() {
+        StringBuilder content = new StringBuilder();
+        for (int i = 0; i < 300; i++) {
+            content.append('a');
+        }
+        content.append(":80\n1.2.3.4:80\n");
+        UpstreamListParser parser = new UpstreamListParser();
+        parser.feed(buffer(content.toString()));
+        parser.finish();
+        assertEquals(1, parser.getInvalidCount());
+        assertEquals(Arrays.asList("1.2.3.4:80"), resources(parser));
+    }
+
+    @Test
+    public void growPackedArray() {
+        UpstreamListParser parser = new UpstreamListParser();
+        StringBuilder content = new StringBuilder();
+        for (int i = 0; i < 3000; i++) {
+            content.append("10.0.").append(i / 256).append('.').append(i % 256).append(":8080\n");
+        }
+        parser.feed(buffer(content.toString()));
+        parser.finish();
+        long[] packed = parser.sortedPacked();
+        assertEquals(3000, packed.length);
+        assertEquals("10.0.0.0", UpstreamListParser.host(packed[0]));
+        assertEquals("10.0.11.183", UpstreamListParser.host(packed[2999]));
+    }
+}
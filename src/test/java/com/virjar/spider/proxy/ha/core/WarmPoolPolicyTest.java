@@ -0,0 +1,54 @@
+package com.virjar.spider.proxy.ha.core;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class WarmPoolPolicyTest {
+
+    @Test
+    public void learnOnlyAfterConsistentSamples() {
+        WarmPoolPolicy policy = new WarmPoolPolicy();
+        long initialLifetime = policy.lifetimeMillis();
+        assertFalse(policy.onVendorIdleClose(60000));
+        assertFalse(policy.onVendorIdleClose(61000));
+        assertEquals(initialLifetime, policy.lifetimeMillis());
+        assertTrue(policy.onVendorIdleClose(59000));
+        // 三个样本的均值 * 0.9
+        assertEquals(54000, policy.lifetimeMillis());
+        // 学习之后，相近的关闭直接认为是空闲超时
+        assertTrue(policy.onVendorIdleClose(60000));
+    }
+
+    @Test
+    public void scatteredClosesAreNotIdleTimeout() {
+        WarmPoolPolicy policy = new WarmPoolPolicy();
+        long initialLifetime = policy.lifetimeMillis();
+        long[] samples = {6000, 15000, 40000, 90000, 200000, 9000, 27000};
+        for (long sample : samples) {
+            assertFalse(policy.onVendorIdleClose(sample));
+        }
+        assertEquals(initialLifetime, policy.lifetimeMillis());
+    }
+
+    @Test
+    public void outlierAfterLearningIsNotIdleTimeout() {
+        WarmPoolPolicy policy = new WarmPoolPolicy();
+        for (int i = 0; i < 3; i++) {
+            policy.onVendorIdleClose(30000);
+        }
+        long lifetime = policy.lifetimeMillis();
+        assertFalse(policy.onVendorIdleClose(120000));
+        assertEquals(lifetime, policy.lifetimeMillis());
+    }
+
+    @Test
+    public void shortCloseIsNotIdleTimeout() {
+        WarmPoolPolicy policy = new WarmPoolPolicy();
+        for (int i = 0; i < 5; i++) {
+            assertFalse(policy.onVendorIdleClose(1000));
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package com.virjar.spider.proxy.ha.handlers;
+
+import com.virjar.spider.proxy.ha.core.HaProxyMapping;
+import com.virjar.spider.proxy.ha.core.Source;
+import com.virjar.spider.proxy.ha.safethread.ValueCallback;
+import io.netty.channel.Channel;
+import io.netty.channel.EventLoop;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.DefaultHttpRequest;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.util.AttributeKey;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class HttpPooledProxyHandlerTest {
+
+    /**
+     * 只记录借用请求，不连接上游
+     */
+    private static class RecordingMapping extends HaProxyMapping {
+        private final List<Boolean> borrows = new ArrayList<>();
+
+        RecordingMapping() {
+            super(36000, null, new Source("test", "http", "http://127.0.0.1/", "36000"));
+        }
+
+        @Override
+        public void borrowConnect(EventLoop eventLoop, boolean reuseKeepAlive, ValueCallback<Channel> valueCallback) {
+            borrows.add(reuseKeepAlive);
+        }
+    }
+
+    /**
+     * 线上由HaProxyMapping绑定在用户连接上，HttpServerHandler从channel属性上获取映射
+     */
+    private static EmbeddedChannel newChannel(RecordingMapping mapping) {
+        EmbeddedChannel channel = new EmbeddedChannel(new HttpPooledProxyHandler(mapping));
+        channel.attr(AttributeKey.<HaProxyMapping>valueOf("haProxyMapping")).set(mapping);
+        return channel;
+    }
+
+    @Test
+    public void connectIsHandedOverToTunnel() {
+        RecordingMapping mapping = new RecordingMapping();
+        EmbeddedChannel channel = newChannel(mapping);
+        assertEquals(1, mapping.getMetrics().getActiveTunnels());
+
+        channel.writeInbound(new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.CONNECT, "example.com:443"));
+
+        assertNull(channel.pipeline().get(HttpPooledProxyHandler.class));
+        assertNotNull(channel.pipeline().get(HttpServerHandler.class));
+        // 隧道路径借用的连接不能复用keep-alive连接，也不会归还连接池
+        assertEquals(1, mapping.borrows.size());
+        assertFalse(mapping.borrows.get(0));
+        // 连接池模式的计数已经结束，隧道由HttpServerHandler的握手流程重新计数
+        assertEquals(0, mapping.getMetrics().getActiveTunnels());
+        channel.close();
+        assertEquals(0, mapping.getMetrics().getActiveTunnels());
+    }
+
+    @Test
+    public void plainRequestBorrowsPooledConnection() {
+        RecordingMapping mapping = new RecordingMapping();
+        EmbeddedChannel channel = newChannel(mapping);
+
+        channel.writeInbound(new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "http://example.com/"));
+
+        assertNotNull(channel.pipeline().get(HttpPooledProxyHandler.class));
+        assertEquals(1, mapping.borrows.size());
+        assertTrue(mapping.borrows.get(0));
+        channel.close();
+    }
+}
@@ -0,0 +1,67 @@
+package com.virjar.spider.proxy.ha.handlers;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 首包协议嗅探的开销，覆盖switch直接命中、共享前缀的多个候选方法以及h2c前言。
+ * 首包来自pooled direct buffer，和线上的读缓冲一致
+ * <br>
+ * mvn -Pjmh verify -Djmh.includes=ProxyProtocolRouterBenchmark
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProxyProtocolRouterBenchmark {
+    @Param({"GET", "CONNECT", "PROPPATCH", "HTTP2", "SOCKS5"})
+    public String firstPacket;
+
+    private ByteBuf buf;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        byte[] content;
+        switch (firstPacket) {
+            case "HTTP2":
+                content = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+                break;
+            case "SOCKS5":
+                content = new byte[]{0x05, 0x02, 0x00, 0x02};
+                break;
+            default:
+                content = (firstPacket + " http://example.com/ HTTP/1.1\r\nHost: example.com\r\n\r\n")
+                        .getBytes(StandardCharsets.US_ASCII);
+        }
+        buf = PooledByteBufAllocator.DEFAULT.directBuffer(content.length);
+        buf.writeBytes(content);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        buf.release();
+    }
+
+    @Benchmark
+    public int sniff() {
+        return ProxyProtocolRouter.sniff(buf);
+    }
+}
@@ -0,0 +1,128 @@
+package com.virjar.spider.proxy.ha.handlers;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ProxyProtocolRouterTest {
+    private static final String HTTP2_PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n";
+
+    private static ByteBuf buf(String content) {
+        return Unpooled.copiedBuffer(content, StandardCharsets.US_ASCII);
+    }
+
+    private static int sniff(String content) {
+        ByteBuf byteBuf = buf(content);
+        try {
+            return ProxyProtocolRouter.sniff(byteBuf);
+        } finally {
+            byteBuf.release();
+        }
+    }
+
+    @Test
+    public void sniffHttpMethods() {
+        String[] methods = {"GET", "PUT", "POST", "PATCH", "PROPFIND", "PROPPATCH", "DELETE", "HEAD",
+                "OPTIONS", "TRACE", "CONNECT", "COPY", "MKCOL", "MOVE", "LOCK", "UNLOCK"};
+        for (String method : methods) {
+            assertEquals(method, ProxyProtocolRouter.PROTOCOL_HTTP, sniff(method + " / HTTP/1.1\r\n"));
+        }
+    }
+
+    @Test
+    public void sniffSocks() {
+        assertEquals(ProxyProtocolRouter.PROTOCOL_SOCKS5,
+                ProxyProtocolRouter.sniff(Unpooled.wrappedBuffer(new byte[]{0x05, 0x01, 0x00})));
+        assertEquals(ProxyProtocolRouter.PROTOCOL_SOCKS4,
+                ProxyProtocolRouter.sniff(Unpooled.wrappedBuffer(new byte[]{0x04, 0x01, 0x00, 0x50})));
+    }
+
+    @Test
+    public void sniffUnknown() {
+        assertEquals(ProxyProtocolRouter.PROTOCOL_UNKNOWN, sniff("\u0016\u0003\u0001"));
+        assertEquals(ProxyProtocolRouter.PROTOCOL_UNKNOWN, sniff("GOT / HTTP/1.1"));
+        // 方法名之后必须是空格
+        assertEquals(ProxyProtocolRouter.PROTOCOL_UNKNOWN, sniff("GET/ HTTP/1.1"));
+        assertEquals(ProxyProtocolRouter.PROTOCOL_UNKNOWN, sniff("PX"));
+        assertEquals(ProxyProtocolRouter.PROTOCOL_NEED_MORE, sniff(""));
+    }
+
+    @Test
+    public void sniffHttp2VersusPMethods() {
+        assertEquals(ProxyProtocolRouter.PROTOCOL_HTTP2, sniff(HTTP2_PREFACE));
+        assertEquals(ProxyProtocolRouter.PROTOCOL_HTTP2, sniff("PRI * HTTP/2"));
+        // 和PROPFIND/PROPPATCH/PUT/POST/PATCH共享前缀时不能提前下结论
+        assertEquals(ProxyProtocolRouter.PROTOCOL_NEED_MORE, sniff("P"));
+        assertEquals(ProxyProtocolRouter.PROTOCOL_NEED_MORE, sniff("PR"));
+        assertEquals(ProxyProtocolRouter.PROTOCOL_NEED_MORE, sniff("PRI"));
+        assertEquals(ProxyProtocolRouter.PROTOCOL_NEED_MORE, sniff("PRO"));
+        assertEquals(ProxyProtocolRouter.PROTOCOL_NEED_MORE, sniff("PROP"));
+        assertEquals(ProxyProtocolRouter.PROTOCOL_NEED_MORE, sniff("PA"));
+        assertEquals(ProxyProtocolRouter.PROTOCOL_HTTP, sniff("PROPFIND "));
+        assertEquals(ProxyProtocolRouter.PROTOCOL_HTTP, sniff("PATCH "));
+        assertEquals(ProxyProtocolRouter.PROTOCOL_UNKNOWN, sniff("PRI * HTTP/1"));
+        assertEquals(ProxyProtocolRouter.PROTOCOL_UNKNOWN, sniff("PROPX"));
+    }
+
+    @Test
+    public void sniffSplitPackets() {
+        String request = "CONNECT example.com:443 HTTP/1.1\r\n";
+        for (int i = 1; i < "CONNECT ".length(); i++) {
+            assertEquals(request.substring(0, i), ProxyProtocolRouter.PROTOCOL_NEED_MORE, sniff(request.substring(0, i)));
+        }
+        for (int i = 1; i < "PRI * HTTP/2".length(); i++) {
+            assertEquals(HTTP2_PREFACE.substring(0, i),
+                    ProxyProtocolRouter.PROTOCOL_NEED_MORE, sniff(HTTP2_PREFACE.substring(0, i)));
+        }
+    }
+
+    @Test
+    public void sniffKeepsReaderIndex() {
+        ByteBuf byteBuf = buf("xxGET / HTTP/1.1\r\n");
+        byteBuf.skipBytes(2);
+        assertEquals(ProxyProtocolRouter.PROTOCOL_HTTP, ProxyProtocolRouter.sniff(byteBuf));
+        assertEquals(2, byteBuf.readerIndex());
+        byteBuf.release();
+    }
+
+    @Test
+    public void cumulateSplitFirstPacket() {
+        // 没有端口映射的连接不支持h2c，前言被拆成多个报文时仍然要完整识别之后再拒绝
+        EmbeddedChannel channel = new EmbeddedChannel(new ProxyProtocolRouter());
+        channel.writeInbound(buf("P"));
+        channel.writeInbound(buf("RI * HT"));
+        assertTrue(channel.isOpen());
+        assertNull(channel.readOutbound());
+
+        channel.writeInbound(buf(HTTP2_PREFACE.substring("PRI * HT".length())));
+        ByteBuf reject = (ByteBuf) channel.readOutbound();
+        byte[] frames = new byte[reject.readableBytes()];
+        reject.readBytes(frames);
+        reject.release();
+        // SETTINGS + GOAWAY(HTTP_1_1_REQUIRED)
+        assertEquals(9 + 9 + 8, frames.length);
+        assertEquals(0x4, frames[3]);
+        assertEquals(0x7, frames[9 + 3]);
+        assertArrayEquals(new byte[]{0, 0, 0, 0xd}, Arrays.copyOfRange(frames, frames.length - 4, frames.length));
+        assertFalse(channel.isOpen());
+    }
+
+    @Test
+    public void closeOnUnknownProtocolAfterSplitPacket() {
+        EmbeddedChannel channel = new EmbeddedChannel(new ProxyProtocolRouter());
+        channel.writeInbound(buf("P"));
+        assertTrue(channel.isOpen());
+        channel.writeInbound(buf("X"));
+        assertFalse(channel.isOpen());
+    }
+}
@@ -0,0 +1,197 @@
+package com.virjar.spider.proxy.ha.handlers.http2;
+
+import com.virjar.spider.proxy.ha.Configs;
+import io.netty.buffer.Unpooled;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class Http2ConnectHandlerTest {
+    private boolean httpConnectFastPath;
+    private int http2MaxConcurrentStreams;
+
+    @Before
+    public void setUp() {
+        httpConnectFastPath = Configs.httpConnectFastPath;
+        http2MaxConcurrentStreams = Configs.http2MaxConcurrentStreams;
+        // 快速路径依赖上游连接池安装的MonitorHandler，这里使用编解码路径握手
+        Configs.httpConnectFastPath = false;
+    }
+
+    @After
+    public void tearDown() {
+        Configs.httpConnectFastPath = httpConnectFastPath;
+        Configs.http2MaxConcurrentStreams = http2MaxConcurrentStreams;
+    }
+
+    @Test
+    public void serverPrefaceAndSettingsAck() {
+        Http2TestChannel client = new Http2TestChannel();
+        List<Http2TestChannel.Frame> frames = client.readFrames();
+        Http2TestChannel.Frame settings = frames.get(0);
+        assertEquals(Http2Frames.TYPE_SETTINGS, settings.type);
+        assertFalse(settings.hasFlag(Http2Frames.FLAG_ACK));
+        // 只声明最大流数量和初始窗口，不声明extended CONNECT
+        assertEquals(12, settings.payload.length);
+        Http2TestChannel.Frame windowUpdate = frames.get(1);
+        assertEquals(Http2Frames.TYPE_WINDOW_UPDATE, windowUpdate.type);
+        assertEquals(0, windowUpdate.streamId);
+
+        client.writeSettings(Http2Frames.SETTINGS_MAX_FRAME_SIZE, 32768);
+        Http2TestChannel.Frame ack = Http2TestChannel.lastFrame(client.readFrames(), Http2Frames.TYPE_SETTINGS);
+        assertNotNull(ack);
+        assertTrue(ack.hasFlag(Http2Frames.FLAG_ACK));
+        assertEquals(0, ack.payload.length);
+    }
+
+    @Test
+    public void initialWindowDeltaAppliesToOpenStreams() {
+        Http2TestChannel client = new Http2TestChannel();
+        client.writeSettings(Http2Frames.SETTINGS_INITIAL_WINDOW_SIZE, 4);
+        Http2TestChannel.EmbeddedSocketChannel upstream = client.establish(1, "example.com:443");
+        client.readFrames();
+
+        upstream.writeInbound(Unpooled.copiedBuffer("0123456789", StandardCharsets.US_ASCII));
+        assertEquals("0123", Http2TestChannel.dataOf(client.readFrames(), 1));
+
+        // 初始窗口从4调整到10，已经打开的流增加6
+        client.writeSettings(Http2Frames.SETTINGS_INITIAL_WINDOW_SIZE, 10);
+        assertEquals("456789", Http2TestChannel.dataOf(client.readFrames(), 1));
+    }
+
+    @Test
+    public void pingAck() {
+        Http2TestChannel client = new Http2TestChannel();
+        client.readFrames();
+        byte[] opaque = "12345678".getBytes(StandardCharsets.US_ASCII);
+        client.writeFrame(Http2Frames.TYPE_PING, 0, 0, opaque);
+        Http2TestChannel.Frame ack = Http2TestChannel.lastFrame(client.readFrames(), Http2Frames.TYPE_PING);
+        assertNotNull(ack);
+        assertTrue(ack.hasFlag(Http2Frames.FLAG_ACK));
+        assertArrayEquals(opaque, ack.payload);
+
+        // 对端的PING ACK不需要回复
+        client.writeFrame(Http2Frames.TYPE_PING, Http2Frames.FLAG_ACK, 0, opaque);
+        assertEquals(0, client.readFrames().size());
+    }
+
+    @Test
+    public void headersWithContinuation() {
+        Http2TestChannel client = new Http2TestChannel();
+        byte[] block = client.encodeHeaders(":method", "CONNECT", ":authority", "example.com:443", "user-agent", "test");
+        int split = block.length / 2;
+        client.writeFrame(Http2Frames.TYPE_HEADERS, 0, 1, Arrays.copyOfRange(block, 0, split));
+        assertEquals(0, client.mapping.upstreams.size());
+        client.writeFrame(Http2Frames.TYPE_CONTINUATION, Http2Frames.FLAG_END_HEADERS, 1,
+                Arrays.copyOfRange(block, split, block.length));
+
+        assertEquals(1, client.mapping.upstreams.size());
+        String connectRequest = client.mapping.upstreams.get(0).readOutboundString();
+        assertTrue(connectRequest, connectRequest.startsWith("CONNECT example.com:443 HTTP/1.1\r\n"));
+        assertTrue(connectRequest, connectRequest.contains("user-agent: test\r\n"));
+    }
+
+    @Test
+    public void paddedData() {
+        Http2TestChannel client = new Http2TestChannel();
+        Http2TestChannel.EmbeddedSocketChannel upstream = client.establish(1, "example.com:443");
+        byte[] payload = new byte[1 + 5 + 3];
+        payload[0] = 3;
+        System.arraycopy("hello".getBytes(StandardCharsets.US_ASCII), 0, payload, 1, 5);
+        client.writeFrame(Http2Frames.TYPE_DATA, Http2Frames.FLAG_PADDED, 1, payload);
+        // padding不写入上游
+        assertEquals("hello", upstream.readOutboundString());
+    }
+
+    @Test
+    public void connectionWindowOverflow() {
+        Http2TestChannel client = new Http2TestChannel();
+        client.readFrames();
+        client.writeWindowUpdate(0, Integer.MAX_VALUE);
+        Http2TestChannel.Frame goAway = Http2TestChannel.lastFrame(client.readFrames(), Http2Frames.TYPE_GOAWAY);
+        assertNotNull(goAway);
+        assertEquals(Http2Frames.FLOW_CONTROL_ERROR, goAway.intAt(4));
+        assertFalse(client.channel.isOpen());
+    }
+
+    @Test
+    public void streamWindowOverflow() {
+        Http2TestChannel client = new Http2TestChannel();
+        Http2TestChannel.EmbeddedSocketChannel upstream = client.establish(1, "example.com:443");
+        client.readFrames();
+        client.writeWindowUpdate(1, Integer.MAX_VALUE);
+        Http2TestChannel.Frame rst = Http2TestChannel.lastFrame(client.readFrames(), Http2Frames.TYPE_RST_STREAM);
+        assertNotNull(rst);
+        assertEquals(1, rst.streamId);
+        assertEquals(Http2Frames.FLOW_CONTROL_ERROR, rst.intAt(0));
+        // 流级别的错误只关闭这个流
+        assertFalse(upstream.isOpen());
+        assertTrue(client.channel.isOpen());
+    }
+
+    @Test
+    public void refusedStreamAboveLimit() {
+        Configs.http2MaxConcurrentStreams = 1;
+        Http2TestChannel client = new Http2TestChannel();
+        client.writeConnect(1, "example.com:443");
+        client.writeConnect(3, "example.com:443");
+        Http2TestChannel.Frame rst = Http2TestChannel.lastFrame(client.readFrames(), Http2Frames.TYPE_RST_STREAM);
+        assertNotNull(rst);
+        assertEquals(3, rst.streamId);
+        assertEquals(Http2Frames.REFUSED_STREAM, rst.intAt(0));
+        assertEquals(1, client.mapping.upstreams.size());
+    }
+
+    @Test
+    public void nonConnectMethod() {
+        Http2TestChannel client = new Http2TestChannel();
+        client.readFrames();
+        client.writeHeaders(1, true, ":method", "GET", ":scheme", "http", ":path", "/", ":authority", "example.com");
+        Http2TestChannel.Frame headers = Http2TestChannel.lastFrame(client.readFrames(), Http2Frames.TYPE_HEADERS);
+        assertNotNull(headers);
+        assertArrayEquals(Http2Frames.STATUS_405, headers.payload);
+        assertTrue(headers.hasFlag(Http2Frames.FLAG_END_STREAM));
+        assertEquals(0, client.mapping.upstreams.size());
+    }
+
+    @Test
+    public void badConnectRequest() {
+        Http2TestChannel client = new Http2TestChannel();
+        client.readFrames();
+        // 缺少:authority
+        client.writeHeaders(1, false, ":method", "CONNECT");
+        Http2TestChannel.Frame headers = Http2TestChannel.lastFrame(client.readFrames(), Http2Frames.TYPE_HEADERS);
+        assertNotNull(headers);
+        assertArrayEquals(Http2Frames.STATUS_400, headers.payload);
+
+        // CONNECT请求头就结束了流，隧道没有意义
+        client.writeHeaders(3, true, ":method", "CONNECT", ":authority", "example.com:443");
+        headers = Http2TestChannel.lastFrame(client.readFrames(), Http2Frames.TYPE_HEADERS);
+        assertNotNull(headers);
+        assertEquals(3, headers.streamId);
+        assertArrayEquals(Http2Frames.STATUS_400, headers.payload);
+        assertEquals(0, client.mapping.upstreams.size());
+    }
+
+    @Test
+    public void extendedConnectRejected() {
+        Http2TestChannel client = new Http2TestChannel();
+        client.readFrames();
+        client.writeHeaders(1, false, ":method", "CONNECT", ":protocol", "websocket", ":scheme", "http",
+                ":path", "/chat", ":authority", "example.com:80");
+        Http2TestChannel.Frame rst = Http2TestChannel.lastFrame(client.readFrames(), Http2Frames.TYPE_RST_STREAM);
+        assertNotNull(rst);
+        assertEquals(Http2Frames.PROTOCOL_ERROR, rst.intAt(0));
+        assertEquals(0, client.mapping.upstreams.size());
+    }
+}
@@ -0,0 +1,96 @@
+package com.virjar.spider.proxy.ha.handlers.http2;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.DecoderException;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class Http2FrameDecoderTest {
+
+    private static ByteBuf frame(int type, int flags, int streamId, String payload) {
+        byte[] content = payload.getBytes(StandardCharsets.US_ASCII);
+        ByteBuf buf = Unpooled.buffer();
+        Http2Frames.writeFrameHeader(buf, content.length, type, flags, streamId);
+        buf.writeBytes(content);
+        return buf;
+    }
+
+    private static int connectionErrorCode(EmbeddedChannel channel, ByteBuf data) {
+        try {
+            channel.writeInbound(data);
+        } catch (DecoderException e) {
+            return ((Http2Frames.ConnectionError) e.getCause()).errorCode;
+        }
+        fail("expect connection error");
+        return -1;
+    }
+
+    @Test
+    public void decodeFrames() {
+        EmbeddedChannel channel = new EmbeddedChannel(new Http2FrameDecoder());
+        ByteBuf data = Unpooled.buffer();
+        data.writeBytes(Http2Frames.CONNECTION_PREFACE);
+        data.writeBytes(frame(Http2Frames.TYPE_DATA, Http2Frames.FLAG_END_STREAM, 3, "hello"));
+        data.writeBytes(frame(Http2Frames.TYPE_SETTINGS, Http2Frames.FLAG_ACK, 0, ""));
+        assertTrue(channel.writeInbound(data));
+
+        Http2Frames.Frame first = (Http2Frames.Frame) channel.readInbound();
+        assertEquals(Http2Frames.TYPE_DATA, first.type);
+        assertEquals(3, first.streamId);
+        assertTrue(first.hasFlag(Http2Frames.FLAG_END_STREAM));
+        assertEquals("hello", first.payload.toString(StandardCharsets.US_ASCII));
+        first.payload.release();
+
+        Http2Frames.Frame second = (Http2Frames.Frame) channel.readInbound();
+        assertEquals(Http2Frames.TYPE_SETTINGS, second.type);
+        assertTrue(second.hasFlag(Http2Frames.FLAG_ACK));
+        assertFalse(second.payload.isReadable());
+        second.payload.release();
+        assertNull(channel.readInbound());
+    }
+
+    @Test
+    public void splitAtEveryByte() {
+        ByteBuf data = Unpooled.buffer();
+        data.writeBytes(Http2Frames.CONNECTION_PREFACE);
+        data.writeBytes(frame(Http2Frames.TYPE_DATA, 0, 1, "split"));
+        EmbeddedChannel channel = new EmbeddedChannel(new Http2FrameDecoder());
+        // 前言和帧头、payload在任意位置被切分
+        while (data.readableBytes() > 1) {
+            assertFalse(channel.writeInbound(data.readSlice(1).retain()));
+        }
+        assertTrue(channel.writeInbound(data));
+
+        Http2Frames.Frame frame = (Http2Frames.Frame) channel.readInbound();
+        assertEquals(1, frame.streamId);
+        assertEquals("split", frame.payload.toString(StandardCharsets.US_ASCII));
+        frame.payload.release();
+    }
+
+    @Test
+    public void badPreface() {
+        EmbeddedChannel channel = new EmbeddedChannel(new Http2FrameDecoder());
+        // 不需要等到前言收完整，第一个不一致的字节就报错
+        assertEquals(Http2Frames.PROTOCOL_ERROR, connectionErrorCode(channel,
+                Unpooled.copiedBuffer("PRI * HTTP/1.1", StandardCharsets.US_ASCII)));
+    }
+
+    @Test
+    public void oversizeFrame() {
+        EmbeddedChannel channel = new EmbeddedChannel(new Http2FrameDecoder());
+        channel.writeInbound(Unpooled.wrappedBuffer(Http2Frames.CONNECTION_PREFACE));
+        // 只收到帧头就可以判断
+        ByteBuf header = Unpooled.buffer();
+        Http2Frames.writeFrameHeader(header, Http2Frames.DEFAULT_MAX_FRAME_SIZE + 1, Http2Frames.TYPE_DATA, 0, 1);
+        assertEquals(Http2Frames.FRAME_SIZE_ERROR, connectionErrorCode(channel, header));
+    }
+}
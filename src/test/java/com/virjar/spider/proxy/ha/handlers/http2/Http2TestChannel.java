@@ -0,0 +1,269 @@
+package com.virjar.spider.proxy.ha.handlers.http2;
+
+import com.twitter.hpack.Encoder;
+import com.virjar.spider.proxy.ha.core.HaProxyMapping;
+import com.virjar.spider.proxy.ha.core.Source;
+import com.virjar.spider.proxy.ha.safethread.ValueCallback;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.EventLoop;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.channel.socket.DefaultSocketChannelConfig;
+import io.netty.channel.socket.ServerSocketChannel;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.SocketChannelConfig;
+import io.netty.util.ReferenceCountUtil;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * h2c用户连接的测试桩：EmbeddedChannel上安装Http2FrameDecoder和Http2ConnectHandler，
+ * 以客户端的身份收发帧。上游连接同样是EmbeddedChannel，所有事件在测试线程中同步执行
+ */
+class Http2TestChannel {
+    final RecordingMapping mapping = new RecordingMapping();
+    final EmbeddedChannel channel = new EmbeddedChannel();
+    private final Encoder hpackEncoder = new Encoder(0);
+
+    Http2TestChannel() {
+        Http2ConnectHandler.install(channel.pipeline(), mapping);
+        channel.writeInbound(Unpooled.wrappedBuffer(Http2Frames.CONNECTION_PREFACE));
+    }
+
+    /**
+     * 服务端发送的一帧，payload已经拷贝出来
+     */
+    static class Frame {
+        final int type;
+        final int flags;
+        final int streamId;
+        final byte[] payload;
+
+        Frame(int type, int flags, int streamId, byte[] payload) {
+            this.type = type;
+            this.flags = flags;
+            this.streamId = streamId;
+            this.payload = payload;
+        }
+
+        boolean hasFlag(int flag) {
+            return (flags & flag) != 0;
+        }
+
+        int intAt(int index) {
+            return Unpooled.wrappedBuffer(payload).getInt(index);
+        }
+    }
+
+    /**
+     * 只记录借用请求，每次借用都同步回调一个新的上游连接
+     */
+    static class RecordingMapping extends HaProxyMapping {
+        final List<EmbeddedSocketChannel> upstreams = new ArrayList<>();
+
+        RecordingMapping() {
+            super(36000, null, new Source("test", "http", "http://127.0.0.1/", "36000"));
+        }
+
+        @Override
+        public void borrowConnect(EventLoop eventLoop, boolean reuseKeepAlive, ValueCallback<Channel> valueCallback) {
+            EmbeddedSocketChannel upstream = new EmbeddedSocketChannel();
+            upstreams.add(upstream);
+            valueCallback.onReceiveValue(upstream);
+        }
+    }
+
+    /**
+     * 支持半关闭的EmbeddedChannel，Http2TunnelStream只对SocketChannel执行shutdownOutput
+     */
+    static class EmbeddedSocketChannel extends EmbeddedChannel implements SocketChannel {
+        /**
+         * 父类构造过程中就会读取配置，这里延迟创建
+         */
+        private Socket socket;
+        private SocketChannelConfig socketConfig;
+        private boolean outputShutdown = false;
+
+        @Override
+        public SocketChannelConfig config() {
+            if (socketConfig == null) {
+                socket = new Socket();
+                socketConfig = new DefaultSocketChannelConfig(this, socket);
+            }
+            return socketConfig;
+        }
+
+        @Override
+        public ServerSocketChannel parent() {
+            return null;
+        }
+
+        @Override
+        public InetSocketAddress localAddress() {
+            return null;
+        }
+
+        @Override
+        public InetSocketAddress remoteAddress() {
+            return null;
+        }
+
+        @Override
+        public boolean isInputShutdown() {
+            return false;
+        }
+
+        @Override
+        public boolean isOutputShutdown() {
+            return outputShutdown;
+        }
+
+        @Override
+        public ChannelFuture shutdownOutput() {
+            return shutdownOutput(newPromise());
+        }
+
+        @Override
+        public ChannelFuture shutdownOutput(ChannelPromise promise) {
+            outputShutdown = true;
+            return promise.setSuccess();
+        }
+
+        @Override
+        protected void doClose() throws Exception {
+            super.doClose();
+            socket.close();
+        }
+
+        /**
+         * 上游收到的所有数据
+         */
+        String readOutboundString() {
+            StringBuilder ret = new StringBuilder();
+            Object msg;
+            while ((msg = readOutbound()) != null) {
+                ret.append(((ByteBuf) msg).toString(StandardCharsets.ISO_8859_1));
+                ReferenceCountUtil.release(msg);
+            }
+            return ret.toString();
+        }
+    }
+
+    void writeFrame(int type, int flags, int streamId, byte[] payload) {
+        ByteBuf buf = Unpooled.buffer(Http2Frames.FRAME_HEADER_LENGTH + payload.length);
+        Http2Frames.writeFrameHeader(buf, payload.length, type, flags, streamId);
+        buf.writeBytes(payload);
+        channel.writeInbound(buf);
+    }
+
+    void writeSettings(int... settings) {
+        ByteBuf buf = Http2Frames.settings(channel.alloc(), settings);
+        channel.writeInbound(buf);
+    }
+
+    void writeWindowUpdate(int streamId, int increment) {
+        channel.writeInbound(Http2Frames.windowUpdate(channel.alloc(), streamId, increment));
+    }
+
+    void writeData(int streamId, String data, boolean endStream) {
+        writeFrame(Http2Frames.TYPE_DATA, endStream ? Http2Frames.FLAG_END_STREAM : 0, streamId,
+                data.getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    /**
+     * @param headers name value 交替
+     */
+    byte[] encodeHeaders(String... headers) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            for (int i = 0; i < headers.length; i += 2) {
+                hpackEncoder.encodeHeader(out, headers[i].getBytes(StandardCharsets.ISO_8859_1),
+                        headers[i + 1].getBytes(StandardCharsets.ISO_8859_1), false);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return out.toByteArray();
+    }
+
+    void writeHeaders(int streamId, boolean endStream, String... headers) {
+        writeFrame(Http2Frames.TYPE_HEADERS,
+                Http2Frames.FLAG_END_HEADERS | (endStream ? Http2Frames.FLAG_END_STREAM : 0),
+                streamId, encodeHeaders(headers));
+    }
+
+    void writeConnect(int streamId, String authority) {
+        writeHeaders(streamId, false, ":method", "CONNECT", ":authority", authority);
+    }
+
+    /**
+     * 打开一个CONNECT流并完成和上游的握手，返回上游连接
+     */
+    EmbeddedSocketChannel establish(int streamId, String authority) {
+        writeConnect(streamId, authority);
+        EmbeddedSocketChannel upstream = mapping.upstreams.get(mapping.upstreams.size() - 1);
+        upstream.readOutboundString();
+        upstream.writeInbound(Unpooled.copiedBuffer("HTTP/1.1 200 Connection established\r\nContent-Length: 0\r\n\r\n",
+                StandardCharsets.ISO_8859_1));
+        return upstream;
+    }
+
+    /**
+     * 服务端到目前为止发送的所有帧
+     */
+    List<Frame> readFrames() {
+        ByteBuf all = Unpooled.buffer();
+        Object msg;
+        while ((msg = channel.readOutbound()) != null) {
+            all.writeBytes((ByteBuf) msg);
+            ReferenceCountUtil.release(msg);
+        }
+        List<Frame> frames = new ArrayList<>();
+        while (all.isReadable()) {
+            int length = all.readUnsignedMedium();
+            int type = all.readUnsignedByte();
+            int flags = all.readUnsignedByte();
+            int streamId = all.readInt() & Integer.MAX_VALUE;
+            byte[] payload = new byte[length];
+            all.readBytes(payload);
+            frames.add(new Frame(type, flags, streamId, payload));
+        }
+        all.release();
+        return frames;
+    }
+
+    /**
+     * 指定类型的最后一帧，没有时返回null
+     */
+    static Frame lastFrame(List<Frame> frames, int type) {
+        Frame ret = null;
+        for (Frame frame : frames) {
+            if (frame.type == type) {
+                ret = frame;
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * 指定流上DATA帧的数据，按顺序拼接
+     */
+    static String dataOf(List<Frame> frames, int streamId) {
+        StringBuilder ret = new StringBuilder();
+        for (Frame frame : frames) {
+            if (frame.type == Http2Frames.TYPE_DATA && frame.streamId == streamId) {
+                ret.append(new String(frame.payload, StandardCharsets.ISO_8859_1));
+            }
+        }
+        return ret.toString();
+    }
+}
@@ -0,0 +1,110 @@
+package com.virjar.spider.proxy.ha.handlers.http2;
+
+import com.virjar.spider.proxy.ha.Configs;
+import io.netty.buffer.Unpooled;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class Http2TunnelStreamTest {
+    private boolean httpConnectFastPath;
+
+    @Before
+    public void setUp() {
+        httpConnectFastPath = Configs.httpConnectFastPath;
+        // 快速路径依赖上游连接池安装的MonitorHandler，这里使用编解码路径握手
+        Configs.httpConnectFastPath = false;
+    }
+
+    @After
+    public void tearDown() {
+        Configs.httpConnectFastPath = httpConnectFastPath;
+    }
+
+    @Test
+    public void establishAndUpload() {
+        Http2TestChannel client = new Http2TestChannel();
+        client.readFrames();
+        client.writeConnect(1, "example.com:443");
+        // 握手完成之前的数据暂存，握手成功后按顺序写入上游
+        client.writeData(1, "early", false);
+        Http2TestChannel.EmbeddedSocketChannel upstream = client.mapping.upstreams.get(0);
+        upstream.readOutboundString();
+        upstream.writeInbound(Unpooled.copiedBuffer("HTTP/1.1 200 OK\r\nContent-Length: 0\r\n\r\n",
+                StandardCharsets.US_ASCII));
+
+        Http2TestChannel.Frame headers = Http2TestChannel.lastFrame(client.readFrames(), Http2Frames.TYPE_HEADERS);
+        assertNotNull(headers);
+        assertArrayEquals(Http2Frames.STATUS_200, headers.payload);
+        assertFalse(headers.hasFlag(Http2Frames.FLAG_END_STREAM));
+        assertEquals("early", upstream.readOutboundString());
+        assertEquals(1, client.mapping.getMetrics().getActiveTunnels());
+
+        client.writeData(1, "late", false);
+        assertEquals("late", upstream.readOutboundString());
+    }
+
+    @Test
+    public void downloadStopsAtWindowAndResumesOnWindowUpdate() {
+        Http2TestChannel client = new Http2TestChannel();
+        client.writeSettings(Http2Frames.SETTINGS_INITIAL_WINDOW_SIZE, 10);
+        Http2TestChannel.EmbeddedSocketChannel upstream = client.establish(1, "example.com:443");
+        client.readFrames();
+
+        upstream.writeInbound(Unpooled.copiedBuffer("0123456789abcdefghij", StandardCharsets.US_ASCII));
+        assertEquals("0123456789", Http2TestChannel.dataOf(client.readFrames(), 1));
+        // 窗口用完，暂停上游的读
+        assertFalse(upstream.config().isAutoRead());
+
+        client.writeWindowUpdate(1, 4);
+        assertEquals("abcd", Http2TestChannel.dataOf(client.readFrames(), 1));
+        assertFalse(upstream.config().isAutoRead());
+
+        client.writeWindowUpdate(1, 100);
+        assertEquals("efghij", Http2TestChannel.dataOf(client.readFrames(), 1));
+        assertTrue(upstream.config().isAutoRead());
+    }
+
+    @Test
+    public void endStreamHalfClosesUpstream() {
+        Http2TestChannel client = new Http2TestChannel();
+        Http2TestChannel.EmbeddedSocketChannel upstream = client.establish(1, "example.com:443");
+        client.readFrames();
+
+        client.writeData(1, "bye", true);
+        assertEquals("bye", upstream.readOutboundString());
+        assertTrue(upstream.isOutputShutdown());
+        // 半关闭之后仍然可以下载
+        assertTrue(upstream.isOpen());
+        upstream.writeInbound(Unpooled.copiedBuffer("response", StandardCharsets.US_ASCII));
+        assertEquals("response", Http2TestChannel.dataOf(client.readFrames(), 1));
+    }
+
+    @Test
+    public void upstreamCloseEndsStream() {
+        Http2TestChannel client = new Http2TestChannel();
+        Http2TestChannel.EmbeddedSocketChannel upstream = client.establish(1, "example.com:443");
+        client.readFrames();
+
+        upstream.writeInbound(Unpooled.copiedBuffer("tail", StandardCharsets.US_ASCII));
+        upstream.close();
+        List<Http2TestChannel.Frame> frames = client.readFrames();
+        assertEquals("tail", Http2TestChannel.dataOf(frames, 1));
+        Http2TestChannel.Frame end = Http2TestChannel.lastFrame(frames, Http2Frames.TYPE_DATA);
+        assertTrue(end.hasFlag(Http2Frames.FLAG_END_STREAM));
+        // 客户端还没有结束发送，告诉它不需要再发送数据
+        Http2TestChannel.Frame rst = Http2TestChannel.lastFrame(frames, Http2Frames.TYPE_RST_STREAM);
+        assertNotNull(rst);
+        assertEquals(Http2Frames.NO_ERROR, rst.intAt(0));
+        assertEquals(0, client.mapping.getMetrics().getActiveTunnels());
+    }
+}
@@ -0,0 +1,103 @@
+package com.virjar.spider.proxy.ha.handlers.upstream;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ConnectResponseParserTest {
+
+    private static ByteBuf buf(String content) {
+        return Unpooled.copiedBuffer(content, StandardCharsets.US_ASCII);
+    }
+
+    @Test
+    public void established() {
+        ConnectResponseParser parser = new ConnectResponseParser();
+        ByteBuf data = buf("HTTP/1.1 200 Connection established\r\nProxy-Agent: test\r\n\r\n");
+        assertEquals(200, parser.parse(data));
+        assertFalse(data.isReadable());
+    }
+
+    @Test
+    public void tunnelDataStaysInBuffer() {
+        ConnectResponseParser parser = new ConnectResponseParser();
+        // 200响应没有响应体，即使带了Content-Length，头部之后的数据也属于隧道
+        ByteBuf data = buf("HTTP/1.0 200 OK\r\nContent-Length: 5\r\n\r\n\u0016\u0003\u0001");
+        assertEquals(200, parser.parse(data));
+        assertEquals(3, data.readableBytes());
+        assertEquals(0x16, data.readByte());
+    }
+
+    @Test
+    public void splitAtEveryByte() {
+        String response = "HTTP/1.1 200 Connection established\r\nVia: 1.1 proxy\r\n\r\n";
+        ConnectResponseParser parser = new ConnectResponseParser();
+        for (int i = 0; i < response.length() - 1; i++) {
+            assertEquals(ConnectResponseParser.NEED_MORE, parser.parse(buf(response.substring(i, i + 1))));
+        }
+        assertEquals(200, parser.parse(buf(response.substring(response.length() - 1))));
+    }
+
+    @Test
+    public void bareLineFeed() {
+        ConnectResponseParser parser = new ConnectResponseParser();
+        assertEquals(200, parser.parse(buf("HTTP/1.1 200 OK\nServer: x\n\n")));
+    }
+
+    @Test
+    public void skipProxyAuthenticationRequiredBody() {
+        ConnectResponseParser parser = new ConnectResponseParser();
+        ByteBuf head = buf("HTTP/1.1 407 Proxy Authentication Required\r\n"
+                + "Proxy-Authenticate: Basic realm=\"proxy\"\r\n"
+                + "content-length: 10\r\n\r\n01234");
+        assertEquals(ConnectResponseParser.NEED_MORE, parser.parse(head));
+        ByteBuf rest = buf("56789HTTP/1.1 200");
+        assertEquals(407, parser.parse(rest));
+        // 响应体之后的数据属于下一个响应
+        assertEquals("HTTP/1.1 200", rest.toString(StandardCharsets.US_ASCII));
+        assertTrue(parser.isReusable());
+
+        parser.reset();
+        assertEquals(200, parser.parse(buf("HTTP/1.1 200 OK\r\n\r\n")));
+    }
+
+    @Test
+    public void notReusable() {
+        ConnectResponseParser parser = new ConnectResponseParser();
+        assertEquals(407, parser.parse(buf("HTTP/1.1 407 Auth\r\nProxy-Connection: Close\r\nContent-Length: 0\r\n\r\n")));
+        assertFalse(parser.isReusable());
+
+        parser.reset();
+        assertEquals(407, parser.parse(buf("HTTP/1.1 407 Auth\r\nTransfer-Encoding: chunked\r\n\r\n")));
+        assertFalse(parser.isReusable());
+    }
+
+    @Test
+    public void longHeaderLinesAreIgnored() {
+        StringBuilder cookie = new StringBuilder("Set-Cookie: ");
+        for (int i = 0; i < 1000; i++) {
+            cookie.append('a');
+        }
+        ConnectResponseParser parser = new ConnectResponseParser();
+        assertEquals(502, parser.parse(buf("HTTP/1.1 502 Bad Gateway\r\n" + cookie + "\r\n\r\n")));
+    }
+
+    @Test
+    public void malformed() {
+        assertEquals(ConnectResponseParser.MALFORMED, new ConnectResponseParser().parse(buf("SSH-2.0-OpenSSH\r\n")));
+        assertEquals(ConnectResponseParser.MALFORMED, new ConnectResponseParser().parse(buf("HTTP/1.1 2x0 OK\r\n")));
+        assertEquals(ConnectResponseParser.MALFORMED, new ConnectResponseParser().parse(buf("HTTP/1.1\r\n")));
+
+        StringBuilder huge = new StringBuilder("HTTP/1.1 200 OK\r\n");
+        while (huge.length() <= 16 * 1024) {
+            huge.append("X-Padding: 0123456789\r\n");
+        }
+        assertEquals(ConnectResponseParser.MALFORMED, new ConnectResponseParser().parse(buf(huge.toString())));
+    }
+}